@@ -0,0 +1,74 @@
+package com.mycompany.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Deterministic test data shaped like real prompts and answers
+ * Mostly prose, with the characters that make JSON escaping and token counting work:
+ * quotes, backslashes, line breaks, tabs, non-Latin letters and the odd emoji.
+ */
+final class BenchmarkData {
+
+    private static final String[] WORDS = {
+        "the", "request", "approval", "customer", "invoice", "was", "reviewed", "by", "finance",
+        "and", "forwarded", "to", "procurement", "for", "a", "final", "decision", "on", "payment",
+        "terms", "delivery", "schedule", "contract", "amount", "department", "manager", "policy"
+    };
+
+    private static final String[] SPECIALS = {
+        "\"quoted\"", "C:\\temp\\report.pdf", "\t", "Müller", "Señora", "東京", "😀", "<b>", "50%", "a/b"
+    };
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * About the given number of characters of text; same seed, same text
+     */
+    static String prose(int chars, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(chars + 32);
+        int sentence = 0;
+        while (text.length() < chars) {
+            if (random.nextInt(12) == 0) {
+                text.append(SPECIALS[random.nextInt(SPECIALS.length)]);
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (++sentence % 14 == 0) {
+                text.append(random.nextInt(4) == 0 ? ".\n\n" : ". ");
+            } else {
+                text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * The text as a JSON string literal, quotes included
+     */
+    static String jsonString(String text) {
+        String array = GeminiRequestWriter.toJsonArray(Collections.singletonList(text));
+        return array.substring(1, array.length() - 1);
+    }
+
+    /**
+     * generateContent response body carrying the text as one candidate
+     */
+    static String generateContentResponse(String text) {
+        return "{\n  \"candidates\": [\n    {\n      \"content\": {\n        \"parts\": [\n          {\n            \"text\": "
+                + jsonString(text)
+                + "\n          }\n        ],\n        \"role\": \"model\"\n      },\n      \"finishReason\": \"STOP\",\n"
+                + "      \"safetyRatings\": [\n        {\"category\": \"HARM_CATEGORY_HARASSMENT\", \"probability\": \"NEGLIGIBLE\"},\n"
+                + "        {\"category\": \"HARM_CATEGORY_HATE_SPEECH\", \"probability\": \"NEGLIGIBLE\"}\n      ]\n    }\n  ],\n"
+                + "  \"usageMetadata\": {\n    \"promptTokenCount\": 812,\n    \"candidatesTokenCount\": " + TokenEstimator.estimate(text)
+                + ",\n    \"totalTokenCount\": " + (812 + TokenEstimator.estimate(text)) + "\n  },\n"
+                + "  \"modelVersion\": \"gemini-1.5-flash-002\"\n}\n";
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end calls through the tool against the in-process mock server
+ * Each call goes the full synchronous path: prompt, token estimate, single-flight,
+ * circuit breaker, rate limiter, pooled HTTP connection and response parsing. The
+ * response cache is bypassed so every call reaches the mock. Each benchmark thread has
+ * its own tool instance, as each Joget activity execution does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+public class CallThroughputBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Mock {
+        @Param({"1024", "65536"})
+        public int responseChars;
+
+        MockGeminiServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = MockGeminiServer.start(new MockGeminiServer.Settings().threads(8).responseChars(responseChars, responseChars));
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tool {
+        GeminiAIProcessTool tool;
+        final Map<String, Object> executeProperties = Collections.emptyMap();
+
+        @Setup(Level.Trial)
+        public void create(Mock mock) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("apiKey", "benchmark-key");
+            properties.put("model", "gemini-1.5-flash");
+            properties.put("apiBaseUrl", mock.server.getBaseUrl());
+            // A literal template needs no workflow variables, so no assignment is required
+            properties.put("customPromptTemplate", BenchmarkData.prose(2000, 8L));
+            properties.put("bypassCache", "true");
+            properties.put("logLevel", "OFF");
+            properties.put("maxConnections", "64");
+            properties.put("maxConcurrentRequests", "64");
+            tool = new GeminiAIProcessTool();
+            tool.setProperties(properties);
+        }
+    }
+
+    @Benchmark
+    public Object callGeminiAPI(Tool tool) {
+        Object result = tool.tool.execute(tool.executeProperties);
+        if (String.valueOf(result).startsWith("ERROR:")) {
+            throw new IllegalStateException(String.valueOf(result));
+        }
+        return result;
+    }
+}
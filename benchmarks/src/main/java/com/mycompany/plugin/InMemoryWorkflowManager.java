@@ -0,0 +1,124 @@
+package com.mycompany.plugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joget.workflow.model.WorkflowAssignment;
+import org.joget.workflow.model.WorkflowVariable;
+import org.joget.workflow.model.service.WorkflowManager;
+
+/**
+ * WorkflowManager stand-in that keeps process variables in memory
+ * Implements the calls the plugin makes (variable reads and writes, activity lookup and
+ * completion) through a dynamic proxy; everything else returns null, zero or false.
+ * Activity variables are stored with their process, as in Joget.
+ */
+final class InMemoryWorkflowManager implements InvocationHandler {
+
+    private final Map<String, Map<String, Object>> variables = new ConcurrentHashMap<>();
+    private final Map<String, String> activityProcess = new ConcurrentHashMap<>();
+
+    /**
+     * The proxy to hand to {@link WorkflowVariableAccess#use}
+     */
+    WorkflowManager proxy() {
+        return (WorkflowManager) Proxy.newProxyInstance(WorkflowManager.class.getClassLoader(),
+                new Class<?>[] {WorkflowManager.class}, this);
+    }
+
+    /**
+     * Assignment of a new process with one open activity and the given variables
+     */
+    WorkflowAssignment start(String processId, Map<String, String> initialVariables) {
+        String activityId = processId + "_activity";
+        activityProcess.put(activityId, processId);
+        variables.put(processId, new ConcurrentHashMap<String, Object>(initialVariables));
+        WorkflowAssignment assignment = new WorkflowAssignment();
+        assignment.setProcessId(processId);
+        assignment.setActivityId(activityId);
+        return assignment;
+    }
+
+    /**
+     * Current variables of the process, or null once it has been removed
+     */
+    Map<String, Object> variables(String processId) {
+        return variables.get(processId);
+    }
+
+    void remove(String processId) {
+        variables.remove(processId);
+        activityProcess.remove(processId + "_activity");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "activityVariable":
+                put(activityProcess.get((String) args[0]), (String) args[1], args[2]);
+                return null;
+            case "activityVariables":
+                for (Map.Entry<String, ?> entry : ((Map<String, ?>) args[1]).entrySet()) {
+                    put(activityProcess.get((String) args[0]), entry.getKey(), entry.getValue());
+                }
+                return null;
+            case "processVariable":
+                put((String) args[0], (String) args[1], args[2]);
+                return null;
+            case "getActivityVariableList":
+                return variableList(activityProcess.get((String) args[0]));
+            case "getActivityList":
+                return Collections.emptyList();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryWorkflowManager";
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private void put(String processId, String name, Object value) {
+        Map<String, Object> processVariables = processId != null ? variables.get(processId) : null;
+        if (processVariables != null) {
+            processVariables.put(name, value != null ? value : "");
+        }
+    }
+
+    private List<WorkflowVariable> variableList(String processId) {
+        Map<String, Object> processVariables = processId != null ? variables.get(processId) : null;
+        if (processVariables == null) {
+            return Collections.emptyList();
+        }
+        List<WorkflowVariable> list = new ArrayList<>(processVariables.size());
+        for (Map.Entry<String, Object> entry : processVariables.entrySet()) {
+            WorkflowVariable variable = new WorkflowVariable();
+            variable.setId(entry.getKey());
+            variable.setVal(entry.getValue());
+            list.add(variable);
+        }
+        return list;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
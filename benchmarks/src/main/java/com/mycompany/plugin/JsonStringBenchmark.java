@@ -0,0 +1,54 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON string escaping (request side) and unescaping (response side)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonStringBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int chars;
+
+    private String text;
+    private String literal;
+
+    @Setup
+    public void setUp() {
+        text = BenchmarkData.prose(chars, 1L);
+        literal = BenchmarkData.jsonString(text);
+    }
+
+    @Benchmark
+    public String escape() {
+        return GeminiRequestWriter.toJsonArray(Collections.singletonList(text));
+    }
+
+    @Benchmark
+    public String unescape() throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(literal))) {
+            return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joget.workflow.model.WorkflowAssignment;
+
+/**
+ * Concurrent load test of GeminiAIProcessTool.execute against the mock server
+ * Every call is a fresh tool instance with its own process, as each activity execution
+ * is in Joget; variables live in an in-memory WorkflowManager. Reports throughput,
+ * latency percentiles, outcomes, heap usage and GC time.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.mycompany.plugin.LoadHarness --threads=32 --calls=5000 \
+ *     --latencyMedian=300 --latencyP99=3000 --rate429=0.05 --prop.responseMode=streaming
+ * </pre>
+ *
+ * Options prefixed with --prop. are passed to the tool as plugin properties.
+ */
+public final class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("threads", "16");
+        DEFAULTS.put("calls", "2000");
+        DEFAULTS.put("warmupCalls", "200");
+        DEFAULTS.put("promptChars", "2000");
+        DEFAULTS.put("contextVariables", "5");
+        DEFAULTS.put("contextChars", "500");
+        DEFAULTS.put("latencyMedian", "50");
+        DEFAULTS.put("latencyP99", "500");
+        DEFAULTS.put("rate429", "0");
+        DEFAULTS.put("rate5xx", "0");
+        DEFAULTS.put("status5xx", "503");
+        DEFAULTS.put("retryAfter", "1");
+        DEFAULTS.put("minResponseChars", "1024");
+        DEFAULTS.put("maxResponseChars", "4096");
+        DEFAULTS.put("streamChunks", "8");
+        DEFAULTS.put("streamChunkDelay", "20");
+        DEFAULTS.put("serverThreads", "256");
+    }
+
+    private final Map<String, String> options;
+    private final Map<String, Object> toolProperties;
+    private final InMemoryWorkflowManager workflowManager = new InMemoryWorkflowManager();
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    private LoadHarness(Map<String, String> options, Map<String, Object> toolProperties) {
+        this.options = options;
+        this.toolProperties = toolProperties;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        Map<String, Object> toolProperties = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                System.err.println("Options are --name=value; known names: " + DEFAULTS.keySet() + " and --prop.<pluginProperty>");
+                System.exit(2);
+            }
+            String name = arg.substring(2, equals);
+            if (name.startsWith("prop.")) {
+                toolProperties.put(name.substring("prop.".length()), arg.substring(equals + 1));
+            } else if (DEFAULTS.containsKey(name)) {
+                options.put(name, arg.substring(equals + 1));
+            } else {
+                System.err.println("Unknown option " + name + "; known names: " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+        }
+        new LoadHarness(options, toolProperties).run();
+        System.exit(0);
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private void run() throws IOException, InterruptedException {
+        MockGeminiServer.Settings settings = new MockGeminiServer.Settings()
+                .threads(intOption("serverThreads"))
+                .latency(intOption("latencyMedian"), intOption("latencyP99"))
+                .errors(Double.parseDouble(options.get("rate429")), Double.parseDouble(options.get("rate5xx")))
+                .status5xx(intOption("status5xx"))
+                .retryAfter(intOption("retryAfter"))
+                .responseChars(intOption("minResponseChars"), intOption("maxResponseChars"))
+                .stream(intOption("streamChunks"), intOption("streamChunkDelay"));
+
+        try (MockGeminiServer mock = MockGeminiServer.start(settings)) {
+            WorkflowVariableAccess.use(workflowManager.proxy());
+            Map<String, Object> properties = baseProperties(mock.getBaseUrl());
+            properties.putAll(toolProperties);
+            System.out.println("Options: " + options);
+            System.out.println("Tool properties: " + toolProperties);
+
+            if (intOption("warmupCalls") > 0) {
+                drive(properties, intOption("warmupCalls"), "warmup");
+                outcomes.clear();
+            }
+
+            System.gc();
+            long heapBefore = usedHeap();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long gcCountBefore = gcCount();
+            long gcTimeBefore = gcTime();
+
+            int calls = intOption("calls");
+            long started = System.nanoTime();
+            long[] latencies = drive(properties, calls, "load");
+            long elapsed = System.nanoTime() - started;
+
+            long peakHeap = peakHeap();
+            long heapAfter = usedHeap();
+            System.gc();
+            long retainedHeap = usedHeap();
+
+            Arrays.sort(latencies);
+            System.out.println();
+            System.out.printf("Calls:       %d in %.1f s, %d threads%n", calls, elapsed / 1e9, intOption("threads"));
+            System.out.printf("Throughput:  %.1f calls/s%n", calls / (elapsed / 1e9));
+            System.out.printf("Latency ms:  p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+            System.out.println("Outcomes:    " + new TreeMap<>(sums(outcomes)));
+            System.out.printf("Heap MB:     before=%.1f peak=%.1f end=%.1f after GC=%.1f%n",
+                    mb(heapBefore), mb(peakHeap), mb(heapAfter), mb(retainedHeap));
+            System.out.printf("GC:          %d collections, %d ms%n", gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+            System.out.println("Mock server: " + mock.describe());
+            GeminiMetrics metrics = GeminiMetrics.shared();
+            System.out.println("Plugin:      calls=" + metrics.getCalls() + ", successes=" + metrics.getSuccesses()
+                    + ", errors=" + metrics.getErrors() + ", " + "connections: " + GeminiHttpTransport.shared().getPoolStats());
+        } finally {
+            WorkflowVariableAccess.reset();
+        }
+    }
+
+    private Map<String, Object> baseProperties(String baseUrl) {
+        StringBuilder context = new StringBuilder();
+        for (int i = 0; i < intOption("contextVariables"); i++) {
+            context.append(i > 0 ? "," : "").append("context").append(i);
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("apiKey", "load-test-key");
+        properties.put("model", "gemini-1.5-flash");
+        properties.put("apiBaseUrl", baseUrl);
+        properties.put("userPromptVariable", "userprompt");
+        properties.put("additionalContext", context.toString());
+        properties.put("outputVariable", "aiResponse");
+        properties.put("bypassCache", "true");
+        properties.put("logLevel", "ERROR");
+        properties.put("maxConnections", "64");
+        properties.put("maxConcurrentRequests", "64");
+        return properties;
+    }
+
+    /**
+     * Run the calls on the configured number of threads
+     *
+     * @return each call's latency in nanoseconds
+     */
+    private long[] drive(Map<String, Object> properties, int calls, String label) throws InterruptedException {
+        long[] latencies = new long[calls];
+        AtomicInteger next = new AtomicInteger();
+        int threads = intOption("threads");
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    int index;
+                    while ((index = next.getAndIncrement()) < calls) {
+                        latencies[index] = call(properties, label + "-" + index, index);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + t);
+            thread.start();
+        }
+        done.await();
+        return latencies;
+    }
+
+    private long call(Map<String, Object> properties, String processId, int index) {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("userprompt", BenchmarkData.prose(intOption("promptChars"), index));
+        for (int i = 0; i < intOption("contextVariables"); i++) {
+            variables.put("context" + i, BenchmarkData.prose(intOption("contextChars"), 31L * index + i));
+        }
+        WorkflowAssignment assignment = workflowManager.start(processId, variables);
+        Map<String, Object> executeProperties = new HashMap<>();
+        executeProperties.put("workflowAssignment", assignment);
+
+        GeminiAIProcessTool tool = new GeminiAIProcessTool();
+        tool.setProperties(properties);
+        long started = System.nanoTime();
+        Object result = tool.execute(executeProperties);
+        long latency = System.nanoTime() - started;
+
+        String text = String.valueOf(result);
+        String outcome;
+        if (text.startsWith("ERROR:") || text.startsWith("QUEUED:")) {
+            // Group by the message without numbers, e.g. "ERROR: Failed to get a valid response"
+            outcome = text.replaceAll("[0-9]+", "#");
+            outcome = outcome.length() > 80 ? outcome.substring(0, 80) : outcome;
+        } else {
+            Map<String, Object> stored = workflowManager.variables(processId);
+            outcome = stored != null && text.equals(stored.get("aiResponse")) ? "ok" : "ok, output variable not stored";
+        }
+        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+        workflowManager.remove(processId);
+        return latency;
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey(), entry.getValue().sum());
+        }
+        return sums;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Sum of the heap pools' peaks; an upper bound, the pools peak at different times
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,522 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for generativelanguage.googleapis.com
+ * Serves generateContent, streamGenerateContent (server-sent events), embedContent,
+ * batchEmbedContents and resumable Files API uploads on a loopback port. Latency follows a log-normal distribution set
+ * by its median and 99th percentile, a share of calls can be answered with 429 or 5xx,
+ * and answers are prose of a configurable size or fixed texts, e.g. JSON for structured
+ * output. Embeddings are hashed bags of words, so
+ * texts sharing words get similar vectors and the same text always gets the same vector.
+ */
+final class MockGeminiServer implements AutoCloseable {
+
+    // 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.326;
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String text;
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong uploadIds = new AtomicLong();
+    private final AtomicLong answerCount = new AtomicLong();
+
+    /**
+     * Behaviour of the mock; defaults answer at once with 1 KB of text and never fail
+     */
+    static final class Settings {
+        int threads = 64;
+        long latencyMedianMillis;
+        long latencyP99Millis;
+        double rate429;
+        double rate5xx;
+        int status5xx = 503;
+        int retryAfterSeconds = 1;
+        int minResponseChars = 1024;
+        int maxResponseChars = 1024;
+        int streamChunks = 8;
+        long streamChunkDelayMillis;
+        int embeddingDimensions = 768;
+        long uploadBreakAfterBytes = -1;
+        String[] answers;
+
+        Settings threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Time to the answer (to the first event when streaming)
+         */
+        Settings latency(long medianMillis, long p99Millis) {
+            this.latencyMedianMillis = medianMillis;
+            this.latencyP99Millis = Math.max(medianMillis, p99Millis);
+            return this;
+        }
+
+        /**
+         * Share of calls answered with 429 RESOURCE_EXHAUSTED and with a server error
+         */
+        Settings errors(double rate429, double rate5xx) {
+            this.rate429 = rate429;
+            this.rate5xx = rate5xx;
+            return this;
+        }
+
+        Settings status5xx(int status5xx) {
+            this.status5xx = status5xx;
+            return this;
+        }
+
+        Settings retryAfter(int seconds) {
+            this.retryAfterSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Answer length, uniformly distributed between the two
+         */
+        Settings responseChars(int minChars, int maxChars) {
+            this.minResponseChars = minChars;
+            this.maxResponseChars = Math.max(minChars, maxChars);
+            return this;
+        }
+
+        Settings stream(int chunks, long chunkDelayMillis) {
+            this.streamChunks = Math.max(1, chunks);
+            this.streamChunkDelayMillis = chunkDelayMillis;
+            return this;
+        }
+
+        /**
+         * Answer with these texts in turn instead of prose
+         */
+        Settings answers(String... answers) {
+            this.answers = answers.length > 0 ? answers.clone() : null;
+            return this;
+        }
+
+        Settings embeddingDimensions(int dimensions) {
+            this.embeddingDimensions = dimensions;
+            return this;
+        }
+
+        /**
+         * Drop the connection of the first upload request of every upload after this many
+         * bytes, so the client has to resume; -1 never does
+         */
+        Settings uploadBreakAfter(long bytes) {
+            this.uploadBreakAfterBytes = bytes;
+            return this;
+        }
+    }
+
+    /**
+     * One resumable upload session and, once finished, the file
+     */
+    private static final class Upload {
+        final String id;
+        final String mimeType;
+        final long size;
+        long received;
+        boolean broken;
+        boolean finished;
+
+        Upload(String id, String mimeType, long size) {
+            this.id = id;
+            this.mimeType = mimeType;
+            this.size = size;
+        }
+    }
+
+    private MockGeminiServer(Settings settings) throws IOException {
+        this.settings = settings;
+        this.text = BenchmarkData.prose(settings.maxResponseChars, 9L);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(settings.threads, runnable -> {
+            Thread thread = new Thread(runnable, "mock-gemini-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Start a mock on a free loopback port
+     */
+    static MockGeminiServer start(Settings settings) throws IOException {
+        // Without TCP_NODELAY the response headers and body are sent as two segments and
+        // every call waits about 40 ms for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        MockGeminiServer mock = new MockGeminiServer(settings);
+        mock.server.start();
+        return mock;
+    }
+
+    /**
+     * Value for the tool's apiBaseUrl property
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1beta/";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf(':') + 1);
+        try (InputStream body = requestBody(exchange)) {
+            if (path.startsWith("/upload/")) {
+                upload(exchange, body);
+                return;
+            }
+            if ("GET".equals(exchange.getRequestMethod()) && path.contains("/files/")) {
+                Upload upload = uploads.get(path.substring(path.lastIndexOf('/') + 1));
+                if (upload == null || !upload.finished) {
+                    respond(exchange, "files.get", 404, error(404, "NOT_FOUND", "File " + path + " does not exist"));
+                } else {
+                    respond(exchange, "files.get", 200, fileJson(exchange, upload));
+                }
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod()) || method.equals(path)) {
+                drain(body);
+                respond(exchange, "unknown", 404, error(404, "NOT_FOUND", "Unknown path " + path));
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double roll = random.nextDouble();
+            if (roll < settings.rate429) {
+                drain(body);
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(settings.retryAfterSeconds));
+                respond(exchange, method, 429, error(429, "RESOURCE_EXHAUSTED", "Resource has been exhausted (mock)"));
+                return;
+            }
+            if (roll < settings.rate429 + settings.rate5xx) {
+                drain(body);
+                sleep(latency());
+                respond(exchange, method, settings.status5xx, error(settings.status5xx, "UNAVAILABLE", "The model is overloaded (mock)"));
+                return;
+            }
+
+            switch (method) {
+                case "generateContent":
+                    drain(body);
+                    sleep(latency());
+                    respond(exchange, method, 200, BenchmarkData.generateContentResponse(answer()));
+                    break;
+                case "streamGenerateContent":
+                    drain(body);
+                    stream(exchange, answer());
+                    break;
+                case "embedContent":
+                    List<List<String>> single = texts(body, false);
+                    sleep(latency());
+                    respond(exchange, method, 200, "{\"embedding\":" + embedding(single.get(0)) + "}");
+                    break;
+                case "batchEmbedContents":
+                    List<List<String>> batch = texts(body, true);
+                    sleep(latency());
+                    StringBuilder embeddings = new StringBuilder("{\"embeddings\":[");
+                    for (int i = 0; i < batch.size(); i++) {
+                        embeddings.append(i > 0 ? "," : "").append(embedding(batch.get(i)));
+                    }
+                    respond(exchange, method, 200, embeddings.append("]}").toString());
+                    break;
+                default:
+                    drain(body);
+                    respond(exchange, method, 404, error(404, "NOT_FOUND", "Method " + method + " is not mocked"));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The three steps of a resumable upload: start (returns the session URL), upload with
+     * finalize, and query (how many bytes arrived)
+     */
+    private void upload(HttpExchange exchange, InputStream body) throws IOException {
+        String command = String.valueOf(exchange.getRequestHeaders().getFirst("X-Goog-Upload-Command"));
+        String query = exchange.getRequestURI().getQuery();
+        if (command.equals("start")) {
+            drain(body);
+            String id = "mock" + uploadIds.incrementAndGet();
+            String mimeType = exchange.getRequestHeaders().getFirst("X-Goog-Upload-Header-Content-Type");
+            long size = Long.parseLong(exchange.getRequestHeaders().getFirst("X-Goog-Upload-Header-Content-Length"));
+            uploads.put(id, new Upload(id, mimeType, size));
+            exchange.getResponseHeaders().set("X-Goog-Upload-URL", "http://" + exchange.getRequestHeaders().getFirst("Host")
+                    + exchange.getRequestURI().getPath() + "?upload_id=" + id + "&upload_protocol=resumable");
+            exchange.getResponseHeaders().set("X-Goog-Upload-Status", "active");
+            respond(exchange, "upload start", 200, "");
+            return;
+        }
+        Upload upload = query != null && query.startsWith("upload_id=")
+                ? uploads.get(query.substring("upload_id=".length()).split("&")[0]) : null;
+        if (upload == null) {
+            drain(body);
+            respond(exchange, "upload", 404, error(404, "NOT_FOUND", "Unknown upload session"));
+            return;
+        }
+        if (command.equals("query")) {
+            drain(body);
+            exchange.getResponseHeaders().set("X-Goog-Upload-Size-Received", String.valueOf(upload.received));
+            exchange.getResponseHeaders().set("X-Goog-Upload-Status", upload.finished ? "final" : "active");
+            respond(exchange, "upload query", 200, "");
+            return;
+        }
+        long offset = Long.parseLong(String.valueOf(exchange.getRequestHeaders().getFirst("X-Goog-Upload-Offset")));
+        if (offset != upload.received) {
+            drain(body);
+            respond(exchange, "upload", 400, error(400, "INVALID_ARGUMENT", "Offset " + offset + " but " + upload.received + " received"));
+            return;
+        }
+        byte[] buffer = new byte[8192];
+        boolean breakNow = settings.uploadBreakAfterBytes >= 0 && !upload.broken;
+        int n;
+        while ((n = body.read(buffer)) >= 0) {
+            upload.received += n;
+            if (breakNow && upload.received >= settings.uploadBreakAfterBytes) {
+                // Keep only what the client had sent so far and drop the connection
+                upload.received = settings.uploadBreakAfterBytes;
+                upload.broken = true;
+                count("upload", 0);
+                throw new IOException("Upload broken on purpose (mock)");
+            }
+        }
+        if (command.contains("finalize")) {
+            if (upload.received != upload.size) {
+                respond(exchange, "upload", 400, error(400, "INVALID_ARGUMENT", upload.received + " of " + upload.size + " bytes received"));
+                return;
+            }
+            upload.finished = true;
+            respond(exchange, "upload", 200, "{\"file\":" + fileJson(exchange, upload) + "}");
+        } else {
+            respond(exchange, "upload", 200, "");
+        }
+    }
+
+    private String fileJson(HttpExchange exchange, Upload upload) {
+        return "{\"name\":\"files/" + upload.id + "\",\"mimeType\":\"" + upload.mimeType + "\",\"sizeBytes\":\""
+                + upload.size + "\",\"uri\":\"http://" + exchange.getRequestHeaders().getFirst("Host") + "/v1beta/files/"
+                + upload.id + "\",\"state\":\"ACTIVE\",\"expirationTime\":\""
+                + Instant.now().plusSeconds(48L * 3600L) + "\"}";
+    }
+
+    private static InputStream requestBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        return "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")) ? new GZIPInputStream(body) : body;
+    }
+
+    private void respond(HttpExchange exchange, String method, int status, String body) throws IOException {
+        count(method, status);
+        byte[] bytes = BenchmarkData.utf8(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void stream(HttpExchange exchange, String answer) throws IOException {
+        count("streamGenerateContent", 200);
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        sleep(latency());
+        int chunks = Math.min(settings.streamChunks, Math.max(1, answer.length()));
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int i = 0; i < chunks; i++) {
+                String part = answer.substring(answer.length() * i / chunks, answer.length() * (i + 1) / chunks);
+                boolean last = i == chunks - 1;
+                String event = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":" + BenchmarkData.jsonString(part)
+                        + "}],\"role\":\"model\"}" + (last ? ",\"finishReason\":\"STOP\"" : "") + "}]"
+                        + (last ? ",\"usageMetadata\":{\"promptTokenCount\":812,\"candidatesTokenCount\":"
+                                + TokenEstimator.estimate(answer) + ",\"totalTokenCount\":"
+                                + (812 + TokenEstimator.estimate(answer)) + "}" : "")
+                        + ",\"modelVersion\":\"gemini-1.5-flash-002\"}";
+                out.write(BenchmarkData.utf8("data: " + event + "\r\n\r\n"));
+                out.flush();
+                if (!last) {
+                    sleep(settings.streamChunkDelayMillis);
+                }
+            }
+        }
+    }
+
+    private String answer() {
+        if (settings.answers != null) {
+            return settings.answers[(int) (answerCount.getAndIncrement() % settings.answers.length)];
+        }
+        int length = settings.minResponseChars == settings.maxResponseChars ? settings.maxResponseChars
+                : ThreadLocalRandom.current().nextInt(settings.minResponseChars, settings.maxResponseChars + 1);
+        return text.substring(0, Math.min(length, text.length()));
+    }
+
+    private long latency() {
+        if (settings.latencyMedianMillis <= 0) {
+            return 0;
+        }
+        double sigma = Math.log((double) settings.latencyP99Millis / settings.latencyMedianMillis) / Z_99;
+        return Math.round(settings.latencyMedianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private static String error(int code, String status, String message) {
+        return "{\"error\":{\"code\":" + code + ",\"message\":" + BenchmarkData.jsonString(message)
+                + ",\"status\":\"" + status + "\"}}";
+    }
+
+    /**
+     * Texts of each request: one request for embedContent, the "requests" array for
+     * batchEmbedContents
+     */
+    private static List<List<String>> texts(InputStream body, boolean batch) throws IOException {
+        List<List<String>> requests = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            if (!batch) {
+                List<String> texts = new ArrayList<>();
+                collectTexts(reader, texts);
+                requests.add(texts);
+                return requests;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"requests".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    List<String> texts = new ArrayList<>();
+                    collectTexts(reader, texts);
+                    requests.add(texts);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        return requests;
+    }
+
+    // Every "text" string anywhere in the value
+    private static void collectTexts(JsonReader reader, List<String> texts) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("text".equals(reader.nextName()) && reader.peek() == JsonReader.Token.STRING) {
+                        texts.add(reader.nextString());
+                    } else {
+                        collectTexts(reader, texts);
+                    }
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    collectTexts(reader, texts);
+                }
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    /**
+     * {"values": [...]}: words hashed into signed buckets, normalized to unit length
+     */
+    private String embedding(List<String> texts) {
+        float[] vector = new float[settings.embeddingDimensions];
+        for (String text : texts) {
+            for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!word.isEmpty()) {
+                    int hash = word.hashCode() * 0x9E3779B1;
+                    vector[(hash >>> 1) % vector.length] += (hash & 1) == 0 ? 1f : -1f;
+                }
+            }
+        }
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        double scale = norm > 0 ? 1 / Math.sqrt(norm) : 0;
+        StringBuilder json = new StringBuilder(vector.length * 12).append("{\"values\":[");
+        for (int i = 0; i < vector.length; i++) {
+            json.append(i > 0 ? "," : "").append((float) (vector[i] * scale));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0) {
+            // the request is not looked at
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void count(String method, int status) {
+        outcomes.computeIfAbsent(method + " " + status, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Requests answered so far, by method and status, e.g. "generateContent 200=1500"
+     */
+    String describe() {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : outcomes.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().sum());
+        }
+        return sorted.toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mycompany.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the final prompt from the user prompt and many context variables
+ * Uses the template the tool generates from userPromptVariable and additionalContext,
+ * with variable values served from a map the way the bulk variable read serves them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PromptTemplateBenchmark {
+
+    @Param({"5", "50", "200"})
+    public int contextVariables;
+
+    @Param({"200"})
+    public int valueChars;
+
+    private String templateText;
+    private Map<String, String> variables;
+
+    @Setup
+    public void setUp() {
+        variables = new HashMap<>();
+        variables.put("variable.userprompt", BenchmarkData.prose(500, 6L));
+        StringBuilder template = new StringBuilder("#variable.userprompt#");
+        for (int i = 0; i < contextVariables; i++) {
+            String name = "context" + i;
+            template.append("{{#variable.").append(name).append("}}\n\n")
+                    .append(name).append(": #variable.").append(name).append('#')
+                    .append("{{/variable.").append(name).append("}}");
+            // Every tenth variable is empty, so its section is left out
+            if (i % 10 != 9) {
+                variables.put("variable." + name, BenchmarkData.prose(valueChars, 100L + i));
+            }
+        }
+        templateText = template.toString();
+    }
+
+    @Benchmark
+    public String buildFinalPrompt() {
+        return PromptTemplate.compile(templateText).render((key, hashVariable) -> variables.get(key), 0).trim();
+    }
+}
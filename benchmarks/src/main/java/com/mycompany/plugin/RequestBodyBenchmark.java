@@ -0,0 +1,93 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building and serializing a generateContent request body
+ * A request as the tool builds it: system instruction, two few-shot turns, the final
+ * prompt and a generationConfig. The body goes to a stream that discards the bytes, as
+ * the HTTP connection would take them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int promptChars;
+
+    private String systemInstruction;
+    private String example;
+    private String prompt;
+    private GeminiRequest request;
+
+    @Setup
+    public void setUp() {
+        systemInstruction = BenchmarkData.prose(600, 2L);
+        example = BenchmarkData.prose(400, 3L);
+        prompt = BenchmarkData.prose(promptChars, 4L);
+        request = build();
+    }
+
+    private GeminiRequest build() {
+        return new GeminiRequest("gemini-1.5-flash", systemInstruction)
+                .addContent("user", example)
+                .addContent("model", example)
+                .addContent("user", prompt)
+                .setTemperature(0.4)
+                .setMaxOutputTokens(2048)
+                .addSafetySetting("HARM_CATEGORY_HARASSMENT", "BLOCK_ONLY_HIGH");
+    }
+
+    @Benchmark
+    public void buildAndWrite(Blackhole blackhole) throws IOException {
+        GeminiRequestWriter.write(build(), new DiscardingStream(blackhole));
+    }
+
+    @Benchmark
+    public void write(Blackhole blackhole) throws IOException {
+        GeminiRequestWriter.write(request, new DiscardingStream(blackhole));
+    }
+
+    @Benchmark
+    public long measure() {
+        return GeminiRequestWriter.measure(request);
+    }
+
+    private static final class DiscardingStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        DiscardingStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
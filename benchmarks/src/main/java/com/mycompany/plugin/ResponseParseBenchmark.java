@@ -0,0 +1,49 @@
+package com.mycompany.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracting the text from generateContent responses of 1 KB to 1 MB
+ * Parses from bytes, as the body arrives from the connection, into the bounded buffer
+ * the tool uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParseBenchmark {
+
+    @Param({"1024", "16384", "262144", "1048576"})
+    public int responseChars;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkData.utf8(BenchmarkData.generateContentResponse(BenchmarkData.prose(responseChars, 5L)));
+    }
+
+    @Benchmark
+    public String extractText() throws IOException {
+        BoundedTextBuffer text = new BoundedTextBuffer(2 * 1024 * 1024);
+        GeminiResponse response = GeminiResponse.parse(new ByteArrayInputStream(body), text);
+        response.setText(text.toString());
+        return response.getText();
+    }
+}
@@ -13,6 +13,8 @@ import org.osgi.framework.ServiceRegistration;
  */
 public class Activator implements BundleActivator {
 
+    private static final long SHUTDOWN_TIMEOUT = 30000L;
+
     protected List<ServiceRegistration<?>> registrationList;
 
     @Override
@@ -34,11 +36,15 @@ public class Activator implements BundleActivator {
             );
             registrationList.add(registration);
             
+            // Accept calls and publish runtime metrics over JMX
+            GeminiRuntime.shared().start();
+            
             System.out.println("✅ SUCCESS: Gemini AI Process Tool Plugin registered");
             System.out.println("   Service Name: " + serviceName);
             System.out.println("   Plugin Name: " + plugin.getName());
             System.out.println("   Plugin Version: " + plugin.getVersion());
             System.out.println("   Plugin Class: " + plugin.getClassName());
+            System.out.println("   Metrics MBean: " + GeminiMetrics.OBJECT_NAME);
             
         } catch (Exception e) {
             System.err.println("❌ FAILED to start Gemini AI Process Tool Plugin:");
@@ -59,6 +65,12 @@ public class Activator implements BundleActivator {
                 }
                 registrationList.clear();
             }
+            
+            // Let running and queued calls finish before the bundle goes away
+            boolean drained = GeminiRuntime.shared().stop(SHUTDOWN_TIMEOUT);
+            if (!drained) {
+                System.out.println("   Some Gemini calls did not finish within " + SHUTDOWN_TIMEOUT + " ms");
+            }
             System.out.println("✅ Gemini AI Process Tool Plugin stopped successfully");
             
         } catch (Exception e) {
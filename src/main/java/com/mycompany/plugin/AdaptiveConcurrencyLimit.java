@@ -0,0 +1,155 @@
+package com.mycompany.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit that adapts to observed latency and throttling (AIMD)
+ * Each fast success raises the limit by 1/limit (about +1 per round of calls);
+ * a success much slower than the latency baseline shrinks it a little, and a
+ * throttled or timed-out call halves it. Callers over the limit wait their turn.
+ */
+final class AdaptiveConcurrencyLimit {
+
+    enum Outcome {
+        SUCCESS, THROTTLED, TIMEOUT, FAILED
+    }
+
+    // A call slower than this multiple of the baseline latency counts as congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BASELINE_SMOOTHING = 0.05;
+    private static final double SLOW_DECREASE = 0.95;
+    private static final double THROTTLE_DECREASE = 0.5;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private int maxLimit;
+    private double limit;
+    private int inFlight;
+    private double baselineNanos;
+    private long waits;
+    private long throttles;
+
+    AdaptiveConcurrencyLimit(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, this.maxLimit / 2);
+    }
+
+    void setMaxLimit(int maxLimit) {
+        lock.lock();
+        try {
+            this.maxLimit = Math.max(1, maxLimit);
+            if (limit > this.maxLimit) {
+                limit = this.maxLimit;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a slot under the current limit
+     *
+     * @return false if no slot became free before the deadline
+     */
+    boolean acquire(long deadlineNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                waits++;
+                while (inFlight >= (int) limit) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    released.awaitNanos(remaining);
+                }
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a slot only if one is free now
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give the slot back and adjust the limit from the call's outcome
+     */
+    void release(long latencyNanos, Outcome outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            switch (outcome) {
+                case SUCCESS:
+                    if (baselineNanos == 0) {
+                        baselineNanos = latencyNanos;
+                    }
+                    if (latencyNanos <= baselineNanos * LATENCY_TOLERANCE) {
+                        limit = Math.min(maxLimit, limit + 1.0 / limit);
+                    } else {
+                        limit = Math.max(1.0, limit * SLOW_DECREASE);
+                    }
+                    baselineNanos += (latencyNanos - baselineNanos) * BASELINE_SMOOTHING;
+                    break;
+                case THROTTLED:
+                case TIMEOUT:
+                    throttles++;
+                    limit = Math.max(1.0, limit * THROTTLE_DECREASE);
+                    break;
+                default:
+                    // Other failures say nothing about capacity
+                    break;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String describe() {
+        lock.lock();
+        try {
+            return "limit=" + (int) limit + "/" + maxLimit + ", inFlight=" + inFlight + ", waits=" + waits
+                    + ", throttles=" + throttles + ", baselineMs=" + TimeUnit.NANOSECONDS.toMillis((long) baselineNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.mycompany.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joget.commons.util.SetupManager;
+
+/**
+ * Files of form upload fields, as sent to Gemini
+ * Joget keeps uploaded files under app_formuploads/&lt;table&gt;/&lt;record id&gt;/, and a file
+ * upload field holds the file names separated by semicolons. Content hashes are
+ * remembered by path, size and modification time, so a file attached by several
+ * activities is read for hashing once.
+ */
+final class AttachmentFiles {
+
+    // Inline data counts against the 20 MB request limit after base64 (4/3 of the size)
+    static final long MAX_INLINE_BYTES = 14L * 1024L * 1024L;
+
+    private static final String UPLOAD_DIRECTORY = "app_formuploads";
+    private static final int MAX_HASHES = 1000;
+    private static final long MAP_CHUNK_BYTES = 64L * 1024L * 1024L;
+
+    // Types Gemini accepts that the JDK file name map does not know
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+    static {
+        MIME_TYPES.put("pdf", "application/pdf");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("heic", "image/heic");
+        MIME_TYPES.put("heif", "image/heif");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("csv", "text/csv");
+        MIME_TYPES.put("md", "text/markdown");
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("xml", "text/xml");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("mp3", "audio/mp3");
+        MIME_TYPES.put("wav", "audio/wav");
+        MIME_TYPES.put("ogg", "audio/ogg");
+        MIME_TYPES.put("flac", "audio/flac");
+        MIME_TYPES.put("aac", "audio/aac");
+        MIME_TYPES.put("mp4", "video/mp4");
+        MIME_TYPES.put("mov", "video/quicktime");
+        MIME_TYPES.put("webm", "video/webm");
+    }
+
+    private static final ConcurrentHashMap<String, String> HASHES = new ConcurrentHashMap<>();
+
+    private AttachmentFiles() {
+    }
+
+    /**
+     * Path of an uploaded file of a form record
+     *
+     * @throws IllegalArgumentException for names that could point outside the record's directory
+     */
+    static Path formUploadFile(String tableName, String recordId, String fileName) {
+        if (tableName == null || !tableName.matches("[A-Za-z0-9_]+")) {
+            throw new IllegalArgumentException("Invalid table name: " + tableName);
+        }
+        if (recordId == null || !recordId.matches("[A-Za-z0-9_\\-]+")) {
+            throw new IllegalArgumentException("Invalid record ID: " + recordId);
+        }
+        if (fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\") || fileName.equals("..")) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName);
+        }
+        return Paths.get(SetupManager.getBaseDirectory() + File.separator + UPLOAD_DIRECTORY, tableName, recordId, fileName);
+    }
+
+    /**
+     * MIME type from the file extension, application/octet-stream when unknown
+     */
+    static String mimeType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String type = dot >= 0 ? MIME_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT)) : null;
+        if (type == null) {
+            type = URLConnection.getFileNameMap().getContentTypeFor(fileName);
+        }
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /**
+     * Hex SHA-256 of the file content, read through read-only mappings
+     */
+    static String sha256(Path file) throws IOException {
+        String key = file.toAbsolutePath() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis();
+        String hash = HASHES.get(key);
+        if (hash != null) {
+            return hash;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK_BYTES) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK_BYTES, size - position));
+                digest.update(chunk);
+            }
+        }
+        hash = GeminiResponseCache.toHex(digest.digest());
+        if (HASHES.size() >= MAX_HASHES) {
+            HASHES.clear();
+        }
+        HASHES.put(key, hash);
+        return hash;
+    }
+}
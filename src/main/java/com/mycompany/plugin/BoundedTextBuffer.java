@@ -0,0 +1,113 @@
+package com.mycompany.plugin;
+
+/**
+ * Text buffer with a hard size limit
+ * Text appended past the limit is dropped and the buffer is marked truncated,
+ * so memory stays flat no matter how long the response is. Once anything was dropped,
+ * everything after it is dropped too, so the text never has a gap or a lone surrogate.
+ */
+final class BoundedTextBuffer implements TextSink {
+
+    private final StringBuilder buffer;
+    private final int maxChars;
+    private boolean truncated;
+    private long droppedChars;
+
+    BoundedTextBuffer(int maxChars) {
+        this.maxChars = Math.max(1, maxChars);
+        this.buffer = new StringBuilder(Math.min(this.maxChars, 8192));
+    }
+
+    /**
+     * Append text, keeping at most maxChars in total
+     *
+     * @return false if some of the text was dropped
+     */
+    boolean append(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return true;
+        }
+        int room = truncated ? 0 : maxChars - buffer.length();
+        if (text.length() <= room) {
+            buffer.append(text);
+            return true;
+        }
+        if (room > 0) {
+            int end = room;
+            // Do not split a surrogate pair at the cut
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            buffer.append(text, 0, end);
+            droppedChars += text.length() - end;
+        } else {
+            droppedChars += text.length();
+        }
+        truncate();
+        return false;
+    }
+
+    @Override
+    public void append(char c) {
+        int room = truncated ? 0 : maxChars - buffer.length();
+        if (room > 1 || (room == 1 && !Character.isHighSurrogate(c))) {
+            buffer.append(c);
+        } else {
+            droppedChars++;
+            truncate();
+        }
+    }
+
+    @Override
+    public void append(char[] chars, int offset, int length) {
+        int room = truncated ? 0 : maxChars - buffer.length();
+        if (length <= room) {
+            buffer.append(chars, offset, length);
+            return;
+        }
+        if (room > 0) {
+            int end = room;
+            if (Character.isHighSurrogate(chars[offset + end - 1])) {
+                end--;
+            }
+            buffer.append(chars, offset, end);
+            droppedChars += length - end;
+        } else {
+            droppedChars += length;
+        }
+        truncate();
+    }
+
+    /**
+     * Stop keeping text. A high surrogate at the end lost its pair with the dropped text
+     * (it arrived in an earlier append), so it goes too.
+     */
+    private void truncate() {
+        if (!truncated) {
+            truncated = true;
+            int last = buffer.length() - 1;
+            if (last >= 0 && Character.isHighSurrogate(buffer.charAt(last))) {
+                buffer.setLength(last);
+                droppedChars++;
+            }
+        }
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    long getDroppedChars() {
+        return droppedChars;
+    }
+
+    @Override
+    public int length() {
+        return buffer.length();
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+}
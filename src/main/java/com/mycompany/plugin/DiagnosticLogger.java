@@ -0,0 +1,240 @@
+package com.mycompany.plugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Level-controlled diagnostic logging for the plugin
+ * Messages are suppliers and are only built when their level is enabled. Payloads
+ * (prompts, responses, variable values) are cut to a configurable size, and debug
+ * output can be sampled per process. Lines go into a bounded buffer that a background
+ * thread writes to the Joget log, so the calling thread never waits on log I/O; when
+ * the buffer is full, lines are dropped and counted instead. After {@link #shutdown(long)}
+ * no writer thread is started; lines are written on the calling thread until {@link #start()}.
+ */
+final class DiagnosticLogger {
+
+    enum Level {
+        OFF, ERROR, INFO, DEBUG, TRACE;
+
+        static Level parse(String value, Level defaultLevel) {
+            if (value == null || value.trim().isEmpty()) {
+                return defaultLevel;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return defaultLevel;
+            }
+        }
+    }
+
+    static final Level DEFAULT_LEVEL = Level.ERROR;
+    static final int DEFAULT_MAX_PAYLOAD_CHARS = 500;
+    static final int DEFAULT_SAMPLE_PERCENT = 100;
+
+    private static final int BUFFER_CAPACITY = 4096;
+    private static final BlockingQueue<LogLine> BUFFER = new ArrayBlockingQueue<>(BUFFER_CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Object WRITER_LOCK = new Object();
+    private static volatile Thread writer;
+    private static volatile boolean stopped;
+
+    /**
+     * One buffered log line
+     */
+    private static final class LogLine {
+        final String className;
+        final Level level;
+        final String message;
+        final Throwable error;
+
+        LogLine(String className, Level level, String message, Throwable error) {
+            this.className = className;
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private final String className;
+    private final Level level;
+    private final int maxPayloadChars;
+
+    private DiagnosticLogger(String className, Level level, int maxPayloadChars) {
+        this.className = className;
+        this.level = level;
+        this.maxPayloadChars = maxPayloadChars;
+    }
+
+    /**
+     * @param samplePercent share of processes (0-100) that log above ERROR level
+     * @param sampleKey key that decides sampling, e.g. the process ID; null means always sampled
+     */
+    static DiagnosticLogger create(String className, Level level, int maxPayloadChars, int samplePercent, String sampleKey) {
+        Level effective = level;
+        if (level.compareTo(Level.ERROR) > 0 && !isSampled(samplePercent, sampleKey)) {
+            // Errors are always logged; sampling only thins out the chatty levels
+            effective = Level.ERROR;
+        }
+        return new DiagnosticLogger(className, effective, maxPayloadChars);
+    }
+
+    private static boolean isSampled(int samplePercent, String sampleKey) {
+        if (samplePercent >= 100 || sampleKey == null) {
+            return true;
+        }
+        if (samplePercent <= 0) {
+            return false;
+        }
+        // Same key, same decision: all lines of a sampled process are kept together
+        return Math.floorMod(sampleKey.hashCode() * 0x9E3779B9, 100) < samplePercent;
+    }
+
+    boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.compareTo(level) <= 0;
+    }
+
+    void error(Supplier<String> message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    void info(Supplier<String> message) {
+        log(Level.INFO, message, null);
+    }
+
+    void debug(Supplier<String> message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    void trace(Supplier<String> message) {
+        log(Level.TRACE, message, null);
+    }
+
+    /**
+     * Payload text cut to the configured size, for use inside a message supplier
+     */
+    String payload(String value) {
+        if (value == null || maxPayloadChars <= 0 || value.length() <= maxPayloadChars) {
+            return value;
+        }
+        int end = maxPayloadChars;
+        if (Character.isHighSurrogate(value.charAt(end - 1))) {
+            end--;
+        }
+        return value.substring(0, end) + "... (" + (value.length() - end) + " more chars)";
+    }
+
+    private void log(Level messageLevel, Supplier<String> message, Throwable error) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        String text;
+        try {
+            text = "[" + messageLevel + "] " + message.get();
+        } catch (RuntimeException e) {
+            text = "[" + messageLevel + "] (message failed: " + e + ")";
+        }
+        LogLine line = new LogLine(className, messageLevel, text, error);
+        if (stopped) {
+            write(line);
+            return;
+        }
+        if (!BUFFER.offer(line)) {
+            DROPPED.incrementAndGet();
+            return;
+        }
+        ensureWriter();
+    }
+
+    private static void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (WRITER_LOCK) {
+            if (writer == null && !stopped) {
+                Thread thread = new Thread(DiagnosticLogger::drain, "gemini-log-writer");
+                thread.setDaemon(true);
+                thread.start();
+                writer = thread;
+            }
+        }
+    }
+
+    private static void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                write(BUFFER.take());
+            }
+        } catch (InterruptedException e) {
+            // stopping: write what is left below
+        }
+        writeBuffered();
+    }
+
+    private static void write(LogLine line) {
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) {
+            LogUtil.info(line.className, "[" + Level.INFO + "] " + dropped + " diagnostic log line(s) dropped, buffer was full");
+        }
+        if (line.level == Level.ERROR) {
+            LogUtil.error(line.className, line.error, line.message);
+        } else {
+            LogUtil.info(line.className, line.message);
+        }
+    }
+
+    /**
+     * Buffer lines and write them on the background thread again after a shutdown
+     */
+    static void start() {
+        synchronized (WRITER_LOCK) {
+            stopped = false;
+        }
+        if (!BUFFER.isEmpty()) {
+            ensureWriter();
+        }
+    }
+
+    /**
+     * Stop the writer thread after it has written the buffered lines, waiting up to timeoutMillis
+     */
+    static void shutdown(long timeoutMillis) {
+        Thread thread;
+        synchronized (WRITER_LOCK) {
+            stopped = true;
+            thread = writer;
+            writer = null;
+        }
+        if (thread == null) {
+            writeBuffered();
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!BUFFER.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            thread.interrupt();
+            thread.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write lines that were buffered while no writer could take them
+     */
+    private static void writeBuffered() {
+        LogLine line;
+        while ((line = BUFFER.poll()) != null) {
+            write(line);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.mycompany.plugin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joget.apps.app.service.AppUtil;
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Reads and writes form table rows through the formDataDao bean
+ * Like {@link WorkflowVariableAccess}, the bean's methods are resolved once per bundle
+ * lifecycle and kept as method handles. Rows are handled through the standard collection
+ * types Joget's row classes extend (FormRowSet is a List, FormRow a Properties), so the
+ * plugin needs no import of the form packages.
+ */
+final class FormRowAccess {
+
+    private static final String CLASS_NAME = FormRowAccess.class.getName();
+    private static final String FORM_DATA_DAO = "org.joget.apps.form.dao.FormDataDao";
+
+    private static final Object LOCK = new Object();
+    private static volatile FormRowAccess shared;
+
+    private final MethodHandle find;
+    private final MethodHandle loadRow;
+    private final MethodHandle saveOrUpdate;
+
+    /**
+     * Rows loaded from a form table, written back with {@link FormRowAccess#save}
+     */
+    static final class Rows {
+        private final Object rowSet;
+        private final List<Map<Object, Object>> rows;
+
+        private Rows(Object rowSet, List<Map<Object, Object>> rows) {
+            this.rowSet = rowSet;
+            this.rows = rows;
+        }
+
+        int size() {
+            return rows.size();
+        }
+
+        /**
+         * Column values of a row, as text
+         */
+        Map<String, String> values(int index) {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> entry : rows.get(index).entrySet()) {
+                values.put(String.valueOf(entry.getKey()), entry.getValue() != null ? entry.getValue().toString() : "");
+            }
+            return values;
+        }
+
+        /**
+         * Record ID of a row
+         */
+        String id(int index) {
+            Object id = rows.get(index).get("id");
+            return id != null ? id.toString() : null;
+        }
+
+        void set(int index, String column, String value) {
+            rows.get(index).put(column, value);
+        }
+    }
+
+    private FormRowAccess(Object formDataDao) throws ReflectiveOperationException {
+        Class<?> daoType = publicType(formDataDao.getClass(), FORM_DATA_DAO);
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        find = lookup.unreflect(method(daoType, "find", 8)).bindTo(formDataDao);
+        loadRow = lookup.unreflect(method(daoType, "load", 3)).bindTo(formDataDao);
+        saveOrUpdate = lookup.unreflect(method(daoType, "saveOrUpdate", 3)).bindTo(formDataDao);
+    }
+
+    /**
+     * Access for the current bundle lifecycle, resolved on first use
+     *
+     * @throws IllegalStateException if the formDataDao bean or its methods are not available
+     */
+    static FormRowAccess shared() {
+        FormRowAccess access = shared;
+        if (access == null) {
+            synchronized (LOCK) {
+                access = shared;
+                if (access == null) {
+                    access = resolve();
+                    shared = access;
+                }
+            }
+        }
+        return access;
+    }
+
+    static void reset() {
+        synchronized (LOCK) {
+            shared = null;
+        }
+    }
+
+    private static FormRowAccess resolve() {
+        try {
+            Object appContext = AppUtil.getApplicationContext();
+            Object formDataDao = appContext.getClass()
+                    .getMethod("getBean", String.class)
+                    .invoke(appContext, "formDataDao");
+            FormRowAccess access = new FormRowAccess(formDataDao);
+            LogUtil.info(CLASS_NAME, "Resolved FormDataDao methods");
+            return access;
+        } catch (ReflectiveOperationException | NullPointerException e) {
+            throw new IllegalStateException("FormDataDao is not available: " + e, e);
+        }
+    }
+
+    private static Class<?> publicType(Class<?> beanClass, String interfaceName) {
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()) {
+            for (Class<?> candidate : type.getInterfaces()) {
+                if (candidate.getName().equals(interfaceName)) {
+                    return candidate;
+                }
+            }
+        }
+        return beanClass;
+    }
+
+    private static Method method(Class<?> type, String name, int parameterCount) throws NoSuchMethodException {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == parameterCount
+                    && method.getParameterTypes()[0] == String.class) {
+                return method;
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + name + " with " + parameterCount + " parameters");
+    }
+
+    /**
+     * Rows of the table, all of them or those whose column equals the value
+     *
+     * @param column column to filter on, e.g. a foreign key; null or empty for all rows
+     */
+    @SuppressWarnings("unchecked")
+    Rows load(String formDefId, String tableName, String column, String value) {
+        String condition = null;
+        Object[] params = null;
+        if (column != null && !column.isEmpty()) {
+            if (!column.matches("[A-Za-z0-9_]+")) {
+                throw new IllegalArgumentException("Invalid column name: " + column);
+            }
+            condition = "WHERE e.customProperties." + column + " = ?";
+            params = new Object[] {value};
+        }
+        Object rowSet;
+        try {
+            rowSet = find.invoke(formDefId, tableName, condition, params, (String) null, (Boolean) null, (Integer) null, (Integer) null);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not load rows of " + tableName + ": " + e, e);
+        }
+        List<Map<Object, Object>> rows = rowSet instanceof List ? (List<Map<Object, Object>>) rowSet
+                : Collections.<Map<Object, Object>>emptyList();
+        return new Rows(rowSet, rows);
+    }
+
+    /**
+     * Column values of one row, as text
+     *
+     * @return the values, or null if there is no row with that ID
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, String> loadRow(String formDefId, String tableName, String id) {
+        Object row;
+        try {
+            row = loadRow.invoke(formDefId, tableName, id);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not load row " + id + " of " + tableName + ": " + e, e);
+        }
+        if (!(row instanceof Map)) {
+            return null;
+        }
+        return new Rows(null, Collections.singletonList((Map<Object, Object>) row)).values(0);
+    }
+
+    /**
+     * Save all rows back in one call
+     */
+    void save(String formDefId, String tableName, Rows rows) {
+        if (rows.rowSet == null || rows.rows.isEmpty()) {
+            return;
+        }
+        try {
+            saveOrUpdate.invoke(formDefId, tableName, rows.rowSet);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not save rows of " + tableName + ": " + e, e);
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package com.mycompany.plugin;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
+import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.service.AppUtil;
+import org.joget.commons.util.HostManager;
 import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.DefaultApplicationPlugin;
 import org.joget.workflow.model.WorkflowAssignment;
@@ -26,20 +43,71 @@ import org.joget.workflow.model.WorkflowAssignment;
 public class GeminiAIProcessTool extends DefaultApplicationPlugin {
     
     private final String ClassName = getClassName();
-    private static final boolean IS_DEBUG_MODE = true; // Set to true for debugging, false for production
+    private static final int DEFAULT_MAX_RESPONSE_CHARS = 1000000;
+    private static final int DEFAULT_STREAM_FLUSH_INTERVAL = 2000;
+    private static final int ASYNC_COMPLETION_ATTEMPTS = 20;
+    private static final long ASYNC_COMPLETION_RETRY_DELAY = 500L;
+    private static final long CHUNKED_THRESHOLD_BYTES = 1024L * 1024L; // larger request bodies are sent chunked
+    private static final String DEFAULT_API_BASE_URL = "https://generativelanguage.googleapis.com/v1beta/";
+    private static final int TOKEN_BUDGET_PASSES = 3;
+    private static final int MIN_CONTEXT_TOKENS = 16; // a context variable cut shorter than this is dropped instead
+    private static final String TRUNCATION_MARK = " [...]";
+    private static final int TRUNCATION_MARK_TOKENS = 4;
+    private static final String BATCH_ITEM_PREFIX = "item.";
+    private static final int DEFAULT_BATCH_MAX_ITEMS = 1000;
+    private static final int DEFAULT_BATCH_POLL_SECONDS = 60;
+    private static final long BATCH_MAX_WAIT_MILLIS = 48L * 60L * 60L * 1000L; // the batch API finishes jobs within a day
+    private static final int UPLOAD_ATTEMPTS = 3;
+    private static final long FILE_PROCESSING_POLL_MILLIS = 2000L;
+    private static final long FILE_PROCESSING_MAX_WAIT_MILLIS = 5L * 60L * 1000L;
+    private static final int SEMANTIC_CACHE_MAX_TOKENS = 2000;
+    private static final int MAX_ERROR_BODY_BYTES = 65536;
+    private static final int DEFAULT_STRUCTURED_OUTPUT_ATTEMPTS = 3;
+    // Joget's own columns of a form row, not part of a batch item
+    private static final List<String> FORM_SYSTEM_COLUMNS = Arrays.asList(
+            "id", "dateCreated", "dateModified", "createdBy", "createdByName", "modifiedBy", "modifiedByName");
     
-    // Debug logging method
-    private void debugLog(String message) {
-        if (IS_DEBUG_MODE) {
-            LogUtil.info(ClassName, "[DEBUG] " + message);
+    private DiagnosticLogger logger;
+    private GeminiKeyBalancer.Lease keyLease;
+    private Map<String, String> activityVariables;
+    private boolean activityVariablesLoaded;
+    
+    // Diagnostic logger from the logging properties, created per execution for sampling
+    private DiagnosticLogger getLogger() {
+        DiagnosticLogger current = logger;
+        if (current == null) {
+            current = createLogger(null);
+            logger = current;
         }
+        return current;
+    }
+    
+    private DiagnosticLogger createLogger(String processId) {
+        return DiagnosticLogger.create(ClassName,
+                DiagnosticLogger.Level.parse(getPropertyString("logLevel"), DiagnosticLogger.DEFAULT_LEVEL),
+                getIntProperty("logPayloadChars", DiagnosticLogger.DEFAULT_MAX_PAYLOAD_CHARS),
+                getIntProperty("logSampleRate", DiagnosticLogger.DEFAULT_SAMPLE_PERCENT),
+                processId);
+    }
+    
+    // Debug logging method; the message is only built when debug logging is enabled
+    private void debugLog(Supplier<String> message) {
+        getLogger().debug(message);
+    }
+    
+    // Payload logging (prompts, responses, variable values), only at trace level
+    private void traceLog(Supplier<String> message) {
+        getLogger().trace(message);
+    }
+    
+    // Payload cut to the configured size, for use inside log messages
+    private String payload(String value) {
+        return getLogger().payload(value);
     }
     
     // Debug error logging method
     private void debugError(String message, Exception e) {
-        if (IS_DEBUG_MODE) {
-            LogUtil.error(ClassName, e, "[DEBUG ERROR] " + message);
-        }
+        getLogger().error(() -> message, e);
     }
     
     @Override
@@ -87,60 +155,63 @@ public class GeminiAIProcessTool extends DefaultApplicationPlugin {
      */
     @Override
     public Object execute(Map properties) {
-        debugLog("=== Gemini AI Process Tool Starting ===");
-        
+        GeminiRuntime runtime = GeminiRuntime.shared();
+        if (!runtime.enter()) {
+            return "ERROR: Gemini AI Process Tool is stopping, please retry";
+        }
+        try {
+            return executeCall(properties);
+        } finally {
+            closeKeyLease();
+            runtime.exit();
+        }
+    }
+
+    private Object executeCall(Map<?, ?> properties) {
         try {
+            keyLease = null;
             WorkflowAssignment assignment = (WorkflowAssignment) properties.get("workflowAssignment");
+            logger = createLogger(assignment != null ? assignment.getProcessId() : null);
+            activityVariables = null;
+            activityVariablesLoaded = false;
+            debugLog(() -> "=== Gemini AI Process Tool Starting ===");
             
-            // Get configuration from properties
+            // Get configuration from properties, with defaults for empty values
             String apiKey = getPropertyString("apiKey");
-            String model = getPropertyString("model");
-            String systemInstruction = getPropertyString("systemInstruction");
-            String outputVariable = getPropertyString("outputVariable");
-            String userPromptVariable = getPropertyString("userPromptVariable");
+            String model = getPropertyOrDefault("model", "gemini-1.5-flash");
+            String systemInstruction = getPropertyOrDefault("systemInstruction", "You are a helpful and concise AI assistant.");
+            String outputVariable = getPropertyOrDefault("outputVariable", "aiResponse");
+            String userPromptVariable = getPropertyOrDefault("userPromptVariable", "userprompt");
             String additionalContext = getPropertyString("additionalContext");
             String customPromptTemplate = getPropertyString("customPromptTemplate");
             
-            debugLog("Configuration loaded:");
-            debugLog("- API Key: " + (apiKey != null && !apiKey.isEmpty() ? "PROVIDED" : "MISSING"));
-            debugLog("- Model: " + model);
-            debugLog("- Output Variable: '" + outputVariable + "'");
-            debugLog("- User Prompt Variable: '" + userPromptVariable + "'");
-            debugLog("- System Instruction: " + systemInstruction);
-            debugLog("- Additional Context: " + additionalContext);
-            debugLog("- Custom Prompt Template: " + customPromptTemplate);
-            
             // Validate required fields
             if (apiKey == null || apiKey.trim().isEmpty()) {
                 debugError("ERROR: Gemini API Key is required", null);
                 return "ERROR: Gemini API Key is required. Please configure it in the plugin properties.";
             }
             
-            // Set defaults
-            if (model == null || model.trim().isEmpty()) {
-                model = "gemini-1.5-flash";
-            }
-            
-            if (systemInstruction == null || systemInstruction.trim().isEmpty()) {
-                systemInstruction = "You are a helpful and concise AI assistant.";
-            }
-            
-            if (outputVariable == null || outputVariable.trim().isEmpty()) {
-                outputVariable = "aiResponse";
-            }
-            
-            if (userPromptVariable == null || userPromptVariable.trim().isEmpty()) {
-                userPromptVariable = "userprompt";
+            debugLog(() -> "Configuration: model=" + model + ", outputVariable='" + outputVariable
+                    + "', userPromptVariable='" + userPromptVariable + "', additionalContext=" + additionalContext);
+            traceLog(() -> "System instruction: " + payload(systemInstruction));
+            traceLog(() -> "Custom prompt template: " + payload(customPromptTemplate));
+
+            // Batch mode: one prompt per list item instead of a single prompt
+            String batchSource = getPropertyString("batchSource");
+            if ("variable".equals(batchSource) || "formTable".equals(batchSource)) {
+                return executeBatch(apiKey, model, systemInstruction, outputVariable, userPromptVariable,
+                        customPromptTemplate, "formTable".equals(batchSource), assignment);
             }
 
-            debugLog("Using final configuration:");
-            debugLog("- Model: " + model);
-            debugLog("- Output Variable: '" + outputVariable + "'");
-            debugLog("- User Prompt Variable: '" + userPromptVariable + "'");
+            // Spread the calls over the configured keys; the lease is held until the call is done
+            List<GeminiKeyBalancer.Key> keys = getApiKeys(apiKey);
+            GeminiKeyBalancer balancer = GeminiRuntime.shared().getKeyBalancer();
+            keyLease = balancer.acquire(keys);
+            debugLog(() -> "API keys: " + balancer.describe(keys) + "; runtime: " + GeminiRuntime.shared().describe());
 
             // Build the final prompt
             String finalPrompt = buildFinalPrompt(userPromptVariable, additionalContext, customPromptTemplate, assignment);
-            debugLog("Final prompt: " + finalPrompt);
+            traceLog(() -> "Final prompt: " + payload(finalPrompt));
             
             // Validate that we got a valid prompt
             if (finalPrompt == null || finalPrompt.trim().isEmpty()) {
@@ -148,24 +219,54 @@ public class GeminiAIProcessTool extends DefaultApplicationPlugin {
                 return "ERROR: No valid prompt could be constructed. Please check your variable configuration.";
             }
 
-            // Call Gemini API
-            debugLog("Calling Gemini API...");
-            String response = callGeminiAPI(apiKey, model, finalPrompt, systemInstruction);
-            debugLog("Gemini API response received: " + (response != null ? response.substring(0, Math.min(100, response.length())) + "..." : "NULL"));
+            GeminiRequest request = buildGeminiRequest(model, systemInstruction, finalPrompt, assignment);
             
-            // Store the AI response in workflow variable if we have a valid response and assignment
+            // Fit the request into the input token budget before anything is sent
+            GeminiModelLimits limits = GeminiModelLimits.forModel(model);
+            request = fitTokenBudget(request, limits, userPromptVariable, additionalContext, customPromptTemplate, assignment);
+            try {
+                request = attachFiles(keyLease.getApiKey(), request, assignment);
+            } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                debugError("ERROR: Could not attach files", e);
+                return "ERROR: Could not attach files: " + e.getMessage();
+            }
+            int estimatedTokens = TokenEstimator.estimate(request);
+            if (limits != null && estimatedTokens > limits.getInputTokens()) {
+                debugError("ERROR: Prompt needs about " + estimatedTokens + " tokens, model " + model + " accepts "
+                        + limits.getInputTokens(), null);
+                return "ERROR: Prompt is too large: about " + estimatedTokens + " tokens, the model accepts "
+                        + limits.getInputTokens() + ". Please shorten the prompt variables.";
+            }
+
+            // Async mode: hand the call to the plugin executor and free this workflow thread
+            if ("async".equals(getPropertyString("executionMode")) && assignment != null) {
+                String queued = submitAsync(request, assignment, outputVariable, estimatedTokens);
+                if (queued != null) {
+                    return queued;
+                }
+                debugLog(() -> "Async queue is full, running the call on the workflow thread");
+            }
+
+            long started = System.currentTimeMillis();
+            GeminiResponse result = generate(keyLease.getApiKey(), request, assignment, outputVariable, false);
+            long latency = System.currentTimeMillis() - started;
+            String response = result != null ? result.getText() : null;
+            traceLog(() -> "Gemini API response received: " + (response != null ? payload(response) : "NULL"));
+            
+            // Store the AI response and its metadata in workflow variables if we have a valid response and assignment
             if (response != null && !response.startsWith("ERROR:") && assignment != null) {
                 try {
-                    debugLog("Attempting to store response in workflow variable: '" + outputVariable + "'");
-                    setWorkflowVariable(assignment.getActivityId(), outputVariable, response);
-                    debugLog("SUCCESS: Stored AI response in workflow variable: '" + outputVariable + "'");
+                    Map<String, String> outputs = outputValues(outputVariable, response, result, latency, estimatedTokens);
+                    debugLog(() -> "Attempting to store response in workflow variables: " + outputs.keySet());
+                    setOutputVariables(assignment.getActivityId(), assignment.getProcessId(), outputs);
+                    debugLog(() -> "SUCCESS: Stored AI response in workflow variable: '" + outputVariable + "'");
                     
                 } catch (ClassCastException | NullPointerException e) {
                     debugError("FAILED to store response in workflow variable: '" + outputVariable + "'", e);
                     // Don't fail the entire process, just log the error
                 }
             } else {
-                debugLog("WARNING: Cannot store response - response=" + response + ", assignment=" + assignment);
+                debugLog(() -> "WARNING: Cannot store response - response=" + payload(response) + ", assignment=" + assignment);
             }
             
             return response != null ? response : "ERROR: Failed to get a valid response from Gemini API";
@@ -182,335 +283,1805 @@ public class GeminiAIProcessTool extends DefaultApplicationPlugin {
         }
     }
 
+    private void closeKeyLease() {
+        if (keyLease != null) {
+            keyLease.close();
+            keyLease = null;
+        }
+    }
 
     /**
-     * Set workflow variable
+     * API keys from the primary key and the additional keys, each with its quota
      */
-    private void setWorkflowVariable(String activityId, String variableName, String value) {
-        try {
-            Class<?> appUtilClass = Class.forName("org.joget.apps.app.service.AppUtil");
-            Object appContext = appUtilClass.getMethod("getApplicationContext").invoke(null);
-
-            Object workflowManager = appContext.getClass()
-                    .getMethod("getBean", String.class)
-                    .invoke(appContext, "workflowManager");
-
-            workflowManager.getClass()
-                    .getMethod("activityVariable", String.class, String.class, Object.class)
-                    .invoke(workflowManager, activityId, variableName, value);
-
-        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | 
-                 java.lang.reflect.InvocationTargetException e) {
-            LogUtil.error(getClassName(), e,
-                    "Could not set workflow variable using WorkflowManager: " + e.getMessage());
-            throw new RuntimeException("Failed to set workflow variable", e);
-        }
+    private List<GeminiKeyBalancer.Key> getApiKeys(String primaryKey) {
+        return GeminiKeyBalancer.parse(primaryKey, getPropertyString("additionalApiKeys"),
+                getIntProperty("requestsPerMinute", 0));
     }
 
     /**
-     * Calls the Google Gemini API with the user prompt
+     * Get the response for a request: from the response cache, or by calling the API.
+     * A cached response carries only its text.
+     *
+     * @param async true when running on a plugin thread after the activity has completed
+     * @return the response, or null if the call failed
      */
-    private String callGeminiAPI(String apiKey, String model, String prompt, String systemInstruction) {
-        try {
-            debugLog("Starting Gemini API call with model: " + model);
-            
-            // Construct API URL
-            String apiUrl = "https://generativelanguage.googleapis.com/v1beta/models/" + model + ":generateContent?key=" + apiKey;
-            debugLog("API URL constructed");
-            
-            // Create request payload using string building
-            String requestBody = "{"
-                + "\"contents\":[{"
-                + "\"parts\":[{\"text\":\"" + escapeJson(prompt) + "\"}]"
-                + "}]";
-                
-            // Add system instruction if provided
-            if (systemInstruction != null && !systemInstruction.trim().isEmpty()) {
-                requestBody += ",\"systemInstruction\":{"
-                    + "\"parts\":[{\"text\":\"" + escapeJson(systemInstruction) + "\"}]"
-                    + "}";
-            }
-            requestBody += "}";
-            
-            debugLog("Request payload prepared");
-            
-            // Make HTTP request
-            URL url = new URI(apiUrl).toURL();
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000); // 30 seconds
-            connection.setReadTimeout(60000);    // 60 seconds
-            
-            // Send request
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
-            
-            debugLog("Request sent to Gemini API");
-            
-            // Read response
-            int responseCode = connection.getResponseCode();
-            debugLog("HTTP Response Code: " + responseCode);
-            
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                    responseCode == 200 ? connection.getInputStream() : connection.getErrorStream(), "utf-8"))) {
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
+    private GeminiResponse generate(String apiKey, GeminiRequest request, WorkflowAssignment assignment, String outputVariable, boolean async) {
+        GeminiResponseSchema schema = getResponseSchema();
+
+        // Serve byte-identical requests from the response cache
+        GeminiResponseCache cache = GeminiResponseCache.shared();
+        boolean useCache = !"true".equalsIgnoreCase(getPropertyString("bypassCache"));
+        boolean useDiskCache = "true".equalsIgnoreCase(getPropertyString("cacheDiskTier"));
+        String cacheKey = null;
+        if (useCache) {
+            cache.requireLimits(getIntProperty("cacheMaxEntries", GeminiResponseCache.DEFAULT_MAX_ENTRIES),
+                    getIntProperty("cacheMaxMemoryMb", GeminiResponseCache.DEFAULT_MAX_MEMORY_MB));
+            cacheKey = responseKey(request.cacheKey());
+            String cached = cache.get(cacheKey, useDiskCache);
+            boolean hit = cached != null;
+            debugLog(() -> "Response cache " + (hit ? "HIT" : "MISS") + ": " + cache.getStats());
+            if (hit) {
+                GeminiResponse response = new GeminiResponse();
+                response.setText(cached);
+                if (applySchema(response, schema) == null) {
+                    return response;
                 }
             }
-            
-            if (responseCode == 200) {
-                debugLog("Successful API response received");
-                String responseStr = response.toString();
-                debugLog("Full API Response: " + responseStr); // Add this to see actual response
-                
-                // Parse response using simple string parsing
-                String aiResponse = extractTextFromGeminiResponse(responseStr);
-                if (aiResponse != null) {
-                    debugLog("AI Response received successfully");
-                    return aiResponse;
-                } else {
-                    debugError("ERROR: Could not extract text from Gemini API response", null);
-                    return null;
+        }
+
+        // Serve paraphrases of an answered prompt through the semantic cache
+        GeminiSemanticCache semantic = GeminiSemanticCache.shared();
+        int semanticEntries = getIntProperty("semanticCacheMaxEntries", GeminiSemanticCache.DEFAULT_MAX_ENTRIES);
+        String scope = null;
+        float[] vector = null;
+        if (useCache && "true".equalsIgnoreCase(getPropertyString("semanticCache"))
+                && request.getPrompt() != null && request.getAttachments().isEmpty()) {
+            String embeddingModel = getPropertyOrDefault("semanticCacheEmbeddingModel", GeminiSemanticCache.DEFAULT_EMBEDDING_MODEL).trim();
+            vector = embed(apiKey, embeddingModel, request.getPrompt());
+            if (vector != null) {
+                scope = responseKey(request.semanticScope(embeddingModel));
+                Double threshold = getDoubleProperty("semanticCacheThreshold");
+                GeminiSemanticCache.Match match = semantic.find(scope, vector,
+                        threshold != null ? threshold : GeminiSemanticCache.DEFAULT_THRESHOLD, semanticEntries);
+                String answer = match != null ? cache.get(match.getResponseKey(), true) : null;
+                if (match != null && answer == null) {
+                    // The answer expired or was evicted from the response cache
+                    semantic.remove(match);
+                }
+                debugLog(() -> "Semantic cache " + (answer != null ? "HIT (similarity " + match.getSimilarity() + ")" : "MISS")
+                        + ": " + semantic.describe());
+                if (answer != null) {
+                    GeminiResponse response = new GeminiResponse();
+                    response.setText(answer);
+                    if (applySchema(response, schema) == null) {
+                        return response;
+                    }
                 }
+            }
+        }
+
+        // Call Gemini API; a structured response that does not match the schema is asked for again
+        int attempts = schema != null ? Math.max(1, getIntProperty("structuredOutputAttempts", DEFAULT_STRUCTURED_OUTPUT_ATTEMPTS)) : 1;
+        GeminiRequest sent = useContextCache(apiKey, request);
+        GeminiResponse answer;
+        for (int attempt = 1; ; attempt++) {
+            debugLog(() -> "Calling Gemini API...");
+            if ("streaming".equals(getPropertyString("responseMode"))) {
+                answer = streamGeminiAPI(apiKey, sent, assignment, outputVariable, async);
             } else {
-                debugError("API call failed with HTTP " + responseCode + ": " + response.toString(), null);
+                answer = callGeminiAPI(apiKey, sent);
+            }
+            if (answer == null || answer.getText() == null) {
                 return null;
             }
-            
-        } catch (IOException e) {
-            debugError("Network error calling Gemini API: " + e.getMessage(), e);
+            String problem = applySchema(answer, schema);
+            if (problem == null) {
+                break;
+            }
+            if (attempt >= attempts) {
+                answer.setText("ERROR: Response does not match the response schema after " + attempts + " attempt(s): " + problem);
+                return answer;
+            }
+            int next = attempt + 1;
+            debugLog(() -> "WARNING: Response does not match the response schema (" + problem + "), attempt " + next + " of " + attempts);
+            // The corrected answer is a longer conversation; it is sent in full
+            sent = request.withFollowUp(responseJson(answer), "That response does not match the response schema: " + problem
+                    + ". Reply again with only the corrected JSON object.");
+        }
+        GeminiResponse result = answer;
+        if (result.getFinishReason() != null && !"STOP".equals(result.getFinishReason())) {
+            debugLog(() -> "WARNING: Generation stopped early, finishReason=" + result.getFinishReason());
+        }
+        // A fallback answer is not what the configured model would have said; do not cache it
+        boolean fromFallback = result.getModel() != null && !result.getModel().equals(request.getModel());
+        if (fromFallback) {
+            debugLog(() -> "Response served by fallback model " + result.getModel());
+        }
+        // A stored response stays in its file; the cache would hold only the reference
+        if (useCache && !fromFallback && !result.isStored()) {
+            int ttl = getIntProperty("cacheTtl", GeminiResponseCache.DEFAULT_TTL_SECONDS);
+            // The semantic index only holds keys; its answers must survive memory eviction
+            cache.put(cacheKey, result.getText(), ttl, useDiskCache || vector != null);
+            if (vector != null && ttl > 0) {
+                semantic.add(scope, vector, cacheKey, System.currentTimeMillis() + ttl * 1000L, semanticEntries);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Schema for structured output, or null when the tool returns plain text
+     *
+     * @throws IllegalArgumentException if the configured schema is not valid
+     */
+    private GeminiResponseSchema getResponseSchema() {
+        if (!"true".equalsIgnoreCase(getPropertyString("structuredOutput"))) {
             return null;
-        } catch (URISyntaxException e) {
-            debugError("Invalid API URL: " + e.getMessage(), e);
+        }
+        String schema = getPropertyString("responseSchema");
+        if (schema == null || schema.trim().isEmpty()) {
+            throw new IllegalArgumentException("Structured output needs a response schema");
+        }
+        return GeminiResponseSchema.compile(schema.trim());
+    }
+
+    /**
+     * Validate a structured response and keep its top-level fields on it
+     *
+     * @return null when the response matches (or no schema is set), otherwise what is wrong
+     */
+    private String applySchema(GeminiResponse response, GeminiResponseSchema schema) {
+        if (schema == null) {
             return null;
-        } catch (Exception e) {
-            debugError("Unexpected error calling Gemini API: " + e.getMessage(), e);
+        }
+        String json = responseJson(response);
+        if (json == null) {
+            return "the stored response is not available";
+        }
+        try {
+            response.setFields(schema.read(json));
+            traceLog(() -> "Structured response fields: " + response.getFields().keySet());
             return null;
+        } catch (IOException e) {
+            return e.getMessage();
         }
-              
     }
-    
+
     /**
-     * Build the final prompt for Gemini AI using user prompt variable, additional context, and custom template
+     * Full response text, read back from its file when the response is stored
      */
-    private String buildFinalPrompt(String userPromptVariable, String additionalContext, String customPromptTemplate, WorkflowAssignment assignment) {
-        try {
-            StringBuilder promptBuilder = new StringBuilder();
-            
-            // If we have a custom template, use it
-            if (customPromptTemplate != null && !customPromptTemplate.trim().isEmpty()) {
-                debugLog("Using custom prompt template");
-                String processedTemplate = processHashVariables(customPromptTemplate, assignment);
-                return processedTemplate;
-            }
+    private static String responseJson(GeminiResponse response) {
+        return response.isStored() ? GeminiResponseStore.shared().read(response.getText(), 0) : response.getText();
+    }
 
-            // Otherwise, build prompt from user prompt variable and additional context
-            String userPrompt = getWorkflowVariable(assignment, userPromptVariable);
-            debugLog("Retrieved user prompt from variable '" + userPromptVariable + "': " + userPrompt);
-            
-            if (userPrompt != null && !userPrompt.trim().isEmpty()) {
-                promptBuilder.append(userPrompt);
-            } else {
-                debugLog("Warning: User prompt variable '" + userPromptVariable + "' is empty or null");
+    /**
+     * Embedding of the text for the semantic cache, unit length
+     *
+     * @return the vector, or null if the embedding call failed; the prompt is then sent as usual
+     */
+    private float[] embed(String apiKey, String model, String text) {
+        // Paraphrases differ early; the embedding model has its own input limit
+        String input = text.substring(0, TokenEstimator.prefixLength(text, SEMANTIC_CACHE_MAX_TOKENS));
+        GeminiHttpTransport transport = GeminiHttpTransport.shared();
+        int readTimeout = getIntProperty("readTimeout", GeminiHttpTransport.DEFAULT_READ_TIMEOUT);
+        int connectTimeout = Math.min(readTimeout, getIntProperty("connectTimeout", GeminiHttpTransport.DEFAULT_CONNECT_TIMEOUT));
+        long started = System.currentTimeMillis();
+        try (GeminiHttpTransport.Exchange exchange = transport.post(toUrl(getApiBaseUrl() + "models/" + model + ":embedContent?key=" + apiKey),
+                "application/json", out -> GeminiRequestWriter.writeEmbedContent(model, input, out), -1, false,
+                connectTimeout, readTimeout)) {
+            if (exchange.getStatusCode() != 200) {
+                throw apiError(exchange.getStatusCode(), exchange);
             }
-            
-            // Add additional context variables if specified
-            if (additionalContext != null && !additionalContext.trim().isEmpty()) {
-                String[] contextVariables = additionalContext.split(",");
-                for (String contextVar : contextVariables) {
-                    contextVar = contextVar.trim();
-                    if (!contextVar.isEmpty()) {
-                        String contextValue = getWorkflowVariable(assignment, contextVar);
-                        if (contextValue != null && !contextValue.trim().isEmpty()) {
-                            if (promptBuilder.length() > 0) {
-                                promptBuilder.append("\n\n");
-                            }
-                            promptBuilder.append(contextVar).append(": ").append(contextValue);
-                            debugLog("Added context variable '" + contextVar + "': " + contextValue);
-                        }
-                    }
-                }
+            float[] values = GeminiSemanticCache.parseEmbedding(exchange.getBody());
+            if (values.length == 0) {
+                throw new IOException("Empty embedding from model " + model);
             }
-            
-            String finalPrompt = promptBuilder.toString().trim();
-            debugLog("Final prompt built: " + finalPrompt);
-            return finalPrompt;
-            
-        } catch (NullPointerException | IllegalArgumentException e) {
-            debugError("Error due to invalid input or null value", e);
-            return null;
-        } catch (RuntimeException e) {
-            debugError("Runtime exception occurred while building final prompt", e);
-            return null;
-        } catch (Exception e) {
-            debugError("Unexpected error building final prompt", e);
+            debugLog(() -> "Embedded prompt with " + model + " in " + (System.currentTimeMillis() - started) + " ms");
+            return GeminiSemanticCache.normalize(values);
+        } catch (IOException e) {
+            debugLog(() -> "WARNING: Semantic cache lookup skipped: " + e.getMessage());
             return null;
         }
     }
 
     /**
-     * Get workflow variable value
+     * Queue the call on the plugin executor. When it finishes, the result is written to the
+     * output process variable and the configured waiting activity (if any) is completed.
+     *
+     * The queued call takes over the API key lease and releases it when it is done.
+     *
+     * @return the value to return from execute, or null if the call should run synchronously instead
      */
-    private String getWorkflowVariable(WorkflowAssignment assignment, String variableName) {
-        if (assignment == null || variableName == null || variableName.trim().isEmpty()) {
-            return null;
-        }
+    private String submitAsync(final GeminiRequest request, final WorkflowAssignment assignment,
+            final String outputVariable, final int estimatedTokens) {
+        GeminiAsyncExecutor executor = GeminiAsyncExecutor.shared();
+        executor.configure(getIntProperty("asyncThreads", GeminiAsyncExecutor.DEFAULT_THREADS),
+                getIntProperty("asyncQueueCapacity", GeminiAsyncExecutor.DEFAULT_QUEUE_CAPACITY));
+        
+        final String processId = assignment.getProcessId();
+        final String completionActivity = getPropertyString("asyncCompletionActivity");
+        final String username = getCurrentUsername();
+        
+        // Joget keeps the tenant profile and current app in thread locals; carry them over
+        final String profile = HostManager.getCurrentProfile();
+        final AppDefinition appDef = AppUtil.getCurrentAppDefinition();
+        final GeminiKeyBalancer.Lease lease = keyLease;
         
         try {
-            // Process the hash variable to get the actual value
-            String hashVariable = "#variable." + variableName.trim() + "#";
-            String processedValue = processHashVariables(hashVariable, assignment);
+            keyLease = null;
+            executor.submit(() -> {
+                HostManager.setCurrentProfile(profile);
+                AppUtil.setCurrentAppDefinition(appDef);
+                try {
+                    long started = System.currentTimeMillis();
+                    GeminiResponse result = generate(lease.getApiKey(), request, assignment, outputVariable, true);
+                    long latency = System.currentTimeMillis() - started;
+                    String value = result != null ? result.getText() : "ERROR: Failed to get a valid response from Gemini API";
+                    setOutputVariables(null, processId, outputValues(outputVariable, value, result, latency, estimatedTokens));
+                    debugLog(() -> "Async Gemini call for process " + processId + " finished in " + latency + " ms");
+                    
+                    if (completionActivity != null && !completionActivity.trim().isEmpty()) {
+                        completeWaitingActivity(processId, completionActivity.trim(), username, ASYNC_COMPLETION_ATTEMPTS);
+                    }
+                } finally {
+                    lease.close();
+                    AppUtil.setCurrentAppDefinition(null);
+                    HostManager.setCurrentProfile(null);
+                }
+            });
+            debugLog(() -> "Queued async Gemini call for process " + processId + ": " + executor.describe());
+            return "QUEUED: Gemini request is running asynchronously, the result will be stored in '" + outputVariable + "'";
             
-            // If the processed value is still the hash variable, it means the variable doesn't exist
-            if (hashVariable.equals(processedValue)) {
-                debugLog("Variable '" + variableName + "' not found or is empty");
-                return null;
+        } catch (RejectedExecutionException e) {
+            keyLease = lease;
+            debugLog(() -> "Async Gemini call rejected: " + e.getMessage());
+            if ("abort".equals(getPropertyString("asyncRejectionPolicy"))) {
+                setProcessVariable(processId, outputVariable, "ERROR: " + e.getMessage());
+                return "ERROR: " + e.getMessage();
             }
-            
-            debugLog("Get " + variableName + processedValue);
-            return processedValue;
-            
-        } catch (NullPointerException | IllegalArgumentException e) {
-            debugError("Error getting workflow variable '" + variableName + "'", e);
-            return null;
-        } catch (Exception e) {
-            debugError("Unexpected error getting workflow variable '" + variableName + "'", e);
+            // Caller runs: fall back to a synchronous call on this thread
             return null;
         }
     }
-    
+
     /**
-     * Process hash variables in a string (e.g., #{variable.name} format)
+     * Batch mode: render the prompt once per item of a JSON array variable or of a form
+     * table's rows and collect the answers in item order. Items are called in parallel,
+     * at most batchConcurrency at a time, or handed to Gemini's batch API as one job.
+     * Results go into the output variable as a JSON array and, for form rows, into the
+     * result column of each row.
      */
-    private String processHashVariables(String input, WorkflowAssignment assignment) {
-        if (input == null || assignment == null) {
-            return input;
+    private String executeBatch(String apiKey, String model, String systemInstruction, String outputVariable,
+            String userPromptVariable, String customPromptTemplate, boolean formTable, WorkflowAssignment assignment) {
+        if (assignment == null) {
+            return "ERROR: Batch mode needs a workflow assignment";
         }
-        
+        String filterValue = processHashVariables(getPropertyString("batchFilterValue"), assignment);
+        // IDs of the form rows in item order, so each result goes back to its own row
+        List<String> rowIds = formTable ? new ArrayList<>() : null;
+        List<Map<String, String>> items;
         try {
-            // Use AppUtil to process hash variables
-            return AppUtil.processHashVariable(input, assignment, null, null);
-        } catch (Exception e) {
-            debugError("Error processing hash variables in: " + input, e);
-            return input; // Return original string if processing fails
+            items = formTable ? loadBatchRows(filterValue, rowIds) : loadBatchVariable(assignment);
+        } catch (IOException e) {
+            debugError("Batch variable is not a JSON array", e);
+            return "ERROR: Batch variable '" + getPropertyString("batchVariable") + "' does not hold a JSON array: " + e.getMessage();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            debugError("Could not load the batch items", e);
+            return "ERROR: Could not load the batch items: " + e.getMessage();
+        }
+        int maxItems = getIntProperty("batchMaxItems", DEFAULT_BATCH_MAX_ITEMS);
+        if (items.size() > maxItems) {
+            return "ERROR: Batch has " + items.size() + " items, at most " + maxItems + " are allowed (batchMaxItems)";
+        }
+        debugLog(() -> "Batch mode: " + items.size() + " item(s) from " + (formTable ? "form table" : "variable"));
+
+        // One request per item; an item whose prompt cannot be built gets its error as result
+        String templateText = customPromptTemplate != null && !customPromptTemplate.trim().isEmpty()
+                ? customPromptTemplate : defaultBatchTemplate(userPromptVariable);
+        PromptTemplate template = PromptTemplate.compile(templateText);
+        GeminiModelLimits limits = GeminiModelLimits.forModel(model);
+        List<GeminiRequest> requests = new ArrayList<>(items.size());
+        List<String> itemErrors = new ArrayList<>(items.size());
+        int estimatedTokens = 0;
+        for (int i = 0; i < items.size(); i++) {
+            String prompt = renderTemplate(template, assignment, batchItemValues(items.get(i), i)).trim();
+            GeminiRequest request = prompt.isEmpty() ? null : buildGeminiRequest(model, systemInstruction, prompt, assignment);
+            int tokens = request != null ? TokenEstimator.estimate(request) : 0;
+            if (request == null) {
+                itemErrors.add("ERROR: Empty prompt");
+            } else if (limits != null && tokens > limits.getInputTokens()) {
+                itemErrors.add("ERROR: Prompt is too large: about " + tokens + " tokens, the model accepts " + limits.getInputTokens());
+                request = null;
+            } else {
+                itemErrors.add(null);
+                estimatedTokens += tokens;
+            }
+            requests.add(request);
+        }
+
+        if ("true".equalsIgnoreCase(getPropertyString("batchApi"))) {
+            return submitBatchJob(apiKey, model, requests, itemErrors, outputVariable, rowIds, filterValue, estimatedTokens, assignment);
+        }
+
+        final String profile = HostManager.getCurrentProfile();
+        final AppDefinition appDef = AppUtil.getCurrentAppDefinition();
+        final List<GeminiKeyBalancer.Key> keys = getApiKeys(apiKey);
+        final GeminiKeyBalancer balancer = GeminiRuntime.shared().getKeyBalancer();
+        int concurrency = Math.max(1, getIntProperty("batchConcurrency", GeminiBatchRunner.DEFAULT_CONCURRENCY));
+        long started = System.currentTimeMillis();
+        List<String> results;
+        try {
+            results = GeminiBatchRunner.shared().run(requests.size(), concurrency, index -> {
+                if (requests.get(index) == null) {
+                    return itemErrors.get(index);
+                }
+                GeminiResponse result;
+                try (GeminiKeyBalancer.Lease lease = balancer.acquire(keys)) {
+                    result = generate(lease.getApiKey(), requests.get(index), null, outputVariable, true);
+                }
+                return result != null ? result.getText() : "ERROR: Failed to get a valid response from Gemini API";
+            }, worker -> {
+                // Joget keeps the tenant profile and current app in thread locals; carry them over
+                HostManager.setCurrentProfile(profile);
+                AppUtil.setCurrentAppDefinition(appDef);
+                try {
+                    worker.run();
+                } finally {
+                    AppUtil.setCurrentAppDefinition(null);
+                    HostManager.setCurrentProfile(null);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: Batch was interrupted";
         }
+        long latency = System.currentTimeMillis() - started;
+        debugLog(() -> "Batch of " + requests.size() + " item(s) finished in " + latency + " ms with concurrency "
+                + concurrency + ", " + GeminiBatchRunner.shared().describe() + "; API keys: " + balancer.describe(keys));
+
+        return writeBatchResults(assignment.getActivityId(), assignment.getProcessId(), outputVariable, results,
+                rowIds, filterValue, latency, estimatedTokens);
     }
-    
+
+    private List<Map<String, String>> loadBatchVariable(WorkflowAssignment assignment) throws IOException {
+        String name = getPropertyString("batchVariable");
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("batchVariable is not set");
+        }
+        String json = getContextValue(name.trim(), assignment);
+        if (json == null || json.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return GeminiBatchJob.parseItems(json);
+    }
+
     /**
-     * Helper method to escape JSON strings
+     * Batch items from the form table rows; the row IDs are added to rowIds in item order
      */
-    private String escapeJson(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r")
-                  .replace("\t", "\\t");
+    private List<Map<String, String>> loadBatchRows(String filterValue, List<String> rowIds) {
+        FormRowAccess.Rows rows = FormRowAccess.shared().load(getPropertyString("batchFormDefId"),
+                getPropertyString("batchTableName"), getPropertyString("batchFilterColumn"), filterValue);
+        List<Map<String, String>> items = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            rowIds.add(rows.id(i));
+            Map<String, String> values = rows.values(i);
+            values.keySet().removeAll(FORM_SYSTEM_COLUMNS);
+            items.add(values);
+        }
+        return items;
     }
-    
+
     /**
-     * Helper method to unescape JSON strings
+     * Template used when no custom template is set: the user prompt, then the item
      */
-    private String unescapeJson(String str) {
-        if (str == null) return "";
-        return str.replace("\\\"", "\"")
-                  .replace("\\\\", "\\")
-                  .replace("\\n", "\n")
-                  .replace("\\r", "\r")
-                  .replace("\\t", "\t");
+    private String defaultBatchTemplate(String userPromptVariable) {
+        String name = userPromptVariable.trim();
+        return "{{#variable." + name + "}}#variable." + name + "#\n\n{{/variable." + name + "}}#" + BATCH_ITEM_PREFIX + "value#";
     }
-    
+
     /**
-     * Extract text from Gemini API response using simple string parsing
+     * Template values of one item: #item.field# for each field, #item.index# (from 1), and
+     * #item.value#, which for items with several fields is all of them as "field: value" lines
      */
-    private String extractTextFromGeminiResponse(String responseStr) {
-        try {
-            debugLog("Attempting to extract text from response");
-            
-            // The actual Gemini response structure is:
-            // {"candidates": [{"content": {"parts": [{"text": "response text"}]}}]}
-            
-            // Look for the candidates array first
-            String candidatesPattern = "\"candidates\"";
-            int candidatesStart = responseStr.indexOf(candidatesPattern);
-            if (candidatesStart == -1) {
-                debugLog("No 'candidates' array found in response");
-                return null;
+    private static Map<String, String> batchItemValues(Map<String, String> item, int index) {
+        Map<String, String> values = new HashMap<>();
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> field : item.entrySet()) {
+            values.put(BATCH_ITEM_PREFIX + field.getKey(), field.getValue());
+            if (!field.getValue().isEmpty()) {
+                lines.append(lines.length() > 0 ? "\n" : "").append(field.getKey()).append(": ").append(field.getValue());
             }
-            
-            // Look for the first "text" field after candidates
-            String textPattern = "\"text\"";
-            int textFieldStart = responseStr.indexOf(textPattern, candidatesStart);
-            if (textFieldStart == -1) {
-                debugLog("No 'text' field found in candidates");
-                return null;
+        }
+        values.putIfAbsent(BATCH_ITEM_PREFIX + "value", lines.toString());
+        values.put(BATCH_ITEM_PREFIX + "index", String.valueOf(index + 1));
+        return values;
+    }
+
+    /**
+     * Store batch results: the JSON array in the output variable and, for form rows, each
+     * result in the row it was built from. Rows are loaded again so changes made meanwhile
+     * are kept; a row that is gone by now is skipped.
+     *
+     * @param activityId activity to write to, or null to write process variables
+     * @param rowIds IDs of the form rows in result order, or null if the items did not come from a form table
+     * @return the value to return from execute
+     */
+    private String writeBatchResults(String activityId, String processId, String outputVariable, List<String> results,
+            List<String> rowIds, String filterValue, long latencyMillis, int estimatedTokens) {
+        int failed = 0;
+        for (String result : results) {
+            if (result.startsWith("ERROR:")) {
+                failed++;
             }
-            
-            // Find the colon and opening quote after "text"
-            int colonIndex = responseStr.indexOf(":", textFieldStart);
-            if (colonIndex == -1) {
-                debugLog("No colon found after 'text' field");
-                return null;
+        }
+        try {
+            if (rowIds != null) {
+                String formDefId = getPropertyString("batchFormDefId");
+                String tableName = getPropertyString("batchTableName");
+                FormRowAccess access = FormRowAccess.shared();
+                FormRowAccess.Rows rows = access.load(formDefId, tableName, getPropertyString("batchFilterColumn"), filterValue);
+                Map<String, Integer> rowIndexes = new HashMap<>();
+                for (int i = 0; i < rows.size(); i++) {
+                    rowIndexes.put(rows.id(i), i);
+                }
+                String resultColumn = getPropertyOrDefault("batchResultColumn", "aiResponse");
+                for (int i = 0; i < results.size(); i++) {
+                    String rowId = rowIds.get(i);
+                    Integer index = rowIndexes.get(rowId);
+                    if (index != null) {
+                        rows.set(index, resultColumn, results.get(i));
+                    } else {
+                        LogUtil.info(getClassName(), "Batch row " + rowId + " of " + tableName
+                                + " is no longer in the table, its result is not stored");
+                    }
+                }
+                access.save(formDefId, tableName, rows);
             }
-            
-            // Skip whitespace and find the opening quote
-            int quoteStart = colonIndex + 1;
-            while (quoteStart < responseStr.length() && 
-                   (responseStr.charAt(quoteStart) == ' ' || responseStr.charAt(quoteStart) == '\t')) {
-                quoteStart++;
+            setOutputVariables(activityId, processId,
+                    outputValues(outputVariable, GeminiRequestWriter.toJsonArray(results), null, latencyMillis, estimatedTokens));
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            debugError("Could not store the batch results", e);
+            return "ERROR: Could not store the batch results: " + e.getMessage();
+        }
+        int failures = failed;
+        debugLog(() -> "Stored " + results.size() + " batch result(s) in '" + outputVariable + "', " + failures + " failed");
+        return results.size() + " batch item(s) processed, " + failed + " failed";
+    }
+
+    /**
+     * Send the batch as one job to Gemini's batch API. The job runs at the API's discretion
+     * (usually minutes, at most a day); it is polled on the plugin scheduler and, once done,
+     * the results are stored like a synchronous batch's and the waiting activity (if any) is
+     * completed. Polling state is kept in memory and does not survive a restart.
+     */
+    private String submitBatchJob(String apiKey, String model, List<GeminiRequest> requests, List<String> itemErrors,
+            String outputVariable, List<String> rowIds, String filterValue, int estimatedTokens, WorkflowAssignment assignment) {
+        List<GeminiRequest> sent = new ArrayList<>();
+        List<Integer> sentIndexes = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i) != null) {
+                sent.add(requests.get(i));
+                sentIndexes.add(i);
             }
-            
-            if (quoteStart >= responseStr.length() || responseStr.charAt(quoteStart) != '"') {
-                debugLog("No opening quote found for text value");
-                return null;
+        }
+        if (sent.isEmpty()) {
+            return writeBatchResults(assignment.getActivityId(), assignment.getProcessId(), outputVariable, itemErrors,
+                    rowIds, filterValue, 0, estimatedTokens);
+        }
+
+        // The job is polled with the key it was created with
+        GeminiBatchJob job;
+        String jobKey;
+        try (GeminiKeyBalancer.Lease lease = GeminiRuntime.shared().getKeyBalancer().acquire(getApiKeys(apiKey))) {
+            jobKey = lease.getApiKey();
+            String displayName = "joget-" + assignment.getProcessId();
+            job = batchJobCall(getApiBaseUrl() + "models/" + model + ":batchGenerateContent?key=" + jobKey,
+                    out -> GeminiRequestWriter.writeBatch(sent, displayName, out));
+        } catch (IOException e) {
+            debugError("Could not create the batch job: " + e.getMessage(), e);
+            return "ERROR: Could not create the batch job: " + e.getMessage();
+        }
+        if (job.getName() == null) {
+            return "ERROR: Batch API response has no job name";
+        }
+
+        PendingBatch pending = new PendingBatch();
+        pending.apiKey = jobKey;
+        pending.jobName = job.getName();
+        pending.itemResults = itemErrors;
+        pending.sentIndexes = sentIndexes;
+        pending.processId = assignment.getProcessId();
+        pending.outputVariable = outputVariable;
+        pending.rowIds = rowIds;
+        pending.filterValue = filterValue;
+        pending.estimatedTokens = estimatedTokens;
+        pending.started = System.currentTimeMillis();
+        pending.completionActivity = getPropertyString("asyncCompletionActivity");
+        pending.username = getCurrentUsername();
+        pending.profile = HostManager.getCurrentProfile();
+        pending.appDef = AppUtil.getCurrentAppDefinition();
+        
+        setOutputVariables(assignment.getActivityId(), assignment.getProcessId(),
+                Collections.singletonMap(outputVariable, "PENDING: " + job.getName()));
+        long interval = Math.max(10, getIntProperty("batchPollInterval", DEFAULT_BATCH_POLL_SECONDS)) * 1000L;
+        GeminiAsyncExecutor.shared().schedule(pending.describe(), () -> pollBatchJob(pending, interval), interval);
+        debugLog(() -> "Created batch job " + job.getName() + " with " + sent.size() + " request(s), state " + job.getState());
+        return "QUEUED: Batch job " + job.getName() + " is running, the results will be stored in '" + outputVariable + "'";
+    }
+
+    /**
+     * Batch API job waiting for its results
+     */
+    private static final class PendingBatch {
+        String apiKey;
+        String jobName;
+        List<String> itemResults;
+        List<Integer> sentIndexes;
+        String processId;
+        String outputVariable;
+        List<String> rowIds;
+        String filterValue;
+        int estimatedTokens;
+        long started;
+        String completionActivity;
+        String username;
+        String profile;
+        AppDefinition appDef;
+
+        String describe() {
+            return "collect the results of batch job " + jobName + " for process " + processId
+                    + (completionActivity != null && !completionActivity.trim().isEmpty()
+                            ? " and complete activity '" + completionActivity.trim() + "'" : "");
+        }
+    }
+
+    private void pollBatchJob(PendingBatch pending, long interval) {
+        HostManager.setCurrentProfile(pending.profile);
+        AppUtil.setCurrentAppDefinition(pending.appDef);
+        try {
+            List<String> results;
+            try {
+                GeminiBatchJob job = batchJobCall(getApiBaseUrl() + pending.jobName + "?key=" + pending.apiKey, null);
+                if (!job.isDone()) {
+                    if (System.currentTimeMillis() - pending.started < BATCH_MAX_WAIT_MILLIS) {
+                        debugLog(() -> "Batch job " + pending.jobName + " is " + job.getState());
+                        GeminiAsyncExecutor.shared().schedule(pending.describe(), () -> pollBatchJob(pending, interval), interval);
+                        return;
+                    }
+                    results = batchErrors(pending, "ERROR: Batch job " + pending.jobName + " did not finish in time");
+                } else if (job.getErrorMessage() != null) {
+                    results = batchErrors(pending, "ERROR: Batch job failed: " + job.getErrorMessage());
+                } else {
+                    results = new ArrayList<>(pending.itemResults);
+                    List<String> jobResults = job.getResults(pending.sentIndexes.size());
+                    for (int i = 0; i < jobResults.size(); i++) {
+                        results.set(pending.sentIndexes.get(i), jobResults.get(i));
+                    }
+                }
+            } catch (GeminiApiException e) {
+                if (e.getStatusCode() >= 500 || e.getStatusCode() == 429) {
+                    if (System.currentTimeMillis() - pending.started < BATCH_MAX_WAIT_MILLIS) {
+                        GeminiAsyncExecutor.shared().schedule(pending.describe(), () -> pollBatchJob(pending, interval), interval);
+                        return;
+                    }
+                }
+                results = batchErrors(pending, "ERROR: Could not poll batch job " + pending.jobName
+                        + ": HTTP " + e.getStatusCode() + " " + e.getMessage());
+            } catch (IOException e) {
+                // Network trouble: try again at the next interval
+                LogUtil.info(getClassName(), "Could not poll batch job " + pending.jobName + ": " + e.getMessage());
+                if (System.currentTimeMillis() - pending.started < BATCH_MAX_WAIT_MILLIS) {
+                    GeminiAsyncExecutor.shared().schedule(pending.describe(), () -> pollBatchJob(pending, interval), interval);
+                    return;
+                }
+                results = batchErrors(pending, "ERROR: Could not poll batch job " + pending.jobName + ": " + e.getMessage());
             }
-            
-            // Move past the opening quote
-            quoteStart++;
-            
-            // Find the closing quote, accounting for escaped quotes
-            int textEnd = quoteStart;
-            boolean escaped = false;
-            
-            while (textEnd < responseStr.length()) {
-                char c = responseStr.charAt(textEnd);
-                if (escaped) {
-                    escaped = false;
-                } else if (c == '\\') {
-                    escaped = true;
-                } else if (c == '"') {
-                    break; // Found the closing quote
+
+            long latency = System.currentTimeMillis() - pending.started;
+            writeBatchResults(null, pending.processId, pending.outputVariable, results,
+                    pending.rowIds, pending.filterValue, latency, pending.estimatedTokens);
+            if (pending.completionActivity != null && !pending.completionActivity.trim().isEmpty()) {
+                completeWaitingActivity(pending.processId, pending.completionActivity.trim(), pending.username, ASYNC_COMPLETION_ATTEMPTS);
+            }
+        } finally {
+            AppUtil.setCurrentAppDefinition(null);
+            HostManager.setCurrentProfile(null);
+        }
+    }
+
+    private static List<String> batchErrors(PendingBatch pending, String error) {
+        List<String> results = new ArrayList<>(pending.itemResults);
+        for (Integer index : pending.sentIndexes) {
+            results.set(index, error);
+        }
+        return results;
+    }
+
+    /**
+     * Create (POST, with a body) or poll (GET, body null) a batch job
+     */
+    private GeminiBatchJob batchJobCall(String apiUrl, GeminiHttpTransport.BodyWriter body) throws IOException {
+        GeminiHttpTransport transport = GeminiHttpTransport.shared();
+        int readTimeout = getIntProperty("readTimeout", GeminiHttpTransport.DEFAULT_READ_TIMEOUT);
+        int connectTimeout = Math.min(readTimeout, getIntProperty("connectTimeout", GeminiHttpTransport.DEFAULT_CONNECT_TIMEOUT));
+        try {
+            URL url = new URI(apiUrl).toURL();
+            try (GeminiHttpTransport.Exchange exchange = body != null
+                    ? transport.post(url, "application/json", body, -1, false, connectTimeout, readTimeout)
+                    : transport.get(url, connectTimeout, readTimeout)) {
+                if (exchange.getStatusCode() != 200) {
+                    throw apiError(exchange.getStatusCode(), exchange);
                 }
-                textEnd++;
+                return GeminiBatchJob.parse(exchange.getBody(), getIntProperty("maxResponseChars", DEFAULT_MAX_RESPONSE_CHARS));
             }
-            
-            if (textEnd >= responseStr.length()) {
-                debugLog("No closing quote found for text value");
-                return null;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid API URL: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Complete the open activity the process is waiting in. The engine may not have
+     * reached it yet when the call is very fast, so retry a few times.
+     */
+    private void completeWaitingActivity(final String processId, final String activityDefId, final String username, final int attemptsLeft) {
+        try {
+            WorkflowVariableAccess access = WorkflowVariableAccess.shared();
+            WorkflowVariableAccess.OpenActivity activity = access.findOpenActivity(processId, activityDefId);
+            if (activity != null) {
+                access.forceComplete(activity.processDefId, processId, activity.id, username);
+                debugLog(() -> "Completed waiting activity '" + activityDefId + "' (" + activity.id + ")");
+                return;
             }
             
-            // Extract and unescape the text
-            String extractedText = responseStr.substring(quoteStart, textEnd);
-            String unescapedText = unescapeJson(extractedText);
-            
-            debugLog("Successfully extracted text from Gemini response");
-            debugLog("Extracted text preview: " + unescapedText.substring(0, Math.min(50, unescapedText.length())) + 
-                    (unescapedText.length() > 50 ? "..." : ""));
-            
-            return unescapedText;
+            if (attemptsLeft > 1) {
+                GeminiAsyncExecutor.shared().schedule("complete activity '" + activityDefId + "' of process " + processId,
+                        () -> completeWaitingActivity(processId, activityDefId, username, attemptsLeft - 1),
+                        ASYNC_COMPLETION_RETRY_DELAY);
+            } else {
+                LogUtil.info(getClassName(), "Activity '" + activityDefId + "' is not open in process " + processId + ", nothing to complete");
+            }
             
-        } catch (StringIndexOutOfBoundsException e) {
-            debugError("String index error while parsing response", e);
-            return null;
-        } catch (Exception e) {
-            debugError("Error extracting text from Gemini response", e);
-            return null;
+        } catch (IllegalStateException e) {
+            LogUtil.error(getClassName(), e, "Could not complete activity '" + activityDefId + "' in process " + processId);
+        }
+    }
+
+    /**
+     * Username of the current workflow user, used when completing the waiting activity later
+     */
+    private String getCurrentUsername() {
+        try {
+            Object appContext = AppUtil.getApplicationContext();
+            Object userManager = appContext.getClass()
+                    .getMethod("getBean", String.class)
+                    .invoke(appContext, "workflowUserManager");
+            String username = (String) userManager.getClass().getMethod("getCurrentUsername").invoke(userManager);
+            return username != null ? username : "roleAnonymous";
+        } catch (NoSuchMethodException | IllegalAccessException | java.lang.reflect.InvocationTargetException
+                 | NullPointerException e) {
+            debugError("Could not get current username", e);
+            return "roleAnonymous";
+        }
+    }
+
+    /**
+     * Base URL of the Gemini API, ending with a slash; can point at a proxy or a test stub
+     */
+    private String getApiBaseUrl() {
+        String baseUrl = getPropertyOrDefault("apiBaseUrl", DEFAULT_API_BASE_URL).trim();
+        return baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    /**
+     * Read a numeric plugin property, falling back to the default when empty or invalid
+     */
+    private int getIntProperty(String name, int defaultValue) {
+        String value = getPropertyString(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            debugLog(() -> "Invalid number for property '" + name + "': " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Set workflow variable
+     */
+    private void setWorkflowVariable(String activityId, String variableName, String value) {
+        try {
+            WorkflowVariableAccess.shared().setActivityVariable(activityId, variableName, value);
+        } catch (IllegalStateException e) {
+            LogUtil.error(getClassName(), e,
+                    "Could not set workflow variable using WorkflowManager: " + e.getMessage());
+            throw new RuntimeException("Failed to set workflow variable", e);
+        }
+    }
+
+    /**
+     * Set process variable, used once the tool activity itself has already completed
+     */
+    private void setProcessVariable(String processId, String variableName, String value) {
+        try {
+            WorkflowVariableAccess.shared().setProcessVariable(processId, variableName, value);
+        } catch (IllegalStateException e) {
+            LogUtil.error(getClassName(), e,
+                    "Could not set process variable using WorkflowManager: " + e.getMessage());
+            throw new RuntimeException("Failed to set process variable", e);
+        }
+    }
+
+    /**
+     * Set the response and its metadata variables together, in one engine call where possible
+     *
+     * @param activityId activity to write to, or null to write process variables
+     */
+    private void setOutputVariables(String activityId, String processId, Map<String, String> values) {
+        try {
+            WorkflowVariableAccess access = WorkflowVariableAccess.shared();
+            if (activityId != null) {
+                access.setActivityVariables(activityId, values);
+            } else {
+                access.setProcessVariables(processId, values);
+            }
+        } catch (IllegalStateException e) {
+            LogUtil.error(getClassName(), e,
+                    "Could not set output variables using WorkflowManager: " + e.getMessage());
+            throw new RuntimeException("Failed to set output variables", e);
+        }
+    }
+
+    /**
+     * Output variable values for a result: the response text plus the configured token count,
+     * finish reason and latency variables, and the mapped fields of a structured response.
+     * Values the API did not report are written empty.
+     *
+     * @param estimatedTokens local estimate of the request's input tokens
+     */
+    private Map<String, String> outputValues(String outputVariable, String text, GeminiResponse result, long latencyMillis, int estimatedTokens) {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(outputVariable, text);
+        putOutputValue(values, "estimatedTokensVariable", String.valueOf(estimatedTokens));
+        putOutputValue(values, "promptTokensVariable", result != null ? count(result.getPromptTokenCount()) : "");
+        putOutputValue(values, "responseTokensVariable", result != null ? count(result.getCandidatesTokenCount()) : "");
+        putOutputValue(values, "totalTokensVariable", result != null ? count(result.getTotalTokenCount()) : "");
+        String finishReason = result != null ? result.getFinishReason() : null;
+        putOutputValue(values, "finishReasonVariable", finishReason != null ? finishReason : "");
+        putOutputValue(values, "latencyVariable", String.valueOf(latencyMillis));
+        if (result != null && !result.getFields().isEmpty()) {
+            // Mapped fields the response left out are written empty, like missing metadata
+            for (Map<String, String> mapping : getGridProperty("structuredOutputMappings")) {
+                String field = mapping.get("field");
+                if (field == null || field.trim().isEmpty()) {
+                    continue;
+                }
+                String variable = mapping.get("variable");
+                String name = variable != null && !variable.trim().isEmpty() ? variable.trim() : field.trim();
+                String value = result.getFields().get(field.trim());
+                values.put(name, value != null ? value : "");
+            }
+        }
+        return values;
+    }
+
+    private void putOutputValue(Map<String, String> values, String property, String value) {
+        String name = getPropertyString(property);
+        if (name != null && !name.trim().isEmpty()) {
+            values.put(name.trim(), value);
+        }
+    }
+
+    private static String count(long tokens) {
+        return tokens >= 0 ? String.valueOf(tokens) : "";
+    }
+
+    /**
+     * Calls the Google Gemini API with the user prompt.
+     * Identical requests already in flight are joined instead of sent again. The call goes
+     * through the model's circuit breaker (falling back to the secondary model if one is set)
+     * and runs under the per-key rate limit with retries; each HTTP attempt is optionally hedged.
+     */
+    private GeminiResponse callGeminiAPI(final String apiKey, final GeminiRequest request) {
+        try {
+            GeminiSingleFlight singleFlight = GeminiSingleFlight.shared();
+            final GeminiRateLimiter rateLimiter = GeminiRateLimiter.shared();
+            final GeminiRateLimiter.Settings limits = getRateLimitSettings(apiKey);
+            final GeminiHedging hedging = GeminiHedging.shared();
+            final GeminiMetrics metrics = GeminiMetrics.shared();
+            final int hedgePercentile = "true".equalsIgnoreCase(getPropertyString("hedgeRequests"))
+                    ? getIntProperty("hedgePercentile", GeminiHedging.DEFAULT_PERCENTILE) : 0;
+            
+            GeminiResponse result = singleFlight.execute(responseKey(request.cacheKey()), () -> callWithCircuitBreaker(request,
+                    modelRequest -> rateLimiter.call(apiKey, modelRequest.getModel(), limits,
+                            readTimeout -> hedging.call(modelRequest.getModel(), hedgePercentile,
+                                    hedgePercentile > 0 ? rateLimiter.hedgePermits(apiKey, modelRequest.getModel(), limits) : null,
+                                    () -> metrics.record(modelRequest, () -> requestGeminiAPI(apiKey, modelRequest, readTimeout))))));
+            debugLog(() -> "Request coalescing: " + singleFlight.describe());
+            debugLog(() -> "Rate limit: " + rateLimiter.describe(apiKey, result.getModel()));
+            if (hedgePercentile > 0) {
+                debugLog(() -> "Hedging: " + hedging.describe() + ", current delay "
+                        + hedging.getHedgeDelay(result.getModel(), hedgePercentile) + " ms");
+            }
+            return result;
+            
+        } catch (GeminiApiException e) {
+            debugError("API call failed with HTTP " + e.getStatusCode() + ": " + e.getMessage(), null);
+            return null;
+        } catch (IOException e) {
+            debugError("Network error calling Gemini API: " + e.getMessage(), e);
+            return null;
+        } catch (RuntimeException e) {
+            debugError("Unexpected error calling Gemini API: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Run the call through the model's circuit breaker, with the configured fallback model
+     */
+    private GeminiResponse callWithCircuitBreaker(GeminiRequest request, GeminiCircuitBreaker.ModelCall call) throws IOException {
+        String fallbackModel = getPropertyString("fallbackModel");
+        try {
+            return GeminiCircuitBreaker.call(request, fallbackModel,
+                    getIntProperty("circuitFailureThreshold", GeminiCircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+                    getIntProperty("circuitOpenDuration", GeminiCircuitBreaker.DEFAULT_OPEN_SECONDS) * 1000L, call);
+        } finally {
+            debugLog(() -> "Circuit breaker: " + GeminiCircuitBreaker.forModel(request.getModel()).describe());
+        }
+    }
+
+    /**
+     * One generateContent HTTP call
+     *
+     * @throws GeminiApiException for error responses and responses without text
+     */
+    private GeminiResponse requestGeminiAPI(String apiKey, GeminiRequest request, int readTimeout) throws IOException {
+        debugLog(() -> "Starting Gemini API call with model: " + request.getModel());
+        
+        // Construct API URL
+        String apiUrl = getApiBaseUrl() + "models/" + request.getModel() + ":generateContent?key=" + apiKey;
+        debugLog(() -> "API URL constructed");
+        
+        SpillingTextBuffer text = newResponseBuffer(getIntProperty("maxResponseChars", DEFAULT_MAX_RESPONSE_CHARS));
+        boolean kept = false;
+        GeminiResponse result;
+        try (GeminiHttpTransport.Exchange exchange = sendRequest(apiUrl, request, readTimeout)) {
+            
+            debugLog(() -> "Request sent to Gemini API");
+            
+            int responseCode = exchange.getStatusCode();
+            debugLog(() -> "HTTP Response Code: " + responseCode);
+            
+            if (responseCode != 200) {
+                if (isCachedContentGone(request, responseCode)) {
+                    return requestGeminiAPI(apiKey, request.withoutCachedContent(), readTimeout);
+                }
+                throw apiError(responseCode, exchange);
+            }
+            // Parse straight from the response stream
+            result = GeminiResponse.parse(exchange.getBody(), text);
+            debugLog(() -> "Connection pool: " + GeminiHttpTransport.shared().getPoolStats());
+            
+            debugLog(() -> "Successful API response received: " + result.describeUsage());
+            if (!result.hasText()) {
+                throw new GeminiApiException(200, null, "Gemini API response contained no text ("
+                        + (result.getBlockReason() != null ? "blockReason=" + result.getBlockReason() : result.describeUsage()) + ")");
+            }
+            if (text.isTruncated()) {
+                debugLog(() -> "WARNING: Response exceeded the maximum length, " + text.getDroppedChars() + " characters dropped");
+            }
+            setResponseText(result, text);
+            kept = true;
+            return result;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid API URL: " + e.getMessage(), e);
+        } finally {
+            if (!kept) {
+                text.discard();
+            }
+        }
+    }
+
+    /**
+     * Key of a request's answer as this activity stores it: the request key plus the
+     * settings that truncate or spill the response text locally, so callers with different
+     * limits neither share a call nor a cached answer
+     */
+    private String responseKey(String requestKey) {
+        int threshold = Math.max(0, getIntProperty("responseFileThreshold", 0));
+        int previewChars = threshold > 0 ? getIntProperty("responsePreviewChars", GeminiResponseStore.DEFAULT_PREVIEW_CHARS) : 0;
+        return GeminiResponseCache.key(requestKey, "maxResponseChars=" + getIntProperty("maxResponseChars", DEFAULT_MAX_RESPONSE_CHARS)
+                + ";responseFileThreshold=" + threshold + ";responsePreviewChars=" + previewChars);
+    }
+
+    /**
+     * Buffer for response text: in memory, or moved to a file of the response store once
+     * it passes responseFileThreshold characters
+     */
+    private SpillingTextBuffer newResponseBuffer(int maxResponseChars) {
+        int threshold = getIntProperty("responseFileThreshold", 0);
+        if (threshold <= 0) {
+            return new SpillingTextBuffer(maxResponseChars, Integer.MAX_VALUE, 0, null);
+        }
+        GeminiResponseStore store = GeminiResponseStore.shared();
+        store.sweep(getIntProperty("responseFileRetentionDays", GeminiResponseStore.DEFAULT_RETENTION_DAYS));
+        return new SpillingTextBuffer(maxResponseChars, threshold,
+                getIntProperty("responsePreviewChars", GeminiResponseStore.DEFAULT_PREVIEW_CHARS), store);
+    }
+
+    private void setResponseText(GeminiResponse result, SpillingTextBuffer text) {
+        String value = text.finish();
+        if (text.isSpilled()) {
+            debugLog(() -> "Response of " + text.length() + " characters stored as " + value.substring(0, value.indexOf('\n')));
+            result.setStoredText(value, text.length());
+        } else {
+            result.setText(value);
+        }
+    }
+
+    /**
+     * Text of a stored response when the value is a reference to one, read for use in a prompt
+     */
+    private String loadStoredResponse(String key, String value) {
+        if (!GeminiResponseStore.isReference(value)) {
+            return value;
+        }
+        int maxChars = getIntProperty("maxVariableChars", 0);
+        String stored = GeminiResponseStore.shared().read(value, maxChars > 0 ? maxChars : DEFAULT_MAX_RESPONSE_CHARS);
+        if (stored == null) {
+            debugLog(() -> "Stored response of '" + key + "' is not available, using its preview");
+            return GeminiResponseStore.preview(value);
+        }
+        debugLog(() -> "Read stored response of '" + key + "': " + stored.length() + " characters");
+        return stored;
+    }
+
+    /**
+     * Refer to server-side cached content for the system instruction and conversation turns
+     * when context caching is on and they are large enough. Concurrent activities with the
+     * same content share one cached content entry.
+     *
+     * @return the request to send: the same request when nothing is cached
+     */
+    private GeminiRequest useContextCache(final String apiKey, final GeminiRequest request) {
+        if (!"true".equalsIgnoreCase(getPropertyString("contextCache"))) {
+            return request;
+        }
+        final int turns = request.getContents().size() - 1;
+        int cachedTokens = TokenEstimator.estimate(request) - TokenEstimator.estimate(request.getPrompt());
+        int minTokens = getIntProperty("contextCacheMinTokens", GeminiContextCache.DEFAULT_MIN_TOKENS);
+        if (cachedTokens < minTokens) {
+            debugLog(() -> "Context cache: about " + cachedTokens + " tokens of system instruction and turns, below the "
+                    + minTokens + " token minimum, sending in full");
+            return request;
+        }
+        
+        String key = request.contextKey(apiKey);
+        GeminiContextCache contextCache = GeminiContextCache.shared();
+        String name = contextCache.acquire(key, getIntProperty("contextCacheTtl", GeminiContextCache.DEFAULT_TTL_SECONDS),
+                new GeminiContextCache.Api() {
+                    @Override
+                    public GeminiResponse create(int ttlSeconds) throws IOException {
+                        debugLog(() -> "Context cache: creating cached content for " + turns + " turn(s) and the system instruction");
+                        return cachedContentsCall(getApiBaseUrl() + "cachedContents?key=" + apiKey, false,
+                                out -> GeminiRequestWriter.writeCachedContent(request, turns, ttlSeconds, out));
+                    }
+
+                    @Override
+                    public GeminiResponse refresh(String name, int ttlSeconds) throws IOException {
+                        debugLog(() -> "Context cache: extending " + name + " by " + ttlSeconds + " s");
+                        return cachedContentsCall(getApiBaseUrl() + name + "?updateMask=ttl&key=" + apiKey, true,
+                                out -> GeminiRequestWriter.writeTtl(ttlSeconds, out));
+                    }
+                });
+        debugLog(() -> "Context cache: " + (name != null ? "using " + name : "not used") + ", " + contextCache.describe());
+        return name != null ? request.withCachedContent(key, name, turns) : request;
+    }
+
+    /**
+     * One cachedContents create (POST) or update (PATCH) call
+     */
+    private GeminiResponse cachedContentsCall(String apiUrl, boolean patch, GeminiHttpTransport.BodyWriter body) throws IOException {
+        GeminiHttpTransport transport = GeminiHttpTransport.shared();
+        int readTimeout = getIntProperty("readTimeout", GeminiHttpTransport.DEFAULT_READ_TIMEOUT);
+        int connectTimeout = Math.min(readTimeout, getIntProperty("connectTimeout", GeminiHttpTransport.DEFAULT_CONNECT_TIMEOUT));
+        try {
+            URL url = new URI(apiUrl).toURL();
+            try (GeminiHttpTransport.Exchange exchange = patch
+                    ? transport.patch(url, "application/json", body, connectTimeout, readTimeout)
+                    : transport.post(url, "application/json", body, -1, false, connectTimeout, readTimeout)) {
+                if (exchange.getStatusCode() != 200) {
+                    throw apiError(exchange.getStatusCode(), exchange);
+                }
+                return GeminiResponse.parse(exchange.getBody(), new BoundedTextBuffer(1));
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid API URL: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The API no longer knows the cached content the request refers to (expired early or
+     * deleted): forget it, so the request can be sent in full
+     */
+    private boolean isCachedContentGone(GeminiRequest request, int responseCode) {
+        if (request.getCachedContent() == null || (responseCode != 403 && responseCode != 404)) {
+            return false;
+        }
+        debugLog(() -> "Cached content " + request.getCachedContent() + " is gone (HTTP " + responseCode + "), sending the full request");
+        GeminiContextCache.shared().invalidate(request.getContextCacheKey(), request.getCachedContent());
+        return true;
+    }
+
+    /**
+     * Error for a response with a status other than 200. The status code and Retry-After
+     * header decide how it is handled; the body only adds details, and is read leniently
+     * because proxies and load balancers answer 429 or 503 with empty or HTML bodies.
+     */
+    private GeminiApiException apiError(int responseCode, GeminiHttpTransport.Exchange exchange) {
+        GeminiResponse error = readErrorBody(exchange);
+        long retryAfter = GeminiRateLimiter.parseRetryAfter(exchange.getHeader("Retry-After"));
+        if (retryAfter < 0 && error != null) {
+            retryAfter = error.getRetryDelayMillis();
+        }
+        if (retryAfter >= 0) {
+            long delay = retryAfter;
+            debugLog(() -> "Server asked to retry after " + delay + " ms");
+        }
+        return new GeminiApiException(responseCode, error != null ? error.getErrorStatus() : null,
+                error != null ? describeError(error) : "no error details", retryAfter);
+    }
+
+    /**
+     * Gemini error object of an error response, or null if the body is empty, not JSON
+     * or cannot be read
+     */
+    private GeminiResponse readErrorBody(GeminiHttpTransport.Exchange exchange) {
+        byte[] body;
+        try {
+            body = readPrefix(exchange.getBody(), MAX_ERROR_BODY_BYTES);
+        } catch (IOException e) {
+            debugLog(() -> "Could not read the error response: " + e.getMessage());
+            return null;
+        }
+        try {
+            return GeminiResponse.parse(new ByteArrayInputStream(body), new BoundedTextBuffer(1));
+        } catch (IOException e) {
+            debugLog(() -> "Error response is not a Gemini error object (" + body.length + " bytes)");
+            traceLog(() -> "Error response: " + payload(new String(body, StandardCharsets.UTF_8)));
+            return null;
+        }
+    }
+
+    /**
+     * Up to maxBytes from the start of a stream
+     */
+    private static byte[] readPrefix(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while (out.size() < maxBytes && (n = in.read(buffer, 0, Math.min(buffer.length, maxBytes - out.size()))) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Calls the streaming Gemini endpoint and reads server-sent events as they arrive.
+     * Text is collected in a bounded buffer and the partial result is written to the
+     * output variable every streamFlushInterval milliseconds.
+     */
+    private GeminiResponse streamGeminiAPI(final String apiKey, final GeminiRequest request,
+            final WorkflowAssignment assignment, final String outputVariable, final boolean async) {
+        try {
+            final GeminiRateLimiter rateLimiter = GeminiRateLimiter.shared();
+            final GeminiRateLimiter.Settings limits = getRateLimitSettings(apiKey);
+            final GeminiMetrics metrics = GeminiMetrics.shared();
+            GeminiResponse result = callWithCircuitBreaker(request,
+                    modelRequest -> rateLimiter.call(apiKey, modelRequest.getModel(), limits,
+                            readTimeout -> metrics.record(modelRequest,
+                                    () -> streamOnce(apiKey, modelRequest, assignment, outputVariable, async, readTimeout))));
+            debugLog(() -> "Rate limit: " + rateLimiter.describe(apiKey, result.getModel()));
+            return result;
+            
+        } catch (GeminiApiException e) {
+            debugError("Streaming API call failed with HTTP " + e.getStatusCode() + ": " + e.getMessage(), null);
+            return null;
+        } catch (IOException e) {
+            debugError("Network error streaming from Gemini API: " + e.getMessage(), e);
+            return null;
+        } catch (RuntimeException e) {
+            debugError("Unexpected error streaming from Gemini API: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * One streamGenerateContent HTTP call. Failures before any text arrived can be retried;
+     * once text has been received (and possibly flushed) a failure is final.
+     *
+     * @throws GeminiApiException for error responses, responses without text and broken streams
+     */
+    private GeminiResponse streamOnce(String apiKey, GeminiRequest request, WorkflowAssignment assignment,
+            String outputVariable, boolean async, int readTimeout) throws IOException {
+        debugLog(() -> "Starting streaming Gemini API call with model: " + request.getModel());
+        
+        String apiUrl = getApiBaseUrl() + "models/" + request.getModel() + ":streamGenerateContent?alt=sse&key=" + apiKey;
+        
+        int maxResponseChars = getIntProperty("maxResponseChars", DEFAULT_MAX_RESPONSE_CHARS);
+        long flushInterval = getIntProperty("streamFlushInterval", DEFAULT_STREAM_FLUSH_INTERVAL);
+        boolean flushPartial = flushInterval > 0 && assignment != null;
+        
+        SpillingTextBuffer text = newResponseBuffer(maxResponseChars);
+        boolean kept = false;
+        GeminiResponse result = new GeminiResponse();
+        long started = System.currentTimeMillis();
+        long lastFlush = started;
+        int flushedLength = 0;
+        int events = 0;
+        boolean firstText = true;
+        
+        try (GeminiHttpTransport.Exchange exchange = sendRequest(apiUrl, request, readTimeout)) {
+            int responseCode = exchange.getStatusCode();
+            debugLog(() -> "HTTP Response Code: " + responseCode);
+            
+            if (responseCode != 200) {
+                if (isCachedContentGone(request, responseCode)) {
+                    return streamOnce(apiKey, request.withoutCachedContent(), assignment, outputVariable, async, readTimeout);
+                }
+                throw apiError(responseCode, exchange);
+            }
+            
+            // A single event never needs to be larger than the whole allowed response
+            int maxEventBytes = (int) Math.min(Integer.MAX_VALUE - 8, maxResponseChars * 4L + 65536L);
+            SseEventReader reader = new SseEventReader(exchange.getBody(), maxEventBytes);
+            String eventData;
+            try {
+                while ((eventData = reader.nextEventData()) != null) {
+                    events++;
+                    result.merge(new StringReader(eventData), text);
+                    if (firstText && text.length() > 0) {
+                        debugLog(() -> "First streamed text after " + (System.currentTimeMillis() - started) + " ms");
+                        firstText = false;
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    if (flushPartial && now - lastFlush >= flushInterval && text.length() > flushedLength) {
+                        String partial = text.snapshot();
+                        if (async) {
+                            setProcessVariable(assignment.getProcessId(), outputVariable, partial);
+                        } else {
+                            setWorkflowVariable(assignment.getActivityId(), outputVariable, partial);
+                        }
+                        flushedLength = text.length();
+                        lastFlush = now;
+                    }
+                }
+            } catch (IOException e) {
+                if (text.length() == 0) {
+                    throw e;
+                }
+                // Partial text may already be visible; do not start the answer over
+                GeminiApiException broken = new GeminiApiException(200, null, "Stream broke after "
+                        + text.length() + " characters: " + e.getMessage());
+                broken.initCause(e);
+                // The partial text flushed so far still points at the file
+                kept = text.isSpilled() && flushedLength > 0;
+                throw broken;
+            }
+            
+            if (reader.isTruncated()) {
+                // The text of a skipped event is missing from the answer
+                text.markTruncated();
+                debugLog(() -> "WARNING: " + reader.getSkippedEvents() + " streamed event(s) larger than "
+                        + maxEventBytes + " bytes were skipped");
+            }
+            int eventCount = events;
+            debugLog(() -> "Streaming finished: " + eventCount + " events, " + text.length() + " characters in "
+                    + (System.currentTimeMillis() - started) + " ms, " + result.describeUsage());
+            if (text.isTruncated()) {
+                debugLog(() -> "WARNING: Streamed response exceeded " + maxResponseChars + " characters, " + text.getDroppedChars() + " characters dropped");
+            }
+            
+            if (text.length() == 0) {
+                throw new GeminiApiException(200, null, "Streaming response contained no text"
+                        + (result.getBlockReason() != null ? " (blockReason=" + result.getBlockReason() + ")" : ""));
+            }
+            setResponseText(result, text);
+            kept = true;
+            return result;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid API URL: " + e.getMessage(), e);
+        } finally {
+            if (!kept) {
+                text.discard();
+            }
+        }
+    }
+
+    /**
+     * Short description of an API error body
+     */
+    private String describeError(GeminiResponse error) {
+        if (error.getErrorMessage() == null) {
+            return "no error details";
+        }
+        return error.getErrorCode() + " " + error.getErrorStatus() + " - " + error.getErrorMessage();
+    }
+
+    /**
+     * Build the request: earlier conversation turns, the final prompt as the last user turn,
+     * and the optional generationConfig and safetySettings from the tool properties
+     */
+    private GeminiRequest buildGeminiRequest(String model, String systemInstruction, String finalPrompt, WorkflowAssignment assignment) {
+        GeminiRequest request = new GeminiRequest(model, systemInstruction);
+        
+        for (Map<String, String> turn : getGridProperty("conversationTurns")) {
+            String text = turn.get("text");
+            if (text != null && !text.trim().isEmpty()) {
+                String role = "model".equals(turn.get("role")) ? "model" : "user";
+                request.addContent(role, renderTemplate(PromptTemplate.compile(text), assignment));
+            }
+        }
+        request.addContent("user", finalPrompt);
+        
+        request.setTemperature(getDoubleProperty("temperature"));
+        request.setTopP(getDoubleProperty("topP"));
+        request.setTopK(getIntegerProperty("topK"));
+        // Always bounded: the configured limit capped at the model's, or the model's own limit
+        request.setMaxOutputTokens(GeminiModelLimits.clampOutputTokens(model, getIntegerProperty("maxOutputTokens")));
+        String stopSequences = getPropertyString("stopSequences");
+        if (stopSequences != null && !stopSequences.isEmpty()) {
+            for (String stopSequence : stopSequences.split("\\r?\\n")) {
+                if (!stopSequence.isEmpty()) {
+                    request.addStopSequence(stopSequence);
+                }
+            }
+        }
+        
+        GeminiResponseSchema schema = getResponseSchema();
+        if (schema != null) {
+            request.setResponseSchema(schema.toJson());
+        }
+        
+        for (Map<String, String> setting : getGridProperty("safetySettings")) {
+            String category = setting.get("category");
+            String threshold = setting.get("threshold");
+            if (category != null && !category.isEmpty() && threshold != null && !threshold.isEmpty()) {
+                request.addSafetySetting(category, threshold);
+            }
+        }
+        
+        debugLog(() -> "Request built: " + request.getContents().size() + " turn(s), generationConfig="
+                + request.hasGenerationConfig() + ", safetySettings=" + request.getSafetySettings().size());
+        return request;
+    }
+
+    /**
+     * Attach the files of the configured form upload fields to the final prompt. Files up to
+     * attachmentUploadThreshold are sent inline; larger ones are uploaded to the Files API
+     * once per content and API key, and referred to by URI.
+     */
+    private GeminiRequest attachFiles(String apiKey, GeminiRequest request, WorkflowAssignment assignment) throws IOException {
+        String fields = getPropertyString("attachmentFields");
+        if (fields == null || fields.trim().isEmpty()) {
+            return request;
+        }
+        String tableName = getPropertyString("attachmentTableName");
+        String recordId = getPropertyOrDefault("attachmentRecordId", assignment != null ? assignment.getProcessId() : null);
+        Map<String, String> row = FormRowAccess.shared().loadRow(getPropertyString("attachmentFormDefId"), tableName, recordId);
+        if (row == null) {
+            throw new IOException("No record " + recordId + " in form table " + tableName);
+        }
+        long threshold = Math.min(getIntProperty("attachmentUploadThreshold", GeminiFileUploads.DEFAULT_UPLOAD_THRESHOLD_KB) * 1024L,
+                AttachmentFiles.MAX_INLINE_BYTES);
+        long inlineBytes = 0;
+        List<GeminiRequest.Attachment> attachments = new ArrayList<>();
+        for (String field : fields.split(",")) {
+            String value = row.get(field.trim());
+            if (value == null || value.trim().isEmpty()) {
+                debugLog(() -> "Attachment field '" + field.trim() + "' is empty");
+                continue;
+            }
+            for (String name : value.split(";")) {
+                String fileName = name.trim();
+                if (fileName.isEmpty()) {
+                    continue;
+                }
+                Path file = AttachmentFiles.formUploadFile(tableName, recordId, fileName);
+                long size = Files.size(file);
+                String mimeType = AttachmentFiles.mimeType(fileName);
+                String sha256 = AttachmentFiles.sha256(file);
+                // Inline files share the request size limit
+                if (size <= threshold && inlineBytes + size <= AttachmentFiles.MAX_INLINE_BYTES) {
+                    inlineBytes += size;
+                    attachments.add(GeminiRequest.Attachment.inline(fileName, mimeType, sha256, size, file));
+                    debugLog(() -> "Attachment " + fileName + ": " + size + " bytes " + mimeType + ", sent inline");
+                } else {
+                    attachments.add(uploadAttachment(apiKey, fileName, file, mimeType, sha256, size));
+                }
+            }
+        }
+        return attachments.isEmpty() ? request : request.withAttachments(attachments);
+    }
+
+    private GeminiRequest.Attachment uploadAttachment(String apiKey, String fileName, Path file, String mimeType,
+            String sha256, long size) throws IOException {
+        GeminiFileUploads uploads = GeminiFileUploads.shared();
+        String key = GeminiResponseCache.key(apiKey, sha256, mimeType);
+        GeminiFileUploads.UploadedFile uploaded = uploads.acquire(key, () -> uploadFile(apiKey, fileName, file, mimeType, size));
+        debugLog(() -> "Attachment " + fileName + ": " + size + " bytes " + mimeType + ", using " + uploaded.getName()
+                + ", uploads: " + uploads.describe());
+        return GeminiRequest.Attachment.uploaded(fileName, mimeType, sha256, size, uploaded.getUri());
+    }
+
+    /**
+     * Resumable Files API upload: open an upload session, send the bytes (continuing from
+     * what the server already has when the connection breaks) and wait until the file can
+     * be used
+     */
+    private GeminiFileUploads.UploadedFile uploadFile(String apiKey, String fileName, Path file, String mimeType,
+            long size) throws IOException {
+        GeminiHttpTransport transport = GeminiHttpTransport.shared();
+        int readTimeout = getIntProperty("readTimeout", GeminiHttpTransport.DEFAULT_READ_TIMEOUT);
+        int connectTimeout = Math.min(readTimeout, getIntProperty("connectTimeout", GeminiHttpTransport.DEFAULT_CONNECT_TIMEOUT));
+        debugLog(() -> "Uploading " + fileName + " (" + size + " bytes) to the Files API");
+        long started = System.currentTimeMillis();
+        
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("X-Goog-Upload-Protocol", "resumable");
+        headers.put("X-Goog-Upload-Command", "start");
+        headers.put("X-Goog-Upload-Header-Content-Length", String.valueOf(size));
+        headers.put("X-Goog-Upload-Header-Content-Type", mimeType);
+        String sessionUrl;
+        try (GeminiHttpTransport.Exchange exchange = transport.post(toUrl(getUploadBaseUrl() + "files?key=" + apiKey),
+                "application/json", out -> GeminiRequestWriter.writeFileMetadata(fileName, out), -1, headers,
+                connectTimeout, readTimeout)) {
+            if (!exchange.isSuccessful()) {
+                throw apiError(exchange.getStatusCode(), exchange);
+            }
+            sessionUrl = exchange.getHeader("X-Goog-Upload-URL");
+        }
+        if (sessionUrl == null) {
+            throw new GeminiApiException(200, null, "Files API did not return an upload URL");
+        }
+        
+        GeminiFileUploads.UploadedFile uploaded = null;
+        long offset = 0;
+        for (int attempt = 1; uploaded == null; attempt++) {
+            try {
+                uploaded = uploadBytes(sessionUrl, file, offset, size, connectTimeout, readTimeout);
+            } catch (GeminiApiException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                offset = uploadedBytes(sessionUrl, connectTimeout, readTimeout);
+                long resumeAt = offset;
+                debugLog(() -> "Upload of " + fileName + " broke (" + e.getMessage() + "), resuming at byte " + resumeAt);
+            }
+        }
+        
+        long deadline = System.currentTimeMillis() + FILE_PROCESSING_MAX_WAIT_MILLIS;
+        while ("PROCESSING".equals(uploaded.getState())) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new GeminiApiException(200, null, "File " + uploaded.getName() + " is still being processed");
+            }
+            try {
+                Thread.sleep(FILE_PROCESSING_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for file " + uploaded.getName(), e);
+            }
+            try (GeminiHttpTransport.Exchange exchange = transport.get(toUrl(getApiBaseUrl() + uploaded.getName() + "?key=" + apiKey),
+                    connectTimeout, readTimeout)) {
+                if (!exchange.isSuccessful()) {
+                    throw apiError(exchange.getStatusCode(), exchange);
+                }
+                uploaded = GeminiFileUploads.parse(exchange.getBody());
+            }
+        }
+        if (uploaded.getUri() == null || "FAILED".equals(uploaded.getState())) {
+            throw new GeminiApiException(200, null, "Upload of " + fileName + " failed, file state " + uploaded.getState());
+        }
+        GeminiFileUploads.UploadedFile done = uploaded;
+        debugLog(() -> "Uploaded " + fileName + " as " + done.getName() + " in " + (System.currentTimeMillis() - started) + " ms");
+        return done;
+    }
+
+    /**
+     * Send the file from the offset on and finish the upload
+     */
+    private GeminiFileUploads.UploadedFile uploadBytes(String sessionUrl, Path file, long offset, long size,
+            int connectTimeout, int readTimeout) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("X-Goog-Upload-Command", "upload, finalize");
+        headers.put("X-Goog-Upload-Offset", String.valueOf(offset));
+        GeminiHttpTransport.BodyWriter body = out -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                for (long position = offset; position < size; ) {
+                    long sent = channel.transferTo(position, size - position, target);
+                    if (sent == 0 && position >= channel.size()) {
+                        // The file was truncated or replaced since the upload started
+                        throw new IOException("File " + file.getFileName() + " shrank to " + channel.size()
+                                + " bytes during the upload of " + size);
+                    }
+                    position += sent;
+                }
+            }
+        };
+        try (GeminiHttpTransport.Exchange exchange = GeminiHttpTransport.shared().post(toUrl(sessionUrl),
+                "application/octet-stream", body, size - offset, headers, connectTimeout, readTimeout)) {
+            if (!exchange.isSuccessful()) {
+                GeminiApiException error = apiError(exchange.getStatusCode(), exchange);
+                if (exchange.getStatusCode() >= 500) {
+                    // The session survives a server error; resume it
+                    throw new IOException(error.getMessage(), error);
+                }
+                throw error;
+            }
+            return GeminiFileUploads.parse(exchange.getBody());
+        }
+    }
+
+    /**
+     * Bytes the server has received in the upload session
+     */
+    private long uploadedBytes(String sessionUrl, int connectTimeout, int readTimeout) throws IOException {
+        Map<String, String> headers = Collections.singletonMap("X-Goog-Upload-Command", "query");
+        try (GeminiHttpTransport.Exchange exchange = GeminiHttpTransport.shared().post(toUrl(sessionUrl),
+                "application/octet-stream", out -> { }, 0, headers, connectTimeout, readTimeout)) {
+            String received = exchange.getHeader("X-Goog-Upload-Size-Received");
+            if (!exchange.isSuccessful() || received == null) {
+                throw new IOException("Could not query the upload session: HTTP " + exchange.getStatusCode());
+            }
+            return Long.parseLong(received.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid upload size from the Files API: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Files API upload endpoint, e.g. https://generativelanguage.googleapis.com/upload/v1beta/
+     */
+    private String getUploadBaseUrl() throws IOException {
+        URL base = toUrl(getApiBaseUrl());
+        return base.getProtocol() + "://" + base.getAuthority() + "/upload" + base.getPath();
+    }
+
+    private static URL toUrl(String url) throws IOException {
+        try {
+            return new URI(url).toURL();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid API URL: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Send a request through the shared, pooled transport.
+     * The body is serialized straight into the connection stream; small bodies are sent
+     * with a fixed length, very large ones (or gzip) with chunked transfer.
+     */
+    private GeminiHttpTransport.Exchange sendRequest(String apiUrl, final GeminiRequest request, int readTimeout) throws IOException, URISyntaxException {
+        GeminiHttpTransport transport = GeminiHttpTransport.shared();
+        transport.requireMaxConnections(getIntProperty("maxConnections", GeminiHttpTransport.DEFAULT_MAX_CONNECTIONS));
+        int connectTimeout = Math.min(readTimeout, getIntProperty("connectTimeout", GeminiHttpTransport.DEFAULT_CONNECT_TIMEOUT));
+        boolean gzip = "true".equalsIgnoreCase(getPropertyString("gzipCompression"));
+        
+        long contentLength = -1;
+        if (!gzip) {
+            long measured = GeminiRequestWriter.measure(request);
+            boolean chunked = measured > CHUNKED_THRESHOLD_BYTES;
+            contentLength = chunked ? -1 : measured;
+            debugLog(() -> "Request payload: " + measured + " bytes" + (chunked ? " (chunked)" : ""));
+        }
+        
+        URL url = new URI(apiUrl).toURL();
+        return transport.post(url, "application/json", out -> GeminiRequestWriter.write(request, out),
+                contentLength, gzip, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Plugin property, or the default when it is empty
+     */
+    private String getPropertyOrDefault(String name, String defaultValue) {
+        String value = getPropertyString(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value;
+    }
+
+    /**
+     * Throttling limits from the tool properties, with the requests per minute of the given
+     * key; the read timeout is capped per attempt by the rate limiter so retries stay within
+     * the request deadline
+     */
+    private GeminiRateLimiter.Settings getRateLimitSettings(String apiKey) {
+        int requestsPerMinute = getIntProperty("requestsPerMinute", 0);
+        for (GeminiKeyBalancer.Key key : getApiKeys(getPropertyString("apiKey"))) {
+            if (key.apiKey.equals(apiKey)) {
+                requestsPerMinute = key.requestsPerMinute;
+            }
+        }
+        return new GeminiRateLimiter.Settings(
+                requestsPerMinute,
+                getIntProperty("maxConcurrentRequests", GeminiRateLimiter.DEFAULT_MAX_CONCURRENCY),
+                getIntProperty("maxRetries", GeminiRateLimiter.DEFAULT_MAX_RETRIES),
+                getIntProperty("requestDeadline", GeminiRateLimiter.DEFAULT_DEADLINE_SECONDS) * 1000L,
+                getIntProperty("readTimeout", GeminiHttpTransport.DEFAULT_READ_TIMEOUT));
+    }
+
+    /**
+     * Read a decimal plugin property, null when empty or invalid
+     */
+    private Double getDoubleProperty(String name) {
+        String value = getPropertyString(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            double number = Double.parseDouble(value.trim());
+            return Double.isNaN(number) || Double.isInfinite(number) ? null : number;
+        } catch (NumberFormatException e) {
+            debugLog(() -> "Invalid number for property '" + name + "': " + value + ", ignoring it");
+            return null;
+        }
+    }
+
+    /**
+     * Read an optional integer plugin property, null when empty or invalid
+     */
+    private Integer getIntegerProperty(String name) {
+        String value = getPropertyString(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            debugLog(() -> "Invalid number for property '" + name + "': " + value + ", ignoring it");
+            return null;
+        }
+    }
+
+    /**
+     * Rows of a grid property
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, String>> getGridProperty(String name) {
+        List<Map<String, String>> rows = new ArrayList<>();
+        Object value = getProperty(name);
+        if (value instanceof Object[]) {
+            for (Object row : (Object[]) value) {
+                if (row instanceof Map) {
+                    rows.add((Map<String, String>) row);
+                }
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Cut the additional context variables, last listed first, until the request's estimated
+     * input tokens fit the budget. The user prompt, system instruction and conversation turns
+     * are never cut.
+     *
+     * @return the request to send: the same request when it already fits
+     */
+    private GeminiRequest fitTokenBudget(GeminiRequest request, GeminiModelLimits limits, String userPromptVariable,
+            String additionalContext, String customPromptTemplate, WorkflowAssignment assignment) {
+        int budget = getIntProperty("inputTokenBudget", 0);
+        if (limits != null && (budget <= 0 || budget > limits.getInputTokens())) {
+            budget = limits.getInputTokens();
+        }
+        int tokens = TokenEstimator.estimate(request);
+        if (budget <= 0 || tokens <= budget || additionalContext == null) {
+            return request;
+        }
+        
+        List<String> names = new ArrayList<>();
+        for (String contextVar : additionalContext.split(",")) {
+            if (!contextVar.trim().isEmpty()) {
+                names.add(contextVar.trim());
+            }
+        }
+        Collections.reverse(names);
+        
+        Map<String, String> cuts = new HashMap<>();
+        GeminiRequest fitted = request;
+        // Estimates of cut values are not exactly additive; a few passes settle it
+        for (int pass = 0; pass < TOKEN_BUDGET_PASSES && tokens > budget; pass++) {
+            int excess = tokens - budget;
+            for (String name : names) {
+                if (excess <= 0) {
+                    break;
+                }
+                String key = "variable." + name;
+                String value = cuts.containsKey(key) ? cuts.get(key) : getContextValue(name, assignment);
+                int valueTokens = TokenEstimator.estimate(value);
+                if (valueTokens == 0) {
+                    continue;
+                }
+                if (valueTokens <= excess + MIN_CONTEXT_TOKENS) {
+                    cuts.put(key, "");
+                    excess -= valueTokens;
+                } else {
+                    String kept = value.substring(0, TokenEstimator.prefixLength(value, valueTokens - excess - TRUNCATION_MARK_TOKENS));
+                    cuts.put(key, kept + TRUNCATION_MARK);
+                    excess = 0;
+                }
+            }
+            String prompt = buildFinalPrompt(userPromptVariable, additionalContext, customPromptTemplate, assignment, cuts);
+            fitted = buildGeminiRequest(request.getModel(), request.getSystemInstruction(), prompt, assignment);
+            tokens = TokenEstimator.estimate(fitted);
+        }
+        
+        final int estimated = tokens;
+        final int limit = budget;
+        debugLog(() -> "Token budget: cut context variables " + cuts.keySet() + ", prompt now about " + estimated
+                + " tokens, budget " + limit);
+        if (estimated > limit) {
+            debugLog(() -> "WARNING: Prompt is still over the token budget after cutting all context variables");
+        }
+        return fitted;
+    }
+
+    /**
+     * Current value of a context variable, from the bulk read when available
+     */
+    private String getContextValue(String name, WorkflowAssignment assignment) {
+        Map<String, String> variables = isPlainName(name) ? getActivityVariables(assignment) : null;
+        if (variables != null) {
+            return loadStoredResponse(name, variables.get(name));
+        }
+        String hashVariable = "#variable." + name + "#";
+        String value = processHashVariables(hashVariable, assignment);
+        return hashVariable.equals(value) ? null : loadStoredResponse(name, value);
+    }
+
+    /**
+     * Build the final prompt for Gemini AI using user prompt variable, additional context, and custom template
+     */
+    private String buildFinalPrompt(String userPromptVariable, String additionalContext, String customPromptTemplate, WorkflowAssignment assignment) {
+        return buildFinalPrompt(userPromptVariable, additionalContext, customPromptTemplate, assignment, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param overrides values used instead of the variables' own, by hash variable key
+     */
+    private String buildFinalPrompt(String userPromptVariable, String additionalContext, String customPromptTemplate,
+            WorkflowAssignment assignment, Map<String, String> overrides) {
+        try {
+            PromptTemplate template;
+            if (customPromptTemplate != null && !customPromptTemplate.trim().isEmpty()) {
+                // If we have a custom template, use it
+                debugLog(() -> "Using custom prompt template");
+                template = PromptTemplate.compile(customPromptTemplate);
+            } else {
+                // Otherwise, build prompt from user prompt variable and additional context
+                template = PromptTemplate.compile(defaultPromptTemplate(userPromptVariable, additionalContext));
+            }
+            
+            String finalPrompt = renderTemplate(template, assignment, overrides).trim();
+            traceLog(() -> "Final prompt built: " + payload(finalPrompt));
+            return finalPrompt;
+            
+        } catch (NullPointerException | IllegalArgumentException e) {
+            debugError("Error due to invalid input or null value", e);
+            return null;
+        } catch (RuntimeException e) {
+            debugError("Runtime exception occurred while building final prompt", e);
+            return null;
+        } catch (Exception e) {
+            debugError("Unexpected error building final prompt", e);
+            return null;
+        }
+    }
+
+    /**
+     * Template equivalent of "user prompt, then each non-empty context variable as 'name: value'"
+     */
+    private String defaultPromptTemplate(String userPromptVariable, String additionalContext) {
+        StringBuilder template = new StringBuilder();
+        template.append("#variable.").append(userPromptVariable.trim()).append('#');
+        if (additionalContext != null && !additionalContext.trim().isEmpty()) {
+            for (String contextVar : additionalContext.split(",")) {
+                String contextName = contextVar.trim();
+                if (!contextName.isEmpty()) {
+                    template.append("{{#variable.").append(contextName).append("}}\n\n")
+                            .append(contextName).append(": #variable.").append(contextName).append('#')
+                            .append("{{/variable.").append(contextName).append("}}");
+                }
+            }
+        }
+        return template.toString();
+    }
+
+    /**
+     * Render a compiled template against the assignment's variables, applying maxVariableChars
+     * to slots that have no limit of their own. Workflow variables come from one bulk read of
+     * the activity's variables; other hash variables go through Joget one by one.
+     */
+    private String renderTemplate(PromptTemplate template, WorkflowAssignment assignment) {
+        return renderTemplate(template, assignment, Collections.<String, String>emptyMap());
+    }
+
+    private String renderTemplate(PromptTemplate template, WorkflowAssignment assignment, Map<String, String> overrides) {
+        int maxVariableChars = getIntProperty("maxVariableChars", 0);
+        return template.render((key, hashVariable) -> {
+            if (overrides.containsKey(key) || key.startsWith(BATCH_ITEM_PREFIX)) {
+                return overrides.get(key);
+            }
+            String name = key.startsWith("variable.") ? key.substring("variable.".length()) : null;
+            Map<String, String> variables = name != null && isPlainName(name) ? getActivityVariables(assignment) : null;
+            if (variables != null) {
+                String value = variables.get(name);
+                if (value == null || value.isEmpty()) {
+                    debugLog(() -> "Variable '" + key + "' not found or is empty");
+                    return null;
+                }
+                traceLog(() -> "Resolved " + key + ": " + payload(value));
+                return loadStoredResponse(key, value);
+            }
+            String value = processHashVariables(hashVariable, assignment);
+            // An unresolved workflow variable comes back unchanged: treat it as empty
+            if (hashVariable.equals(value) && name != null) {
+                debugLog(() -> "Variable '" + key + "' not found or is empty");
+                return null;
+            }
+            traceLog(() -> "Resolved " + key + ": " + payload(value));
+            return name != null ? loadStoredResponse(key, value) : value;
+        }, maxVariableChars);
+    }
+
+    /**
+     * All variables of the assignment's activity, read once per execution; null when they
+     * cannot be read in bulk, so callers fall back to hash variable processing
+     */
+    private Map<String, String> getActivityVariables(WorkflowAssignment assignment) {
+        if (!activityVariablesLoaded) {
+            activityVariablesLoaded = true;
+            if (assignment != null) {
+                try {
+                    activityVariables = WorkflowVariableAccess.shared().readActivityVariables(assignment.getActivityId());
+                    debugLog(() -> "Read " + (activityVariables != null ? activityVariables.size() + " workflow variables in bulk"
+                            : "no workflow variables in bulk, the engine has no bulk read"));
+                } catch (IllegalStateException e) {
+                    debugError("Could not read workflow variables in bulk, resolving them one by one", e);
+                }
+            }
+        }
+        return activityVariables;
+    }
+
+    // Variable name without hash variable options such as ?html or [format]
+    private static boolean isPlainName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    /**
+     * Process hash variables in a string (e.g., #{variable.name} format)
+     */
+    private String processHashVariables(String input, WorkflowAssignment assignment) {
+        if (input == null || assignment == null) {
+            return input;
+        }
+        
+        try {
+            // Use AppUtil to process hash variables
+            return AppUtil.processHashVariable(input, assignment, null, null);
+        } catch (Exception e) {
+            debugError("Error processing hash variables in: " + payload(input), e);
+            return input; // Return original string if processing fails
         }
     }
     
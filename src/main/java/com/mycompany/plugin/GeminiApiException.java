@@ -0,0 +1,47 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+
+/**
+ * Gemini API call that returned an error status or no usable content
+ */
+class GeminiApiException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String status;
+    private final long retryAfterMillis;
+
+    GeminiApiException(int statusCode, String status, String message) {
+        this(statusCode, status, message, -1);
+    }
+
+    GeminiApiException(int statusCode, String status, String message, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * HTTP status code, or 200 when the call succeeded but had no text
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * API error status such as RESOURCE_EXHAUSTED, may be null
+     */
+    String getStatus() {
+        return status;
+    }
+
+    /**
+     * Delay the server asked for (Retry-After header or RetryInfo), -1 when not given
+     */
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
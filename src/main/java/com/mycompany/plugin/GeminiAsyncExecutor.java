@@ -0,0 +1,241 @@
+package com.mycompany.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Plugin-owned executor for asynchronous Gemini calls
+ * Keeps slow API calls off the Joget workflow threads. The number of worker threads
+ * and queued calls is bounded; once both are full, submissions are rejected and the
+ * caller applies its rejection policy. Shut down by {@link GeminiRuntime#stop}: from then
+ * on new work is refused until {@link #open()}, so nothing creates threads in a stopped
+ * bundle; scheduled tasks that have not run are logged by their description.
+ */
+final class GeminiAsyncExecutor {
+
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+    private static final String CLASS_NAME = GeminiAsyncExecutor.class.getName();
+    private static final GeminiAsyncExecutor SHARED = new GeminiAsyncExecutor();
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    // Descriptions of scheduled tasks that have not started yet
+    private final ConcurrentHashMap<Object, String> scheduled = new ConcurrentHashMap<>();
+
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    // Guarded by this; set from shutdown until the next open
+    private boolean stopped;
+    // Guarded by this; whether a tool has sized the pool yet, and the largest size asked for
+    private boolean sized;
+    private int threads = DEFAULT_THREADS;
+    private ThreadPoolExecutor workers;
+    private ScheduledThreadPoolExecutor scheduler;
+
+    static GeminiAsyncExecutor shared() {
+        return SHARED;
+    }
+
+    /**
+     * Accept work again after a {@link #shutdown(long)}
+     */
+    synchronized void open() {
+        stopped = false;
+    }
+
+    /**
+     * Apply a tool's pool limits. The pool is shared, so the largest thread count and queue
+     * capacity any tool asked for apply. The pool is (re)created on first use after a
+     * shutdown, and sized again by the tools from then on.
+     */
+    synchronized void configure(int threads, int queueCapacity) {
+        int size = Math.max(1, threads);
+        int capacity = Math.max(0, queueCapacity);
+        if (sized) {
+            size = Math.max(size, this.threads);
+            capacity = Math.max(capacity, this.queueCapacity);
+        }
+        sized = true;
+        this.threads = size;
+        this.queueCapacity = capacity;
+        if (stopped) {
+            // submit refuses the call; do not start a pool nobody shuts down
+            return;
+        }
+        ThreadPoolExecutor pool = getWorkers();
+        if (pool.getMaximumPoolSize() != size) {
+            if (size > pool.getCorePoolSize()) {
+                pool.setMaximumPoolSize(size);
+                pool.setCorePoolSize(size);
+            } else {
+                pool.setCorePoolSize(size);
+                pool.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * Queue a task
+     *
+     * @throws RejectedExecutionException when all threads are busy and the queue is full, or
+     *     the executor is shutting down
+     */
+    void submit(final Runnable task) {
+        ThreadPoolExecutor pool;
+        synchronized (this) {
+            if (stopped) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Gemini async executor is shutting down");
+            }
+            pool = getWorkers();
+        }
+        // Running tasks plus queued tasks may not exceed threads + queue capacity
+        int limit = pool.getMaximumPoolSize() + queueCapacity;
+        if (pending.incrementAndGet() > limit) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Gemini async queue is full (" + limit + " calls pending)");
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LogUtil.error(CLASS_NAME, e, "Asynchronous Gemini call failed");
+                } finally {
+                    pending.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a task later on the scheduler thread, e.g. to retry completing an activity
+     *
+     * @param description what the task does and for which process, logged if the task is
+     *     dropped at shutdown so an operator can finish it by hand
+     */
+    void schedule(String description, Runnable task, long delayMillis) {
+        ScheduledThreadPoolExecutor timer;
+        synchronized (this) {
+            // While the workers drain, the existing scheduler still takes tasks; it is shut
+            // down after them. Once it is gone, nothing may start a new one.
+            timer = stopped ? scheduler : getScheduler();
+        }
+        if (timer == null) {
+            LogUtil.warn(CLASS_NAME, "Dropped at shutdown, not done: " + description);
+            return;
+        }
+        Object id = new Object();
+        scheduled.put(id, description);
+        try {
+            timer.schedule(() -> {
+                scheduled.remove(id);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LogUtil.error(CLASS_NAME, e, "Scheduled Gemini task failed: " + description);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled.remove(id);
+            LogUtil.warn(CLASS_NAME, "Dropped at shutdown, not done: " + description);
+        }
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    String describe() {
+        return "pending=" + pending.get() + ", submitted=" + submitted.get() + ", completed=" + completed.get()
+                + ", rejected=" + rejected.get() + ", queueCapacity=" + queueCapacity;
+    }
+
+    /**
+     * Stop accepting work, give running calls up to timeoutMillis to finish, then interrupt
+     * them. The scheduler goes last, because finishing calls may still schedule follow-ups.
+     */
+    void shutdown(long timeoutMillis) {
+        ThreadPoolExecutor pool;
+        synchronized (this) {
+            stopped = true;
+            pool = workers;
+            workers = null;
+            sized = false;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                if (!pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    LogUtil.info(CLASS_NAME, "Interrupting " + pool.getActiveCount() + " unfinished asynchronous Gemini call(s)");
+                    pool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            pending.set(0);
+        }
+
+        ScheduledThreadPoolExecutor timer;
+        synchronized (this) {
+            timer = scheduler;
+            scheduler = null;
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+            // Pending retries and polls are not kept across a restart; name each one so it can be resumed
+            for (String description : scheduled.values()) {
+                LogUtil.warn(CLASS_NAME, "Dropped at shutdown, not done: " + description);
+            }
+            scheduled.clear();
+        }
+    }
+
+    private ThreadPoolExecutor getWorkers() {
+        if (workers == null || workers.isShutdown()) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory("gemini-async-"));
+            pool.allowCoreThreadTimeOut(true);
+            workers = pool;
+        }
+        return workers;
+    }
+
+    private ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null || scheduler.isShutdown()) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, threadFactory("gemini-scheduler-"));
+            timer.setRemoveOnCancelPolicy(true);
+            scheduler = timer;
+        }
+        return scheduler;
+    }
+
+    private ThreadFactory threadFactory(final String prefix) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
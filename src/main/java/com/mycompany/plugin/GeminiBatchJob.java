@@ -0,0 +1,258 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a job on Gemini's asynchronous batch API (batchGenerateContent)
+ * Parsed from the long-running operation returned when the job is created and when it
+ * is polled. Once the job is done, the inline responses are turned into result texts in
+ * request order; a request that failed gets an "ERROR: ..." text in its place.
+ */
+final class GeminiBatchJob {
+
+    private String name;
+    private boolean done;
+    private String state;
+    private String errorMessage;
+    private final List<String> results = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+
+    private GeminiBatchJob() {
+    }
+
+    static GeminiBatchJob parse(InputStream in, int maxResponseChars) throws IOException {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8), maxResponseChars);
+    }
+
+    static GeminiBatchJob parse(Reader in, int maxResponseChars) throws IOException {
+        GeminiBatchJob job = new GeminiBatchJob();
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    job.name = reader.nextString();
+                    break;
+                case "done":
+                    job.done = reader.nextBoolean();
+                    break;
+                case "metadata":
+                    job.readMetadata(reader, maxResponseChars);
+                    break;
+                case "error":
+                    GeminiResponse error = GeminiResponse.readErrorObject(reader);
+                    job.errorMessage = error.getErrorMessage() != null ? error.getErrorMessage() : error.getErrorStatus();
+                    break;
+                case "response":
+                    job.readOutput(reader, maxResponseChars);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return job;
+    }
+
+    private void readMetadata(JsonReader reader, int maxResponseChars) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if ("state".equals(field)) {
+                state = reader.nextString();
+            } else if ("output".equals(field) && results.isEmpty()) {
+                // Some API versions report the output in the metadata as well
+                readOutput(reader, maxResponseChars);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * {"inlinedResponses": {"inlinedResponses": [{"response": {...}, "metadata": {"key": "0"}}, {"error": {...}}]}}
+     */
+    private void readOutput(JsonReader reader, int maxResponseChars) throws IOException {
+        results.clear();
+        keys.clear();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"inlinedResponses".equals(reader.nextName()) || reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"inlinedResponses".equals(reader.nextName()) || reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readInlinedResponse(reader, maxResponseChars);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+
+    private void readInlinedResponse(JsonReader reader, int maxResponseChars) throws IOException {
+        String result = "ERROR: Empty batch response";
+        String key = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "response":
+                    BoundedTextBuffer text = new BoundedTextBuffer(maxResponseChars > 0 ? maxResponseChars : Integer.MAX_VALUE);
+                    GeminiResponse response = GeminiResponse.read(reader, text);
+                    result = response.hasText() ? text.toString()
+                            : "ERROR: No text in response (" + (response.getBlockReason() != null
+                                    ? "blockReason=" + response.getBlockReason() : response.describeUsage()) + ")";
+                    break;
+                case "error":
+                    GeminiResponse error = GeminiResponse.readErrorObject(reader);
+                    result = "ERROR: " + (error.getErrorMessage() != null ? error.getErrorMessage() : "HTTP " + error.getErrorCode());
+                    break;
+                case "metadata":
+                    key = readKey(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        results.add(result);
+        keys.add(key);
+    }
+
+    private static String readKey(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String key = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("key".equals(reader.nextName())) {
+                key = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return key;
+    }
+
+    /**
+     * Operation name, e.g. "batches/abc123"
+     */
+    String getName() {
+        return name;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Job state, e.g. BATCH_STATE_RUNNING or BATCH_STATE_SUCCEEDED
+     */
+    String getState() {
+        return state;
+    }
+
+    /**
+     * Why the whole job failed, or null
+     */
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Result texts in request order. Requests are sent with their index as metadata key,
+     * which puts results back in place should the API return them in another order.
+     *
+     * @param count number of requests in the job
+     */
+    List<String> getResults(int count) {
+        List<String> ordered = new ArrayList<>(Collections.nCopies(count, "ERROR: Missing from batch results"));
+        Map<Integer, String> byKey = new LinkedHashMap<>();
+        for (int i = 0; i < results.size(); i++) {
+            Integer index = parseIndex(keys.get(i));
+            byKey.put(index != null ? index : Integer.valueOf(i), results.get(i));
+        }
+        for (Map.Entry<Integer, String> entry : byKey.entrySet()) {
+            if (entry.getKey() >= 0 && entry.getKey() < count) {
+                ordered.set(entry.getKey(), entry.getValue());
+            }
+        }
+        return ordered;
+    }
+
+    private static Integer parseIndex(String key) {
+        if (key == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Items of a JSON array: a string, number or boolean becomes an item with the single
+     * field "value"; an object becomes an item with its top-level fields (nested values
+     * are skipped)
+     *
+     * @throws IOException if the text is not a JSON array
+     */
+    static List<Map<String, String>> parseItems(String json) throws IOException {
+        List<Map<String, String>> items = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, String> item = new LinkedHashMap<>();
+            JsonReader.Token token = reader.peek();
+            if (token == JsonReader.Token.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    JsonReader.Token valueToken = reader.peek();
+                    if (valueToken == JsonReader.Token.BEGIN_OBJECT || valueToken == JsonReader.Token.BEGIN_ARRAY) {
+                        reader.skipValue();
+                    } else if (valueToken == JsonReader.Token.NULL) {
+                        reader.nextNull();
+                        item.put(field, "");
+                    } else {
+                        item.put(field, reader.nextString());
+                    }
+                }
+                reader.endObject();
+            } else if (token == JsonReader.Token.BEGIN_ARRAY) {
+                reader.skipValue();
+            } else if (token == JsonReader.Token.NULL) {
+                reader.nextNull();
+                item.put("value", "");
+            } else {
+                item.put("value", reader.nextString());
+            }
+            items.add(item);
+        }
+        reader.endArray();
+        return items;
+    }
+}
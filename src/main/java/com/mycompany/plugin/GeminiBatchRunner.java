@@ -0,0 +1,130 @@
+package com.mycompany.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the items of a batch in parallel, at most a given number at a time
+ * Workers take the next item index from a shared counter until all are done, and each
+ * result is stored at its item's index, so results come back in input order however the
+ * calls finish. The calling thread is one of the workers; when the shared pool has no
+ * thread to spare, the caller simply works through more of the items itself.
+ */
+final class GeminiBatchRunner {
+
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final int MAX_THREADS = 64;
+
+    private static final GeminiBatchRunner SHARED = new GeminiBatchRunner();
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Work for one item
+     */
+    interface ItemCall {
+        /**
+         * @return the item's result; exceptions are turned into "ERROR: message" results
+         */
+        String call(int index) throws Exception;
+    }
+
+    static GeminiBatchRunner shared() {
+        return SHARED;
+    }
+
+    /**
+     * The thread pool, created again on first use after a shutdown
+     */
+    private synchronized ThreadPoolExecutor getPool() {
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(0, MAX_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "gemini-batch-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Let running tasks finish and release the threads instead of keeping them for reuse
+     */
+    synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Run call for items 0..count-1 and wait for all of them
+     *
+     * @param threadSetup wraps each worker's loop, e.g. to carry thread-local context over
+     * @return results in item order
+     */
+    List<String> run(int count, int concurrency, ItemCall call, ThreadSetup threadSetup) throws InterruptedException {
+        String[] results = new String[count];
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+                results[index] = callItem(call, index);
+            }
+        };
+
+        int helpers = Math.max(0, Math.min(concurrency, count) - 1);
+        CountDownLatch done = new CountDownLatch(helpers);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                getPool().execute(() -> {
+                    try {
+                        threadSetup.run(worker);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+        worker.run();
+        done.await();
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Sets up a worker thread around its loop
+     */
+    interface ThreadSetup {
+        void run(Runnable worker);
+    }
+
+    private static String callItem(ItemCall call, int index) {
+        try {
+            String result = call.call(index);
+            return result != null ? result : "ERROR: No result";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Reads the pool without creating it, so describing a stopped runner starts no threads
+     */
+    synchronized String describe() {
+        if (pool == null) {
+            return "batchThreads=0, active=0";
+        }
+        return "batchThreads=" + pool.getPoolSize() + ", active=" + pool.getActiveCount();
+    }
+}
@@ -0,0 +1,257 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Per-model circuit breaker
+ * Tracks the outcome of the last calls to a model. When too many of them failed with
+ * throttling, server or network errors, the circuit opens and calls to that model fail
+ * fast (or go to the fallback model) for a while. After that one trial call is let
+ * through; its outcome closes the circuit again or keeps it open.
+ */
+final class GeminiCircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 50;
+    static final int DEFAULT_OPEN_SECONDS = 30;
+
+    private static final String CLASS_NAME = GeminiCircuitBreaker.class.getName();
+    private static final int WINDOW_SIZE = 20;
+    private static final int MINIMUM_CALLS = 5;
+    private static final ConcurrentHashMap<String, GeminiCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    /**
+     * A call to one model; the request may be a fallback copy of the original
+     */
+    interface ModelCall {
+        GeminiResponse call(GeminiRequest request) throws IOException;
+    }
+
+    private final String model;
+    // Ring of recent outcomes, true = failure
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private int windowPosition;
+    private int windowCalls;
+    private int windowFailures;
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean trialInFlight;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openMillis = DEFAULT_OPEN_SECONDS * 1000L;
+    private long opened;
+    private long rejected;
+
+    private GeminiCircuitBreaker(String model) {
+        this.model = model;
+    }
+
+    static GeminiCircuitBreaker forModel(String model) {
+        return BREAKERS.computeIfAbsent(model, GeminiCircuitBreaker::new);
+    }
+
+    /**
+     * Call the request's model through its breaker. If the circuit is open, or the call
+     * fails with a model failure, the fallback model (if any) is tried once instead.
+     *
+     * @param fallbackModel model to use while the primary is failing, null or empty for none
+     * @param failureThreshold failure percentage over the recent calls that opens the circuit
+     * @param openMillis how long an open circuit fails fast before a trial call
+     */
+    static GeminiResponse call(GeminiRequest request, String fallbackModel, int failureThreshold, long openMillis,
+            ModelCall call) throws IOException {
+        GeminiCircuitBreaker breaker = forModel(request.getModel());
+        breaker.configure(failureThreshold, openMillis);
+        boolean hasFallback = fallbackModel != null && !fallbackModel.isEmpty() && !fallbackModel.equals(request.getModel());
+
+        if (!breaker.tryAcquire()) {
+            if (!hasFallback) {
+                throw breaker.openException();
+            }
+            LogUtil.info(CLASS_NAME, "Circuit for " + request.getModel() + " is open, using fallback model " + fallbackModel);
+            return callFallback(request, fallbackModel, failureThreshold, openMillis, call);
+        }
+        try {
+            GeminiResponse response = breaker.complete(call.call(request));
+            response.setModel(request.getModel());
+            return response;
+        } catch (IOException e) {
+            boolean modelFailure = breaker.fail(e);
+            if (!modelFailure || !hasFallback) {
+                throw e;
+            }
+            LogUtil.info(CLASS_NAME, "Call to " + request.getModel() + " failed (" + e.getMessage()
+                    + "), retrying with fallback model " + fallbackModel);
+            return callFallback(request, fallbackModel, failureThreshold, openMillis, call);
+        } catch (RuntimeException | Error e) {
+            breaker.release();
+            throw e;
+        }
+    }
+
+    private static GeminiResponse callFallback(GeminiRequest request, String fallbackModel, int failureThreshold,
+            long openMillis, ModelCall call) throws IOException {
+        GeminiCircuitBreaker breaker = forModel(fallbackModel);
+        breaker.configure(failureThreshold, openMillis);
+        if (!breaker.tryAcquire()) {
+            throw breaker.openException();
+        }
+        GeminiRequest fallbackRequest = request.withModel(fallbackModel);
+        try {
+            GeminiResponse response = breaker.complete(call.call(fallbackRequest));
+            response.setModel(fallbackModel);
+            return response;
+        } catch (IOException e) {
+            breaker.fail(e);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            breaker.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Failures that say the model is unhealthy: throttling, 5xx, network errors and
+     * running out of time. Bad requests and empty answers do not count.
+     */
+    static boolean isModelFailure(IOException e) {
+        if (e instanceof GeminiApiException && "DEADLINE_EXCEEDED".equals(((GeminiApiException) e).getStatus())) {
+            return true;
+        }
+        return GeminiRateLimiter.isRetryable(e);
+    }
+
+    private synchronized void configure(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, Math.min(100, failureThreshold));
+        this.openMillis = Math.max(1000L, openMillis);
+    }
+
+    /**
+     * @return false if the call must not go to this model right now
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    rejected++;
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    rejected++;
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private GeminiResponse complete(GeminiResponse response) {
+        record(false);
+        return response;
+    }
+
+    /**
+     * Record a failed call
+     *
+     * @return true if it counted as a model failure
+     */
+    private boolean fail(IOException e) {
+        boolean modelFailure = isModelFailure(e);
+        record(modelFailure);
+        return modelFailure;
+    }
+
+    private synchronized void record(boolean failure) {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (failure) {
+                open();
+            } else {
+                LogUtil.info(CLASS_NAME, "Circuit for " + model + " closed after a successful trial call");
+                state = State.CLOSED;
+                resetWindow();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Call started before the circuit opened
+            return;
+        }
+        if (windowCalls == WINDOW_SIZE && window[windowPosition]) {
+            windowFailures--;
+        }
+        window[windowPosition] = failure;
+        windowPosition = (windowPosition + 1) % WINDOW_SIZE;
+        windowCalls = Math.min(WINDOW_SIZE, windowCalls + 1);
+        if (failure) {
+            windowFailures++;
+            if (windowCalls >= MINIMUM_CALLS && windowFailures * 100 >= failureThreshold * windowCalls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Give back a trial slot without recording an outcome
+     */
+    private synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    private void open() {
+        LogUtil.info(CLASS_NAME, "Circuit for " + model + " opened (" + windowFailures + "/" + windowCalls
+                + " recent calls failed), failing fast for " + openMillis + " ms");
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        opened++;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    private synchronized GeminiApiException openException() {
+        long retryAfter = state == State.OPEN ? Math.max(0L, openUntil - System.currentTimeMillis()) : -1;
+        return new GeminiApiException(503, "CIRCUIT_OPEN", "Circuit for model " + model
+                + " is open, failing fast", retryAfter);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * State of every model's breaker, by model
+     */
+    static Map<String, String> getStates() {
+        Map<String, String> states = new TreeMap<>();
+        for (GeminiCircuitBreaker breaker : BREAKERS.values()) {
+            states.put(breaker.model, breaker.getState().name());
+        }
+        return states;
+    }
+
+    synchronized String describe() {
+        return model + ": state=" + state + ", recentFailures=" + windowFailures + "/" + windowCalls
+                + ", opened=" + opened + ", rejected=" + rejected;
+    }
+}
@@ -0,0 +1,244 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Registry of Gemini cachedContents, keyed by a hash of the cached content
+ * The first caller for a key creates the cached content; callers arriving meanwhile wait
+ * for and share it. Entries in use are extended before they expire, and an expired entry
+ * is created again. Content the API will not cache (e.g. below the model's minimum size)
+ * is remembered for one TTL so it is not tried on every call. Failures never fail the
+ * generate call: the caller simply sends the full request.
+ */
+final class GeminiContextCache {
+
+    static final int DEFAULT_TTL_SECONDS = 3600;
+    static final int DEFAULT_MIN_TOKENS = 4096;
+
+    private static final String CLASS_NAME = GeminiContextCache.class.getName();
+    private static final GeminiContextCache SHARED = new GeminiContextCache();
+
+    // Stop using an entry this long before it expires, the call itself takes time
+    private static final long EXPIRY_MARGIN_MILLIS = 60000L;
+    private static final int SWEEP_THRESHOLD = 256;
+
+    /**
+     * The cachedContents calls
+     */
+    interface Api {
+        /**
+         * Create the cached content; the response carries its name and expiry time
+         */
+        GeminiResponse create(int ttlSeconds) throws IOException;
+
+        /**
+         * Set a new TTL on existing cached content; the response carries the new expiry time
+         */
+        GeminiResponse refresh(String name, int ttlSeconds) throws IOException;
+    }
+
+    private static final class Entry {
+        final String name;
+        final long ttlMillis;
+        volatile long expiresAt;
+        volatile long refreshAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(String name, long ttlMillis, long expiresAt) {
+            this.name = name;
+            this.ttlMillis = ttlMillis;
+            setExpiry(expiresAt);
+        }
+
+        void setExpiry(long expiresAt) {
+            this.expiresAt = expiresAt;
+            // Extend once three quarters of the lifetime has passed
+            this.refreshAt = expiresAt - ttlMillis / 4;
+        }
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> uncacheable = new ConcurrentHashMap<>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    static GeminiContextCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Name of the cached content for the key, creating or extending it when needed
+     *
+     * @return the name, or null if the content is not cached and the full request should be sent
+     */
+    String acquire(String key, int ttlSeconds, Api api) {
+        Long skipUntil = uncacheable.get(key);
+        if (skipUntil != null) {
+            if (System.currentTimeMillis() < skipUntil) {
+                return null;
+            }
+            uncacheable.remove(key, skipUntil);
+        }
+
+        while (true) {
+            CompletableFuture<Entry> future = entries.get(key);
+            if (future == null) {
+                CompletableFuture<Entry> mine = new CompletableFuture<>();
+                if (entries.putIfAbsent(key, mine) != null) {
+                    continue;
+                }
+                return create(key, ttlSeconds, api, mine);
+            }
+
+            Entry entry = await(future);
+            if (entry == null) {
+                // The creating caller failed and has removed the future; it logged why
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= entry.expiresAt - EXPIRY_MARGIN_MILLIS) {
+                entries.remove(key, future);
+                continue;
+            }
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+                refresh(entry, ttlSeconds, api);
+            }
+            reused.incrementAndGet();
+            return entry.name;
+        }
+    }
+
+    /**
+     * Forget the entry, e.g. after the API reported the cached content as gone
+     */
+    void invalidate(String key, String name) {
+        CompletableFuture<Entry> future = entries.get(key);
+        if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+            Entry entry = future.join();
+            if (entry != null && entry.name.equals(name)) {
+                entries.remove(key, future);
+                LogUtil.info(CLASS_NAME, "Cached content " + name + " is no longer available, it will be created again");
+            }
+        }
+    }
+
+    private String create(String key, int ttlSeconds, Api api, CompletableFuture<Entry> mine) {
+        long ttlMillis = ttlSeconds * 1000L;
+        try {
+            GeminiResponse response = api.create(ttlSeconds);
+            if (response.getResourceName() == null) {
+                throw new GeminiApiException(200, null, "cachedContents response has no name");
+            }
+            Entry entry = new Entry(response.getResourceName(), ttlMillis, expiry(response, ttlMillis));
+            mine.complete(entry);
+            created.incrementAndGet();
+            sweep();
+            return entry.name;
+        } catch (GeminiApiException e) {
+            failed(key, mine);
+            if (e.getStatusCode() == 400 || e.getStatusCode() == 403 || e.getStatusCode() == 404) {
+                // Not cacheable (too small, model without caching, ...): do not ask again for a while
+                uncacheable.put(key, System.currentTimeMillis() + ttlMillis);
+            }
+            LogUtil.info(CLASS_NAME, "Could not create cached content, sending full requests: HTTP "
+                    + e.getStatusCode() + " " + e.getMessage());
+            return null;
+        } catch (IOException | RuntimeException e) {
+            failed(key, mine);
+            LogUtil.info(CLASS_NAME, "Could not create cached content, sending full requests: " + e);
+            return null;
+        }
+    }
+
+    private void failed(String key, CompletableFuture<Entry> mine) {
+        failures.incrementAndGet();
+        entries.remove(key, mine);
+        // Waiting callers get null and send the full request
+        mine.complete(null);
+    }
+
+    private void refresh(Entry entry, int ttlSeconds, Api api) {
+        try {
+            GeminiResponse response = api.refresh(entry.name, ttlSeconds);
+            entry.setExpiry(expiry(response, ttlSeconds * 1000L));
+            refreshed.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            // Keep using it until it expires; it is created again after that
+            failures.incrementAndGet();
+            LogUtil.info(CLASS_NAME, "Could not extend cached content " + entry.name + ": " + e.getMessage());
+        } finally {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static long expiry(GeminiResponse response, long ttlMillis) {
+        String expireTime = response.getExpireTime();
+        if (expireTime != null) {
+            try {
+                return Instant.parse(expireTime).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // fall through to the requested TTL
+            }
+        }
+        return System.currentTimeMillis() + ttlMillis;
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Drop expired entries and skip markers once the maps grow
+     */
+    private void sweep() {
+        if (entries.size() + uncacheable.size() < SWEEP_THRESHOLD) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, CompletableFuture<Entry>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            CompletableFuture<Entry> future = it.next().getValue();
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                Entry entry = future.join();
+                if (entry == null || entry.expiresAt <= now) {
+                    it.remove();
+                }
+            }
+        }
+        uncacheable.values().removeIf(until -> until <= now);
+    }
+
+    String describe() {
+        return "entries=" + entries.size() + ", created=" + created.get() + ", reused=" + reused.get()
+                + ", refreshed=" + refreshed.get() + ", failures=" + failures.get();
+    }
+}
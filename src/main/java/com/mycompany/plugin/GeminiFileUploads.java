@@ -0,0 +1,229 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of files uploaded through the Gemini Files API, keyed by a hash of the API key
+ * and the file content
+ * The first caller for a file uploads it; callers arriving meanwhile wait for the upload
+ * and share its URI. The API keeps uploaded files for 48 hours, so an entry is used until
+ * shortly before it expires and the file is uploaded again after that. Unlike the context
+ * cache, a failed upload fails the call: the prompt is about the file.
+ */
+final class GeminiFileUploads {
+
+    static final int DEFAULT_UPLOAD_THRESHOLD_KB = 4096;
+
+    private static final GeminiFileUploads SHARED = new GeminiFileUploads();
+
+    private static final long DEFAULT_LIFETIME_MILLIS = 48L * 60L * 60L * 1000L;
+    // Stop using a file this long before it expires, a long-running call may still need it
+    private static final long EXPIRY_MARGIN_MILLIS = 60L * 60L * 1000L;
+    private static final int MAX_ENTRIES = 1000;
+
+    /**
+     * The upload itself
+     */
+    interface Api {
+        UploadedFile upload() throws IOException;
+    }
+
+    /**
+     * A file as described by the Files API
+     */
+    static final class UploadedFile {
+        String name;
+        String uri;
+        String mimeType;
+        String state;
+        long expiresAt;
+
+        /**
+         * Name of the file resource, e.g. "files/abc123"
+         */
+        String getName() {
+            return name;
+        }
+
+        String getUri() {
+            return uri;
+        }
+
+        String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * PROCESSING, ACTIVE or FAILED
+         */
+        String getState() {
+            return state;
+        }
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<UploadedFile>> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    static GeminiFileUploads shared() {
+        return SHARED;
+    }
+
+    /**
+     * The uploaded file for the key, uploading it when it is not known or about to expire
+     *
+     * @throws IOException if the upload (this caller's or the one it waited for) failed
+     */
+    UploadedFile acquire(String key, Api api) throws IOException {
+        while (true) {
+            CompletableFuture<UploadedFile> future = entries.get(key);
+            if (future == null) {
+                CompletableFuture<UploadedFile> mine = new CompletableFuture<>();
+                if (entries.putIfAbsent(key, mine) != null) {
+                    continue;
+                }
+                return upload(key, api, mine);
+            }
+
+            UploadedFile file = await(future);
+            if (System.currentTimeMillis() >= file.expiresAt - EXPIRY_MARGIN_MILLIS) {
+                entries.remove(key, future);
+                continue;
+            }
+            reused.incrementAndGet();
+            return file;
+        }
+    }
+
+    /**
+     * Forget the file, e.g. after the API reported it as gone
+     */
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    private UploadedFile upload(String key, Api api, CompletableFuture<UploadedFile> mine) throws IOException {
+        try {
+            UploadedFile file = api.upload();
+            if (file.expiresAt <= 0) {
+                file.expiresAt = System.currentTimeMillis() + DEFAULT_LIFETIME_MILLIS;
+            }
+            mine.complete(file);
+            uploads.incrementAndGet();
+            sweep();
+            return file;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            entries.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static UploadedFile await(CompletableFuture<UploadedFile> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload of the same file");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Upload of the same file failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Drop expired entries once the registry is full, then the ones expiring first
+     */
+    private void sweep() {
+        if (entries.size() <= MAX_ENTRIES) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, CompletableFuture<UploadedFile>>> done = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<UploadedFile>> entry : entries.entrySet()) {
+            CompletableFuture<UploadedFile> future = entry.getValue();
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                if (future.join().expiresAt - EXPIRY_MARGIN_MILLIS <= now) {
+                    entries.remove(entry.getKey(), future);
+                } else {
+                    done.add(entry);
+                }
+            }
+        }
+        done.sort((a, b) -> Long.compare(a.getValue().join().expiresAt, b.getValue().join().expiresAt));
+        for (int i = 0; i < done.size() && entries.size() > MAX_ENTRIES; i++) {
+            entries.remove(done.get(i).getKey(), done.get(i).getValue());
+        }
+    }
+
+    /**
+     * A file resource, either bare (files.get) or wrapped in {"file": ...} (upload response)
+     */
+    static UploadedFile parse(InputStream in) throws IOException {
+        UploadedFile file = new UploadedFile();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        readFile(reader, file);
+        return file;
+    }
+
+    private static void readFile(JsonReader reader, UploadedFile file) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "file":
+                    readFile(reader, file);
+                    break;
+                case "name":
+                    file.name = reader.nextString();
+                    break;
+                case "uri":
+                    file.uri = reader.nextString();
+                    break;
+                case "mimeType":
+                    file.mimeType = reader.nextString();
+                    break;
+                case "state":
+                    file.state = reader.nextString();
+                    break;
+                case "expirationTime":
+                    file.expiresAt = parseTime(reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static long parseTime(String time) {
+        try {
+            return Instant.parse(time).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    String describe() {
+        return "entries=" + entries.size() + ", uploads=" + uploads.get() + ", reused=" + reused.get()
+                + ", failures=" + failures.get();
+    }
+}
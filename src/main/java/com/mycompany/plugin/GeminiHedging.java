@@ -0,0 +1,289 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.service.AppUtil;
+import org.joget.commons.util.HostManager;
+
+/**
+ * Hedged requests against tail latency
+ * One HTTP attempt is started as usual; if it has not answered by the chosen percentile
+ * of the model's recent attempt latencies, an identical second request is sent, if the rate
+ * limit has a token and a concurrency slot free at once, and whichever succeeds first wins.
+ * The slower request is cancelled; if it still completes, its result is dropped and, when it
+ * was spilled to the response store, its file is deleted.
+ */
+final class GeminiHedging {
+
+    static final int DEFAULT_PERCENTILE = 95;
+
+    private static final int LATENCY_SAMPLES = 200;
+    // Too few samples give a meaningless percentile; do not hedge until there are enough
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_THREADS = 32;
+
+    // States of one hedged call: no winner yet, the primary or the hedge won, the caller gave up
+    private static final int OPEN = 0;
+    private static final int PRIMARY = 1;
+    private static final int HEDGE = 2;
+    private static final int ABANDONED = 3;
+
+    private static final GeminiHedging SHARED = new GeminiHedging();
+
+    private final ConcurrentHashMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private ThreadPoolExecutor pool;
+
+    static GeminiHedging shared() {
+        return SHARED;
+    }
+
+    /**
+     * The thread pool, created again on first use after a shutdown
+     */
+    private synchronized ThreadPoolExecutor getPool() {
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(0, MAX_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "gemini-hedge-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Let running tasks finish and release the threads instead of keeping them for reuse
+     */
+    synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Rate limit for the second request, which must not wait: under throttling it is skipped
+     */
+    interface Permits {
+        /**
+         * Take a token and a concurrency slot if both are free right now
+         */
+        boolean tryAcquire();
+
+        /**
+         * Give back the slot taken by {@link #tryAcquire()}
+         *
+         * @param failure why the request failed, null on success
+         */
+        void release(long latencyNanos, IOException failure);
+    }
+
+    /**
+     * Run one HTTP attempt, hedging it once if it is slower than the percentile. Only the
+     * attempt itself is timed, so queueing for the rate limit and retry backoff do not
+     * lower the hedge delay.
+     *
+     * @param percentile latency percentile that triggers the hedge, 0 to only record latencies
+     * @param permits limits for the second request; may be null when percentile is 0
+     */
+    GeminiResponse call(String model, int percentile, Permits permits, GeminiSingleFlight.Call call) throws IOException {
+        LatencyTracker tracker = latencies.computeIfAbsent(model, m -> new LatencyTracker(LATENCY_SAMPLES));
+        long hedgeDelay = percentile > 0 ? tracker.percentile(percentile, MIN_SAMPLES) : -1;
+        if (hedgeDelay < 0) {
+            return timed(tracker, call);
+        }
+
+        ExecutorCompletionService<GeminiResponse> completion = new ExecutorCompletionService<>(getPool());
+        AtomicInteger state = new AtomicInteger(OPEN);
+        Future<GeminiResponse> primary;
+        Future<GeminiResponse> hedge = null;
+        try {
+            primary = completion.submit(hedgedTask(tracker, call, state, PRIMARY, null));
+        } catch (RejectedExecutionException e) {
+            // Every hedging thread is busy: run unhedged on the caller's thread
+            skipped.incrementAndGet();
+            return timed(tracker, call);
+        }
+
+        try {
+            Future<GeminiResponse> done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (done != null) {
+                return get(done);
+            }
+            int running = 1;
+            if (permits.tryAcquire()) {
+                try {
+                    hedge = completion.submit(hedgedTask(tracker, call, state, HEDGE, permits));
+                    hedged.incrementAndGet();
+                    running++;
+                } catch (RejectedExecutionException e) {
+                    permits.release(0L, null);
+                    skipped.incrementAndGet();
+                }
+            } else {
+                skipped.incrementAndGet();
+            }
+
+            IOException firstFailure = null;
+            while (running > 0) {
+                done = completion.take();
+                running--;
+                try {
+                    GeminiResponse response = get(done);
+                    if (response == null) {
+                        // Lost the race after the winner claimed it; the winner is still to come
+                        continue;
+                    }
+                    if (done != primary) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    // Stop the slower request instead of letting it spend quota
+                    Future<GeminiResponse> loser = done == primary ? hedge : primary;
+                    if (loser != null) {
+                        loser.cancel(true);
+                    }
+                    return response;
+                } catch (IOException e) {
+                    if (firstFailure == null) {
+                        firstFailure = e;
+                    }
+                }
+            }
+            throw firstFailure;
+        } catch (InterruptedException e) {
+            int winner = state.compareAndSet(OPEN, ABANDONED) ? ABANDONED : state.get();
+            if (winner != ABANDONED) {
+                // A task already won; its result is nobody's now, so do not leave its file behind
+                discard(getUninterruptibly(winner == PRIMARY ? primary : hedge));
+            }
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a hedged Gemini request");
+        }
+    }
+
+    private static GeminiResponse timed(LatencyTracker tracker, GeminiSingleFlight.Call call) throws IOException {
+        long started = System.nanoTime();
+        GeminiResponse response = call.call();
+        tracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return response;
+    }
+
+    /**
+     * The call on a hedging thread, with the caller's Joget thread locals. Only the first
+     * successful task returns its response; later ones discard theirs and return null.
+     *
+     * @param id PRIMARY or HEDGE, stored in the state by the task that wins
+     * @param permits released when the task ends, null when the caller holds the limits
+     */
+    private static Callable<GeminiResponse> hedgedTask(final LatencyTracker tracker, final GeminiSingleFlight.Call call,
+            final AtomicInteger state, final int id, final Permits permits) {
+        final String profile = HostManager.getCurrentProfile();
+        final AppDefinition appDef = AppUtil.getCurrentAppDefinition();
+        return () -> {
+            HostManager.setCurrentProfile(profile);
+            AppUtil.setCurrentAppDefinition(appDef);
+            long started = System.nanoTime();
+            IOException failure = null;
+            try {
+                GeminiResponse response = timed(tracker, call);
+                if (!state.compareAndSet(OPEN, id)) {
+                    discard(response);
+                    return null;
+                }
+                return response;
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            } finally {
+                if (permits != null) {
+                    permits.release(System.nanoTime() - started, failure);
+                }
+                AppUtil.setCurrentAppDefinition(null);
+                HostManager.setCurrentProfile(null);
+            }
+        };
+    }
+
+    /**
+     * Result of the task that won: it returns right after claiming the win, so this does not
+     * wait long, and an interrupt must not make the caller miss it
+     */
+    private static GeminiResponse getUninterruptibly(Future<GeminiResponse> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return get(future);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (IOException | RuntimeException e) {
+                    // Failed tasks never win
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Delete the stored file of a response that is not used
+     */
+    private static void discard(GeminiResponse response) {
+        if (response != null && response.isStored()) {
+            GeminiResponseStore.shared().delete(response.getText());
+        }
+    }
+
+    private static GeminiResponse get(Future<GeminiResponse> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Current hedge delay for a model, -1 while there are too few samples
+     */
+    long getHedgeDelay(String model, int percentile) {
+        LatencyTracker tracker = latencies.get(model);
+        return tracker == null ? -1 : tracker.percentile(percentile, MIN_SAMPLES);
+    }
+
+    String describe() {
+        return "hedged=" + hedged.get() + ", hedgeWins=" + hedgeWins.get() + ", skipped=" + skipped.get();
+    }
+}
@@ -0,0 +1,558 @@
+package com.mycompany.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Shared HTTP transport for Gemini API calls
+ * Bounds the number of concurrent connections, keeps finished connections
+ * alive for reuse (no new TCP/TLS handshake) and handles gzip bodies
+ *
+ * Connection reuse relies on the JDK keep-alive cache: a connection goes back
+ * to the cache only when its response body is fully read and the stream is
+ * closed, which is what {@link Exchange#close()} does. That cache keeps at most
+ * http.maxConnections idle connections per host (5 unless the system property is set
+ * at JVM start), whatever maxConnections allows in flight; further connections are
+ * closed when they finish, so maxConnections defaults to that keep-alive size.
+ * The JDK does not report whether a request reused a socket; HTTPS connections are
+ * therefore opened through a socket factory that keeps the sockets it created, and the
+ * idle count is the number of those still open and not in use.
+ */
+final class GeminiHttpTransport {
+
+    static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    static final int DEFAULT_READ_TIMEOUT = 60000;
+
+    // Idle connections the JDK keep-alive cache keeps per host; read once by the JDK at startup
+    static final int JDK_MAX_IDLE = Integer.getInteger("http.maxConnections", 5);
+    static final int DEFAULT_MAX_CONNECTIONS = JDK_MAX_IDLE;
+
+    private static final String CLASS_NAME = GeminiHttpTransport.class.getName();
+    private static final String USER_AGENT = "gemini-ai-process-tool/1.0.0 (gzip)";
+
+    // Leftover response bytes we are willing to read so the connection can still be reused
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final GeminiHttpTransport SHARED = new GeminiHttpTransport(DEFAULT_MAX_CONNECTIONS);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // Connections of the exchanges in flight, disconnected when the transport is closed
+    private final Set<HttpURLConnection> connections = ConcurrentHashMap.newKeySet();
+
+    // Socket factory of the HTTPS connections; the JDK only reuses a kept-alive connection
+    // for the same factory instance, so it is replaced only if the JVM default changes
+    private volatile TrackingSocketFactory socketFactory;
+
+    private int maxConnections;
+    private boolean sized;
+    private boolean shutDown;
+    private int active;
+    private long leases;
+    private long returned;
+    private long closed;
+    private long waits;
+    private long waitTimeouts;
+
+    GeminiHttpTransport(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Transport shared by every plugin instance in this bundle
+     */
+    static GeminiHttpTransport shared() {
+        return SHARED;
+    }
+
+    /**
+     * Writes a request body straight to the connection stream
+     */
+    interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Apply a tool's configured pool size. The pool is shared, so the largest size any tool
+     * asked for applies; waiting callers are woken up if the pool grew.
+     */
+    void requireMaxConnections(int maxConnections) {
+        lock.lock();
+        try {
+            int newMax = Math.max(1, maxConnections);
+            if (!sized || newMax > this.maxConnections) {
+                sized = true;
+                this.maxConnections = newMax;
+                released.signalAll();
+                if (newMax > JDK_MAX_IDLE) {
+                    LogUtil.info(CLASS_NAME, "Up to " + newMax + " Gemini connections, of which the JDK keeps "
+                            + JDK_MAX_IDLE + " alive between calls; raise -Dhttp.maxConnections to keep more");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accept calls again after {@link #close()}
+     */
+    void open() {
+        lock.lock();
+        try {
+            shutDown = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turn new calls away, fail the callers waiting for a connection and disconnect the
+     * connections still in use. Idle keep-alive connections belong to the JDK cache, which
+     * closes them after its idle timeout.
+     *
+     * @return the number of connections that were disconnected
+     */
+    int close() {
+        lock.lock();
+        try {
+            shutDown = true;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        int disconnected = 0;
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+            disconnected++;
+        }
+        return disconnected;
+    }
+
+    /**
+     * POST a body to the given URL
+     *
+     * @param contentLength body length in bytes, or -1 if unknown (sent chunked)
+     * @param gzip compress the request body and advertise gzip for the response
+     */
+    Exchange post(URL url, String contentType, BodyWriter body, long contentLength, boolean gzip,
+            int connectTimeout, int readTimeout) throws IOException {
+        return send(url, null, contentType, body, contentLength, gzip, Collections.<String, String>emptyMap(),
+                connectTimeout, readTimeout);
+    }
+
+    /**
+     * POST a body with extra request headers, e.g. the upload protocol headers of the Files API
+     *
+     * @param contentLength body length in bytes, or -1 if unknown (sent chunked)
+     */
+    Exchange post(URL url, String contentType, BodyWriter body, long contentLength, Map<String, String> headers,
+            int connectTimeout, int readTimeout) throws IOException {
+        return send(url, null, contentType, body, contentLength, false, headers, connectTimeout, readTimeout);
+    }
+
+    /**
+     * PATCH a body to the given URL. HttpURLConnection has no PATCH, so this is a POST with
+     * the X-HTTP-Method-Override header, which Google APIs accept.
+     */
+    Exchange patch(URL url, String contentType, BodyWriter body, int connectTimeout, int readTimeout) throws IOException {
+        return send(url, "PATCH", contentType, body, -1, false, Collections.<String, String>emptyMap(),
+                connectTimeout, readTimeout);
+    }
+
+    /**
+     * GET the given URL
+     */
+    Exchange get(URL url, int connectTimeout, int readTimeout) throws IOException {
+        return send(url, "GET", null, null, -1, false, Collections.<String, String>emptyMap(),
+                connectTimeout, readTimeout);
+    }
+
+    /**
+     * @param method HTTP method; null means POST. With a body, any other method is sent as a POST
+     *     with the X-HTTP-Method-Override header.
+     */
+    private Exchange send(URL url, String method, String contentType, BodyWriter body, long contentLength,
+            boolean gzip, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException {
+        acquire(connectTimeout);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connections.add(connection);
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory());
+            }
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setRequestProperty("Connection", "keep-alive");
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            
+            if (body == null) {
+                connection.setRequestMethod(method);
+                int statusCode = connection.getResponseCode();
+                return new Exchange(this, connection, statusCode);
+            }
+            connection.setRequestMethod("POST");
+            if (method != null) {
+                connection.setRequestProperty("X-HTTP-Method-Override", method);
+            }
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setDoOutput(true);
+
+            if (gzip) {
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+            } else if (contentLength >= 0) {
+                connection.setFixedLengthStreamingMode(contentLength);
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+
+            try (OutputStream os = connection.getOutputStream()) {
+                if (gzip) {
+                    try (GZIPOutputStream gz = new GZIPOutputStream(new NonClosingOutputStream(os), 8192)) {
+                        body.writeTo(gz);
+                    }
+                } else {
+                    body.writeTo(os);
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+            return new Exchange(this, connection, statusCode);
+
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            release(connection, false);
+            throw e;
+        }
+    }
+
+    private TrackingSocketFactory getSocketFactory() {
+        SSLSocketFactory current = HttpsURLConnection.getDefaultSSLSocketFactory();
+        TrackingSocketFactory factory = socketFactory;
+        if (factory == null || factory.delegate != current) {
+            factory = new TrackingSocketFactory(current);
+            socketFactory = factory;
+        }
+        return factory;
+    }
+
+    /**
+     * Wait for a free connection slot, at most timeoutMillis
+     */
+    private void acquire(int timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            leases++;
+            if (active >= maxConnections) {
+                waits++;
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis > 0 ? timeoutMillis : DEFAULT_CONNECT_TIMEOUT);
+                while (active >= maxConnections) {
+                    if (remaining <= 0L) {
+                        waitTimeouts++;
+                        throw new IOException("Timed out waiting for a pooled Gemini connection (max " + maxConnections + ")");
+                    }
+                    remaining = released.awaitNanos(remaining);
+                    checkOpen();
+                }
+            }
+            active++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a pooled Gemini connection", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (shutDown) {
+            throw new IOException("Gemini HTTP transport is closed, the plugin is stopping");
+        }
+    }
+
+    /**
+     * @param connection the exchange's connection, null if it was not opened
+     * @param reusable whether the connection went back to the JDK keep-alive cache
+     */
+    private void release(HttpURLConnection connection, boolean reusable) {
+        if (connection != null) {
+            connections.remove(connection);
+        }
+        lock.lock();
+        try {
+            active--;
+            if (reusable) {
+                returned++;
+            } else {
+                closed++;
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot of the pool counters
+     */
+    PoolStats getPoolStats() {
+        TrackingSocketFactory factory = socketFactory;
+        int open = factory != null ? factory.countOpen() : -1;
+        long opened = factory != null ? factory.opened.get() : 0L;
+        lock.lock();
+        try {
+            // Sockets of the exchanges in flight are open but not idle
+            int idle = open < 0 ? -1 : Math.max(0, open - active);
+            return new PoolStats(maxConnections, active, idle, JDK_MAX_IDLE, leases, opened, returned, closed,
+                    waits, waitTimeouts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pool counters used to size maxConnections
+     */
+    static final class PoolStats {
+        final int maxConnections;
+        final int active;
+        // Open HTTPS connections not in use, -1 before the first HTTPS connection
+        final int idle;
+        final int keepAliveLimit;
+        final long leases;
+        // HTTPS connections opened, i.e. TLS handshakes; leases - opened were reused
+        final long opened;
+        final long returned;
+        final long closed;
+        final long waits;
+        final long waitTimeouts;
+
+        PoolStats(int maxConnections, int active, int idle, int keepAliveLimit, long leases, long opened,
+                long returned, long closed, long waits, long waitTimeouts) {
+            this.maxConnections = maxConnections;
+            this.active = active;
+            this.idle = idle;
+            this.keepAliveLimit = keepAliveLimit;
+            this.leases = leases;
+            this.opened = opened;
+            this.returned = returned;
+            this.closed = closed;
+            this.waits = waits;
+            this.waitTimeouts = waitTimeouts;
+        }
+
+        @Override
+        public String toString() {
+            return "max=" + maxConnections + ", active=" + active + ", idle=" + (idle < 0 ? "n/a" : String.valueOf(idle))
+                    + ", jdkKeepAlivePerHost=" + keepAliveLimit + ", leases=" + leases + ", opened=" + opened
+                    + ", returned=" + returned + ", closed=" + closed
+                    + ", waits=" + waits + ", waitTimeouts=" + waitTimeouts;
+        }
+    }
+
+    /**
+     * One request/response on a pooled connection
+     * Always close it, so the slot is released and the connection can be kept alive
+     */
+    static final class Exchange implements Closeable {
+        private final GeminiHttpTransport transport;
+        private final HttpURLConnection connection;
+        private final int statusCode;
+        private InputStream body;
+        private boolean closed;
+
+        private Exchange(GeminiHttpTransport transport, HttpURLConnection connection, int statusCode) {
+            this.transport = transport;
+            this.connection = connection;
+            this.statusCode = statusCode;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * Response body (error body for non-2xx codes), decompressed if needed
+         */
+        InputStream getBody() throws IOException {
+            if (body == null) {
+                InputStream raw = isSuccessful() ? connection.getInputStream() : connection.getErrorStream();
+                if (raw == null) {
+                    raw = new ByteArrayInputStream(new byte[0]);
+                }
+                if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                    raw = new GZIPInputStream(raw, 8192);
+                }
+                body = raw;
+            }
+            return body;
+        }
+
+        /**
+         * Abort the exchange without returning the connection to the keep-alive cache
+         */
+        void abort() {
+            if (!closed) {
+                closed = true;
+                connection.disconnect();
+                transport.release(connection, false);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean keptAlive;
+            try {
+                InputStream in = getBody();
+                byte[] skip = new byte[4096];
+                int drained = 0;
+                int n;
+                while (drained <= MAX_DRAIN_BYTES && (n = in.read(skip)) != -1) {
+                    drained += n;
+                }
+                keptAlive = drained <= MAX_DRAIN_BYTES;
+                in.close();
+            } catch (IOException e) {
+                keptAlive = false;
+            }
+            if (!keptAlive) {
+                connection.disconnect();
+            }
+            transport.release(connection, keptAlive);
+        }
+    }
+
+    /**
+     * Creates TLS sockets through the JVM default factory and keeps them until they are
+     * closed, which the JDK does when a connection fails or its keep-alive time runs out
+     */
+    private static final class TrackingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        private final AtomicLong opened = new AtomicLong();
+
+        TrackingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            opened.incrementAndGet();
+            sockets.add(socket);
+            countOpen();
+            return socket;
+        }
+
+        /**
+         * Drop the closed sockets and count the rest
+         */
+        int countOpen() {
+            sockets.removeIf(Socket::isClosed);
+            return sockets.size();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return track(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return track(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return track(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+    /**
+     * Lets GZIPOutputStream finish its trailer without closing the connection stream
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.mycompany.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads calls over several API keys
+ * Each call leases the key with the fewest outstanding calls relative to its quota, so a
+ * key with twice the requests per minute carries about twice the calls, and a key whose
+ * calls are slow (or queued by its rate limit) gets fewer new ones. The quota itself is
+ * enforced per key by the {@link GeminiRateLimiter}. Keys are never logged; they are
+ * described by their position in the configuration.
+ */
+final class GeminiKeyBalancer {
+
+    /**
+     * A configured key and its requests per minute, 0 for no quota of its own
+     */
+    static final class Key {
+        final String apiKey;
+        final int requestsPerMinute;
+
+        Key(String apiKey, int requestsPerMinute) {
+            this.apiKey = apiKey;
+            this.requestsPerMinute = Math.max(0, requestsPerMinute);
+        }
+    }
+
+    /**
+     * Outstanding call on a key; closing it more than once has no effect
+     */
+    static final class Lease implements AutoCloseable {
+        private final Key key;
+        private final Usage usage;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(Key key, Usage usage) {
+            this.key = key;
+            this.usage = usage;
+        }
+
+        String getApiKey() {
+            return key.apiKey;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                usage.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class Usage {
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong leases = new AtomicLong();
+    }
+
+    private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
+    private final AtomicLong rotation = new AtomicLong();
+
+    /**
+     * Keys from the primary key and a list of further keys, each optionally followed by
+     * ":requestsPerMinute", e.g. "AIza...:60, AIza...:300"
+     *
+     * @param defaultRequestsPerMinute quota of keys without their own
+     */
+    static List<Key> parse(String primaryKey, String additionalKeys, int defaultRequestsPerMinute) {
+        List<Key> keys = new ArrayList<>();
+        keys.add(new Key(primaryKey.trim(), defaultRequestsPerMinute));
+        if (additionalKeys == null || additionalKeys.trim().isEmpty()) {
+            return Collections.unmodifiableList(keys);
+        }
+        for (String entry : additionalKeys.split("[,;\\s]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            int requestsPerMinute = defaultRequestsPerMinute;
+            String apiKey = entry;
+            if (colon > 0 && entry.substring(colon + 1).matches("[0-9]{1,9}")) {
+                apiKey = entry.substring(0, colon);
+                requestsPerMinute = Integer.parseInt(entry.substring(colon + 1));
+            }
+            boolean duplicate = false;
+            for (Key key : keys) {
+                duplicate |= key.apiKey.equals(apiKey);
+            }
+            if (!duplicate) {
+                keys.add(new Key(apiKey, requestsPerMinute));
+            }
+        }
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Lease the least loaded key; the caller closes the lease when its call is done
+     */
+    Lease acquire(List<Key> keys) {
+        if (keys.size() == 1) {
+            return lease(keys.get(0));
+        }
+        int maxQuota = 0;
+        for (Key key : keys) {
+            maxQuota = Math.max(maxQuota, key.requestsPerMinute);
+        }
+        // Ties go round-robin, so idle keys take turns
+        int start = (int) (rotation.getAndIncrement() % keys.size());
+        Key best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.get((start + i) % keys.size());
+            int weight = key.requestsPerMinute > 0 ? key.requestsPerMinute : Math.max(1, maxQuota);
+            double load = (usage(key).outstanding.get() + 1) / (double) weight;
+            if (load < bestLoad) {
+                best = key;
+                bestLoad = load;
+            }
+        }
+        return lease(best);
+    }
+
+    private Lease lease(Key key) {
+        Usage keyUsage = usage(key);
+        keyUsage.outstanding.incrementAndGet();
+        keyUsage.leases.incrementAndGet();
+        return new Lease(key, keyUsage);
+    }
+
+    private Usage usage(Key key) {
+        return usage.computeIfAbsent(key.apiKey, k -> new Usage());
+    }
+
+    /**
+     * Calls on any key that have not finished
+     */
+    int getOutstanding() {
+        int outstanding = 0;
+        for (Usage keyUsage : usage.values()) {
+            outstanding += keyUsage.outstanding.get();
+        }
+        return outstanding;
+    }
+
+    /**
+     * Outstanding and total calls per key, in configuration order
+     */
+    String describe(List<Key> keys) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++) {
+            Usage keyUsage = usage(keys.get(i));
+            description.append(i > 0 ? ", " : "").append("key").append(i + 1)
+                    .append(": outstanding=").append(keyUsage.outstanding.get())
+                    .append(", leases=").append(keyUsage.leases.get());
+            if (keys.get(i).requestsPerMinute > 0) {
+                description.append(", rpm=").append(keys.get(i).requestsPerMinute);
+            }
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,304 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Runtime metrics for Gemini API calls, published as an MXBean
+ * Recording only touches LongAdders and lock-free histograms, so it is cheap enough
+ * to do on every call. Registered and unregistered by {@link GeminiRuntime}.
+ */
+final class GeminiMetrics implements GeminiMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.mycompany.plugin:type=GeminiAIProcessTool,name=Metrics";
+
+    private static final String CLASS_NAME = GeminiMetrics.class.getName();
+    private static final GeminiMetrics SHARED = new GeminiMetrics();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, LongAdder> errorsByStatus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LogHistogram> latencyByModel = new ConcurrentHashMap<>();
+    private final LogHistogram promptChars = new LogHistogram();
+    private final LogHistogram responseChars = new LogHistogram();
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder candidatesTokens = new LongAdder();
+    private final LongAdder totalTokens = new LongAdder();
+    private final LongAdder cachedContentTokens = new LongAdder();
+
+    static GeminiMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Run one HTTP call to the API and record its outcome
+     */
+    GeminiResponse record(GeminiRequest request, GeminiSingleFlight.Call call) throws IOException {
+        calls.increment();
+        inFlight.incrementAndGet();
+        promptChars.record(request.getTextLength());
+        long started = System.nanoTime();
+        try {
+            GeminiResponse response = call.call();
+            successes.increment();
+            recordUsage(response);
+            return response;
+        } catch (GeminiApiException e) {
+            error(statusLabel(e));
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            error("network");
+            throw e;
+        } finally {
+            latency(request.getModel()).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void recordUsage(GeminiResponse response) {
+        if (response.getText() != null) {
+            responseChars.record(response.getTextLength());
+        }
+        addIfReported(promptTokens, response.getPromptTokenCount());
+        addIfReported(candidatesTokens, response.getCandidatesTokenCount());
+        addIfReported(totalTokens, response.getTotalTokenCount());
+        addIfReported(cachedContentTokens, response.getCachedContentTokenCount());
+    }
+
+    private static void addIfReported(LongAdder adder, long count) {
+        if (count > 0) {
+            adder.add(count);
+        }
+    }
+
+    private static String statusLabel(GeminiApiException e) {
+        if (e.getStatusCode() == 200) {
+            return "empty";
+        }
+        if (e.getStatusCode() == 0) {
+            // Failed locally, e.g. DEADLINE_EXCEEDED while queueing
+            return String.valueOf(e.getStatus());
+        }
+        return String.valueOf(e.getStatusCode());
+    }
+
+    private void error(String status) {
+        errors.increment();
+        errorsByStatus.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    private LogHistogram latency(String model) {
+        LogHistogram histogram = latencyByModel.get(model);
+        return histogram != null ? histogram : latencyByModel.computeIfAbsent(model, m -> new LogHistogram());
+    }
+
+    /**
+     * Register with the platform MBean server, replacing a registration left by an earlier bundle start
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | RuntimeException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not register metrics MBean " + OBJECT_NAME);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | RuntimeException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not unregister metrics MBean " + OBJECT_NAME);
+        }
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getSuccesses() {
+        return successes.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public Map<String, Long> getErrorsByStatus() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errorsByStatus.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCallsByModel() {
+        return byModel(LogHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50MillisByModel() {
+        return byModel(histogram -> histogram.percentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP95MillisByModel() {
+        return byModel(histogram -> histogram.percentile(95));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99MillisByModel() {
+        return byModel(histogram -> histogram.percentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxMillisByModel() {
+        return byModel(LogHistogram::getMax);
+    }
+
+    private Map<String, Long> byModel(ToLongFunction<LogHistogram> value) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LogHistogram> entry : latencyByModel.entrySet()) {
+            result.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public long getPromptCharsTotal() {
+        return promptChars.getSum();
+    }
+
+    @Override
+    public long getPromptCharsP95() {
+        return promptChars.percentile(95);
+    }
+
+    @Override
+    public long getResponseCharsTotal() {
+        return responseChars.getSum();
+    }
+
+    @Override
+    public long getResponseCharsP95() {
+        return responseChars.percentile(95);
+    }
+
+    @Override
+    public long getPromptTokens() {
+        return promptTokens.sum();
+    }
+
+    @Override
+    public long getCandidatesTokens() {
+        return candidatesTokens.sum();
+    }
+
+    @Override
+    public long getTotalTokens() {
+        return totalTokens.sum();
+    }
+
+    @Override
+    public long getCachedContentTokens() {
+        return cachedContentTokens.sum();
+    }
+
+    @Override
+    public long getCoalescedCalls() {
+        return GeminiSingleFlight.shared().getJoined();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return GeminiResponseCache.shared().getStats().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return GeminiResponseCache.shared().getStats().misses;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return GeminiResponseCache.shared().getStats().size;
+    }
+
+    @Override
+    public long getSemanticCacheHits() {
+        return GeminiSemanticCache.shared().getHits();
+    }
+
+    @Override
+    public Map<String, String> getCircuitStateByModel() {
+        return GeminiCircuitBreaker.getStates();
+    }
+
+    @Override
+    public int getConnectionsActive() {
+        return GeminiHttpTransport.shared().getPoolStats().active;
+    }
+
+    @Override
+    public int getConnectionsMax() {
+        return GeminiHttpTransport.shared().getPoolStats().maxConnections;
+    }
+
+    @Override
+    public int getConnectionsIdle() {
+        return GeminiHttpTransport.shared().getPoolStats().idle;
+    }
+
+    @Override
+    public long getConnectionWaits() {
+        return GeminiHttpTransport.shared().getPoolStats().waits;
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        successes.reset();
+        errors.reset();
+        errorsByStatus.clear();
+        latencyByModel.clear();
+        promptChars.reset();
+        responseChars.reset();
+        promptTokens.reset();
+        candidatesTokens.reset();
+        totalTokens.reset();
+        cachedContentTokens.reset();
+    }
+}
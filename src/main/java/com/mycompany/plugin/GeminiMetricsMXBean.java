@@ -0,0 +1,90 @@
+package com.mycompany.plugin;
+
+import java.util.Map;
+
+/**
+ * Runtime metrics published over JMX as com.mycompany.plugin:type=GeminiAIProcessTool,name=Metrics
+ * Counters cover HTTP calls to the Gemini API (every attempt, including retries and hedges).
+ */
+public interface GeminiMetricsMXBean {
+
+    long getCalls();
+
+    long getSuccesses();
+
+    long getErrors();
+
+    int getInFlight();
+
+    /**
+     * Error count by HTTP status code; "network" for I/O failures, "empty" for answers without text
+     */
+    Map<String, Long> getErrorsByStatus();
+
+    Map<String, Long> getCallsByModel();
+
+    Map<String, Long> getLatencyP50MillisByModel();
+
+    Map<String, Long> getLatencyP95MillisByModel();
+
+    Map<String, Long> getLatencyP99MillisByModel();
+
+    Map<String, Long> getLatencyMaxMillisByModel();
+
+    long getPromptCharsTotal();
+
+    long getPromptCharsP95();
+
+    long getResponseCharsTotal();
+
+    long getResponseCharsP95();
+
+    long getPromptTokens();
+
+    long getCandidatesTokens();
+
+    long getTotalTokens();
+
+    long getCachedContentTokens();
+
+    /**
+     * Calls that joined an identical call already in flight instead of being sent
+     */
+    long getCoalescedCalls();
+
+    /**
+     * Response cache hits, memory and disk tier
+     */
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    int getCacheSize();
+
+    long getSemanticCacheHits();
+
+    /**
+     * Circuit breaker state by model: CLOSED, OPEN or HALF_OPEN
+     */
+    Map<String, String> getCircuitStateByModel();
+
+    int getConnectionsActive();
+
+    int getConnectionsMax();
+
+    /**
+     * Open HTTPS connections kept alive for reuse, -1 before the first one
+     */
+    int getConnectionsIdle();
+
+    /**
+     * Calls that had to wait for a free connection
+     */
+    long getConnectionWaits();
+
+    /**
+     * Clear the call counters and histograms; the cache, coalescing, circuit and connection
+     * figures are kept by those components and are not cleared
+     */
+    void reset();
+}
@@ -0,0 +1,73 @@
+package com.mycompany.plugin;
+
+/**
+ * Published token limits of the Gemini models
+ * Looked up by model name prefix, so versioned names such as "gemini-1.5-flash-002" or
+ * "models/gemini-2.0-flash-lite" match their family.
+ */
+final class GeminiModelLimits {
+
+    // Longer prefixes first, so the most specific entry wins
+    private static final GeminiModelLimits[] KNOWN = {
+        new GeminiModelLimits("gemini-2.5-pro", 1048576, 65536),
+        new GeminiModelLimits("gemini-2.5-flash", 1048576, 65536),
+        new GeminiModelLimits("gemini-2.0-flash", 1048576, 8192),
+        new GeminiModelLimits("gemini-2.0-pro", 2097152, 8192),
+        new GeminiModelLimits("gemini-1.5-pro", 2097152, 8192),
+        new GeminiModelLimits("gemini-1.5-flash", 1048576, 8192),
+        new GeminiModelLimits("gemini-1.0-pro", 30720, 2048),
+        new GeminiModelLimits("gemini-pro", 30720, 2048),
+    };
+
+    private final String prefix;
+    private final int inputTokens;
+    private final int outputTokens;
+
+    private GeminiModelLimits(String prefix, int inputTokens, int outputTokens) {
+        this.prefix = prefix;
+        this.inputTokens = inputTokens;
+        this.outputTokens = outputTokens;
+    }
+
+    /**
+     * Limits of the model, or null for a model that is not in the table
+     */
+    static GeminiModelLimits forModel(String model) {
+        if (model == null) {
+            return null;
+        }
+        String name = model.startsWith("models/") ? model.substring("models/".length()) : model;
+        for (GeminiModelLimits limits : KNOWN) {
+            if (name.startsWith(limits.prefix)) {
+                return limits;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * maxOutputTokens that the model accepts: the requested value capped at the model's limit.
+     * A null request stays null for unknown models, where the API default is safest.
+     */
+    static Integer clampOutputTokens(String model, Integer requested) {
+        GeminiModelLimits limits = forModel(model);
+        if (limits == null) {
+            return requested;
+        }
+        return requested == null ? Integer.valueOf(limits.outputTokens) : Integer.valueOf(Math.min(requested, limits.outputTokens));
+    }
+
+    /**
+     * Context window: most tokens the model accepts as input
+     */
+    int getInputTokens() {
+        return inputTokens;
+    }
+
+    /**
+     * Most tokens the model generates in one response
+     */
+    int getOutputTokens() {
+        return outputTokens;
+    }
+}
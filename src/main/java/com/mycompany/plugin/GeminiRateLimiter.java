@@ -0,0 +1,256 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per API key and model throttling with retries
+ * Each call first takes a token from the key's token bucket (if a rate is set), then a
+ * slot from its adaptive concurrency limit. Throttled (429), unavailable (5xx) and
+ * network failures are retried with jittered exponential backoff, honouring the
+ * server's Retry-After, and everything - queueing included - stays within one deadline.
+ */
+final class GeminiRateLimiter {
+
+    static final int DEFAULT_MAX_CONCURRENCY = 10;
+    static final int DEFAULT_MAX_RETRIES = 3;
+    static final int DEFAULT_DEADLINE_SECONDS = 120;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    private static final GeminiRateLimiter SHARED = new GeminiRateLimiter();
+
+    private final ConcurrentHashMap<String, Limits> limits = new ConcurrentHashMap<>();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deadlineExceeded = new AtomicLong();
+
+    static GeminiRateLimiter shared() {
+        return SHARED;
+    }
+
+    /**
+     * One attempt of the API call
+     */
+    interface Attempt {
+        /**
+         * @param readTimeoutMillis read timeout to use, already capped to the time left
+         */
+        GeminiResponse call(int readTimeoutMillis) throws IOException;
+    }
+
+    /**
+     * Limits for one call, taken from the tool properties
+     */
+    static final class Settings {
+        final int requestsPerMinute;
+        final int maxConcurrency;
+        final int maxRetries;
+        final long deadlineMillis;
+        final int readTimeoutMillis;
+
+        Settings(int requestsPerMinute, int maxConcurrency, int maxRetries, long deadlineMillis, int readTimeoutMillis) {
+            this.requestsPerMinute = requestsPerMinute;
+            this.maxConcurrency = maxConcurrency;
+            this.maxRetries = Math.max(0, maxRetries);
+            this.deadlineMillis = Math.max(1000L, deadlineMillis);
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+    }
+
+    /**
+     * Token bucket and concurrency limit for one API key and model
+     */
+    private static final class Limits {
+        volatile TokenBucket bucket;
+        final AdaptiveConcurrencyLimit concurrency;
+
+        Limits(int maxConcurrency) {
+            this.concurrency = new AdaptiveConcurrencyLimit(maxConcurrency);
+        }
+    }
+
+    /**
+     * Run the attempt under the key's limits, retrying retryable failures
+     *
+     * @param apiKey only used to pick the limits; never logged
+     */
+    GeminiResponse call(String apiKey, String model, Settings settings, Attempt attempt) throws IOException {
+        Limits keyLimits = getLimits(apiKey, model, settings);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.deadlineMillis);
+
+        for (int attemptNumber = 0; ; attemptNumber++) {
+            try {
+                if (keyLimits.bucket != null && !keyLimits.bucket.acquire(deadline)) {
+                    throw deadlineExceeded("waiting for the request rate limit");
+                }
+                if (!keyLimits.concurrency.acquire(deadline)) {
+                    throw deadlineExceeded("waiting for a concurrency slot");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the Gemini rate limit");
+            }
+
+            long started = System.nanoTime();
+            AdaptiveConcurrencyLimit.Outcome outcome = AdaptiveConcurrencyLimit.Outcome.FAILED;
+            IOException failure;
+            try {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - started);
+                int readTimeout = (int) Math.max(1L, Math.min(settings.readTimeoutMillis, remainingMillis));
+                GeminiResponse response = attempt.call(readTimeout);
+                outcome = AdaptiveConcurrencyLimit.Outcome.SUCCESS;
+                return response;
+            } catch (IOException e) {
+                outcome = classify(e);
+                failure = e;
+            } finally {
+                keyLimits.concurrency.release(System.nanoTime() - started, outcome);
+            }
+
+            if (attemptNumber >= settings.maxRetries || !isRetryable(failure)) {
+                throw failure;
+            }
+            long backoff = backoffMillis(attemptNumber, failure);
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) - deadline >= 0) {
+                // Not enough time left for another attempt
+                throw failure;
+            }
+            retries.incrementAndGet();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off before a Gemini retry");
+            }
+        }
+    }
+
+    /**
+     * Limits for the second request of a hedged attempt: a concurrency slot and a token if
+     * both are free at once, never waiting for either
+     */
+    GeminiHedging.Permits hedgePermits(String apiKey, String model, Settings settings) {
+        final Limits keyLimits = getLimits(apiKey, model, settings);
+        return new GeminiHedging.Permits() {
+            @Override
+            public boolean tryAcquire() {
+                if (!keyLimits.concurrency.tryAcquire()) {
+                    return false;
+                }
+                TokenBucket bucket = keyLimits.bucket;
+                if (bucket != null && !bucket.tryAcquire()) {
+                    keyLimits.concurrency.release(0L, AdaptiveConcurrencyLimit.Outcome.FAILED);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void release(long latencyNanos, IOException failure) {
+                keyLimits.concurrency.release(latencyNanos, failure == null ? AdaptiveConcurrencyLimit.Outcome.SUCCESS : classify(failure));
+            }
+        };
+    }
+
+    private Limits getLimits(String apiKey, String model, Settings settings) {
+        String key = GeminiResponseCache.key(apiKey, model);
+        Limits keyLimits = limits.computeIfAbsent(key, k -> new Limits(settings.maxConcurrency));
+        keyLimits.concurrency.setMaxLimit(settings.maxConcurrency);
+        if (settings.requestsPerMinute > 0) {
+            TokenBucket bucket = keyLimits.bucket;
+            if (bucket == null) {
+                synchronized (keyLimits) {
+                    if (keyLimits.bucket == null) {
+                        keyLimits.bucket = new TokenBucket(settings.requestsPerMinute);
+                    }
+                    bucket = keyLimits.bucket;
+                }
+            }
+            bucket.setRate(settings.requestsPerMinute);
+        } else {
+            keyLimits.bucket = null;
+        }
+        return keyLimits;
+    }
+
+    private IOException deadlineExceeded(String what) {
+        deadlineExceeded.incrementAndGet();
+        return new GeminiApiException(0, "DEADLINE_EXCEEDED", "Request deadline exceeded while " + what);
+    }
+
+    static boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        if (e instanceof GeminiApiException) {
+            int status = ((GeminiApiException) e).getStatusCode();
+            return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+        }
+        // Connection refused/reset, read timeouts and other network errors
+        return true;
+    }
+
+    private static AdaptiveConcurrencyLimit.Outcome classify(IOException e) {
+        if (e instanceof GeminiApiException) {
+            int status = ((GeminiApiException) e).getStatusCode();
+            if (status == 429 || status == 503) {
+                return AdaptiveConcurrencyLimit.Outcome.THROTTLED;
+            }
+            return AdaptiveConcurrencyLimit.Outcome.FAILED;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return AdaptiveConcurrencyLimit.Outcome.TIMEOUT;
+        }
+        return AdaptiveConcurrencyLimit.Outcome.FAILED;
+    }
+
+    /**
+     * Server-provided delay if there is one, otherwise full-jitter exponential backoff
+     */
+    private static long backoffMillis(int attemptNumber, IOException e) {
+        if (e instanceof GeminiApiException && ((GeminiApiException) e).getRetryAfterMillis() > 0) {
+            long retryAfter = ((GeminiApiException) e).getRetryAfterMillis();
+            // Small jitter so throttled callers do not all come back at the same instant
+            return retryAfter + ThreadLocalRandom.current().nextLong(Math.max(1L, retryAfter / 10));
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attemptNumber, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * Retry-After header value (delay in seconds or an HTTP date) in milliseconds, -1 if absent or invalid
+     */
+    static long parseRetryAfter(String header) {
+        if (header == null || header.trim().isEmpty()) {
+            return -1;
+        }
+        String value = header.trim();
+        try {
+            return Math.max(0L, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException e) {
+            // not delay-seconds, try HTTP-date
+        }
+        try {
+            long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0L, at - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    String describe(String apiKey, String model) {
+        Limits keyLimits = limits.get(GeminiResponseCache.key(apiKey, model));
+        String limitsText = keyLimits == null ? "no calls yet" : keyLimits.concurrency.describe()
+                + (keyLimits.bucket != null ? ", rateWaits=" + keyLimits.bucket.getWaits() : "");
+        return limitsText + ", retries=" + retries.get() + ", deadlineExceeded=" + deadlineExceeded.get();
+    }
+}
@@ -0,0 +1,381 @@
+package com.mycompany.plugin;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything that goes into a generateContent request body
+ * Serialized by {@link GeminiRequestWriter}
+ */
+final class GeminiRequest {
+
+    /**
+     * One conversation turn ("user" or "model")
+     */
+    static final class Content {
+        final String role;
+        final String text;
+        final List<Attachment> attachments;
+
+        Content(String role, String text) {
+            this(role, text, Collections.<Attachment>emptyList());
+        }
+
+        Content(String role, String text, List<Attachment> attachments) {
+            this.role = role;
+            this.text = text;
+            this.attachments = attachments;
+        }
+    }
+
+    /**
+     * A file sent along with a turn: either inline, base64-encoded from the file when the
+     * body is written, or a Files API URI
+     */
+    static final class Attachment {
+        final String fileName;
+        final String mimeType;
+        final String sha256;
+        final long size;
+        final Path file;
+        final String fileUri;
+
+        private Attachment(String fileName, String mimeType, String sha256, long size, Path file, String fileUri) {
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.sha256 = sha256;
+            this.size = size;
+            this.file = file;
+            this.fileUri = fileUri;
+        }
+
+        static Attachment inline(String fileName, String mimeType, String sha256, long size, Path file) {
+            return new Attachment(fileName, mimeType, sha256, size, file, null);
+        }
+
+        static Attachment uploaded(String fileName, String mimeType, String sha256, long size, String fileUri) {
+            return new Attachment(fileName, mimeType, sha256, size, null, fileUri);
+        }
+
+        boolean isInline() {
+            return fileUri == null;
+        }
+    }
+
+    /**
+     * One safetySettings entry
+     */
+    static final class SafetySetting {
+        final String category;
+        final String threshold;
+
+        SafetySetting(String category, String threshold) {
+            this.category = category;
+            this.threshold = threshold;
+        }
+    }
+
+    private final String model;
+    private final String systemInstruction;
+    private final List<Content> contents = new ArrayList<>();
+    private final List<SafetySetting> safetySettings = new ArrayList<>();
+    private final List<String> stopSequences = new ArrayList<>();
+
+    // generationConfig; null means "not set, use the model default"
+    private Double temperature;
+    private Double topP;
+    private Integer topK;
+    private Integer maxOutputTokens;
+    // responseSchema as compact ASCII JSON; set means the response is JSON
+    private String responseSchema;
+
+    // Server-side cached content standing in for the system instruction and the first turns
+    private String cachedContent;
+    private String contextCacheKey;
+    private int cachedTurns;
+
+    GeminiRequest(String model, String systemInstruction) {
+        this.model = model;
+        this.systemInstruction = systemInstruction;
+    }
+
+    GeminiRequest addContent(String role, String text) {
+        contents.add(new Content(role, text));
+        return this;
+    }
+
+    GeminiRequest addSafetySetting(String category, String threshold) {
+        safetySettings.add(new SafetySetting(category, threshold));
+        return this;
+    }
+
+    GeminiRequest addStopSequence(String stopSequence) {
+        stopSequences.add(stopSequence);
+        return this;
+    }
+
+    GeminiRequest setTemperature(Double temperature) {
+        this.temperature = temperature;
+        return this;
+    }
+
+    GeminiRequest setTopP(Double topP) {
+        this.topP = topP;
+        return this;
+    }
+
+    GeminiRequest setTopK(Integer topK) {
+        this.topK = topK;
+        return this;
+    }
+
+    GeminiRequest setMaxOutputTokens(Integer maxOutputTokens) {
+        this.maxOutputTokens = maxOutputTokens;
+        return this;
+    }
+
+    /**
+     * Ask for a JSON response that follows the schema, see {@link GeminiResponseSchema#toJson()}
+     */
+    GeminiRequest setResponseSchema(String responseSchema) {
+        this.responseSchema = responseSchema;
+        return this;
+    }
+
+    /**
+     * Copy of this request with the files attached to the final prompt
+     */
+    GeminiRequest withAttachments(List<Attachment> attachments) {
+        GeminiRequest copy = copy(model);
+        for (int i = copy.contents.size() - 1; i >= 0; i--) {
+            Content content = copy.contents.get(i);
+            if ("user".equals(content.role)) {
+                copy.contents.set(i, new Content(content.role, content.text, new ArrayList<>(attachments)));
+                break;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Copy of this request for another model, e.g. a fallback model. Cached content
+     * belongs to one model, so the copy sends everything in full.
+     */
+    GeminiRequest withModel(String otherModel) {
+        GeminiRequest copy = copy(otherModel);
+        // The other model may generate fewer tokens per response than this one
+        copy.maxOutputTokens = maxOutputTokens != null ? GeminiModelLimits.clampOutputTokens(otherModel, maxOutputTokens) : null;
+        return copy;
+    }
+
+    /**
+     * Copy of this request that refers to cached content for the system instruction and
+     * the first cachedTurns turns, and sends only the rest
+     *
+     * @param key registry key of the cached content, see {@link #contextKey(String)}
+     */
+    GeminiRequest withCachedContent(String key, String name, int turns) {
+        GeminiRequest copy = copy(model);
+        copy.contextCacheKey = key;
+        copy.cachedContent = name;
+        copy.cachedTurns = turns;
+        return copy;
+    }
+
+    /**
+     * Copy of this request continued with an answer of the model and a further user turn,
+     * e.g. to ask for a corrected answer
+     */
+    GeminiRequest withFollowUp(String answer, String prompt) {
+        GeminiRequest copy = copy(model);
+        copy.contents.add(new Content("model", answer));
+        copy.contents.add(new Content("user", prompt));
+        return copy;
+    }
+
+    /**
+     * Copy of this request that sends everything in full again
+     */
+    GeminiRequest withoutCachedContent() {
+        return copy(model);
+    }
+
+    private GeminiRequest copy(String otherModel) {
+        GeminiRequest copy = new GeminiRequest(otherModel, systemInstruction);
+        copy.contents.addAll(contents);
+        copy.safetySettings.addAll(safetySettings);
+        copy.stopSequences.addAll(stopSequences);
+        copy.temperature = temperature;
+        copy.topP = topP;
+        copy.topK = topK;
+        copy.maxOutputTokens = maxOutputTokens;
+        copy.responseSchema = responseSchema;
+        return copy;
+    }
+
+    String getModel() {
+        return model;
+    }
+
+    String getSystemInstruction() {
+        return systemInstruction;
+    }
+
+    List<Content> getContents() {
+        return Collections.unmodifiableList(contents);
+    }
+
+    List<SafetySetting> getSafetySettings() {
+        return Collections.unmodifiableList(safetySettings);
+    }
+
+    List<String> getStopSequences() {
+        return Collections.unmodifiableList(stopSequences);
+    }
+
+    Double getTemperature() {
+        return temperature;
+    }
+
+    Double getTopP() {
+        return topP;
+    }
+
+    Integer getTopK() {
+        return topK;
+    }
+
+    Integer getMaxOutputTokens() {
+        return maxOutputTokens;
+    }
+
+    String getResponseSchema() {
+        return responseSchema;
+    }
+
+    /**
+     * Name of the cached content this request refers to, e.g. "cachedContents/abc", or null
+     */
+    String getCachedContent() {
+        return cachedContent;
+    }
+
+    String getContextCacheKey() {
+        return contextCacheKey;
+    }
+
+    /**
+     * Number of leading turns that are part of the cached content and not sent
+     */
+    int getCachedTurns() {
+        return cachedTurns;
+    }
+
+    /**
+     * Context cache key: the API key (cached content belongs to its project), model, system
+     * instruction and every turn before the final prompt
+     */
+    String contextKey(String apiKey) {
+        List<String> fields = new ArrayList<>();
+        fields.add(apiKey);
+        fields.add(model);
+        fields.add(systemInstruction);
+        for (int i = 0; i < contents.size() - 1; i++) {
+            fields.add(contents.get(i).role);
+            fields.add(contents.get(i).text);
+        }
+        return GeminiResponseCache.key(fields.toArray(new String[0]));
+    }
+
+    /**
+     * Characters of prompt text in the request: system instruction plus all turns
+     */
+    long getTextLength() {
+        long length = systemInstruction != null ? systemInstruction.length() : 0;
+        for (Content content : contents) {
+            length += content.text != null ? content.text.length() : 0;
+        }
+        return length;
+    }
+
+    boolean hasGenerationConfig() {
+        return temperature != null || topP != null || topK != null || maxOutputTokens != null || !stopSequences.isEmpty()
+                || responseSchema != null;
+    }
+
+    /**
+     * Files attached to any turn
+     */
+    List<Attachment> getAttachments() {
+        List<Attachment> attachments = new ArrayList<>();
+        for (Content content : contents) {
+            attachments.addAll(content.attachments);
+        }
+        return attachments;
+    }
+
+    /**
+     * Response cache key: (model, system instruction, prompt), plus earlier turns, attached
+     * file contents and generation/safety settings when they are set, since those change the
+     * answer too
+     */
+    String cacheKey() {
+        String prompt = getPrompt();
+        if (contents.size() <= 1 && !hasGenerationConfig() && safetySettings.isEmpty() && getAttachments().isEmpty()) {
+            return GeminiResponseCache.key(model, systemInstruction, prompt);
+        }
+        List<String> fields = new ArrayList<>();
+        fields.add(model);
+        fields.add(systemInstruction);
+        fields.add(prompt);
+        for (Content content : contents) {
+            fields.add(content.role);
+            fields.add(content.text);
+            for (Attachment attachment : content.attachments) {
+                fields.add(attachment.mimeType + ";sha256=" + attachment.sha256);
+            }
+        }
+        addSettings(fields);
+        return GeminiResponseCache.key(fields.toArray(new String[0]));
+    }
+
+    /**
+     * Semantic cache scope: everything that changes the answer except the final prompt, so
+     * only prompts asked with the same model, instruction, turns and settings are compared,
+     * and only embeddings of the same embedding model
+     */
+    String semanticScope(String embeddingModel) {
+        List<String> fields = new ArrayList<>();
+        fields.add(embeddingModel);
+        fields.add(model);
+        fields.add(systemInstruction);
+        for (int i = 0; i < contents.size() - 1; i++) {
+            fields.add(contents.get(i).role);
+            fields.add(contents.get(i).text);
+        }
+        addSettings(fields);
+        return GeminiResponseCache.key(fields.toArray(new String[0]));
+    }
+
+    private void addSettings(List<String> fields) {
+        fields.add("temperature=" + temperature + ";topP=" + topP + ";topK=" + topK
+                + ";maxOutputTokens=" + maxOutputTokens + ";stop=" + stopSequences + ";schema=" + responseSchema);
+        for (SafetySetting setting : safetySettings) {
+            fields.add(setting.category + "=" + setting.threshold);
+        }
+    }
+
+    /**
+     * Text of the last user turn, i.e. the final prompt
+     */
+    String getPrompt() {
+        for (int i = contents.size() - 1; i >= 0; i--) {
+            if ("user".equals(contents.get(i).role)) {
+                return contents.get(i).text;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,436 @@
+package com.mycompany.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Serializes a {@link GeminiRequest} as JSON straight into an OutputStream
+ * Strings are escaped and UTF-8 encoded into a reusable per-thread buffer, so no
+ * prompt-sized intermediate Strings or byte arrays are created. The same code path
+ * can run in counting mode to get the exact body length for fixed-length streaming.
+ * Inline attachments are memory-mapped and base64-encoded into the same buffer, so a file
+ * is never held on the heap; in counting mode their length follows from the file size.
+ */
+final class GeminiRequestWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    private long written;
+
+    private GeminiRequestWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = out != null ? BUFFERS.get() : null;
+    }
+
+    /**
+     * Write the request body to the stream
+     */
+    static void write(GeminiRequest request, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.writeRequest(request);
+        writer.flush();
+    }
+
+    /**
+     * Exact size in bytes of the serialized body, computed without allocating it
+     */
+    static long measure(GeminiRequest request) {
+        GeminiRequestWriter counter = new GeminiRequestWriter(null);
+        try {
+            counter.writeRequest(request);
+        } catch (IOException e) {
+            // counting never does I/O
+            throw new IllegalStateException(e);
+        }
+        return counter.written;
+    }
+
+    /**
+     * Write a cachedContents create body: the model, the system instruction and the first
+     * turns of the request, kept for ttlSeconds
+     */
+    static void writeCachedContent(GeminiRequest request, int turns, int ttlSeconds, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.writeCachedContent(request, turns, ttlSeconds);
+        writer.flush();
+    }
+
+    /**
+     * Write a cachedContents update body that only sets a new TTL
+     */
+    static void writeTtl(int ttlSeconds, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.raw("{\"ttl\":\"" + ttlSeconds + "s\"}");
+        writer.flush();
+    }
+
+    /**
+     * Write the metadata body that starts a Files API upload
+     */
+    static void writeFileMetadata(String displayName, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.raw("{\"file\":{\"display_name\":");
+        writer.string(displayName);
+        writer.raw("}}");
+        writer.flush();
+    }
+
+    /**
+     * Write an embedContent body for comparing the text with others
+     */
+    static void writeEmbedContent(String model, String text, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.raw("{\"model\":");
+        writer.string("models/" + model);
+        writer.raw(",\"content\":{\"parts\":[{\"text\":");
+        writer.string(text);
+        writer.raw("}]},\"taskType\":\"SEMANTIC_SIMILARITY\"}");
+        writer.flush();
+    }
+
+    /**
+     * Write a batchGenerateContent body with the requests inline; each request carries its
+     * index as metadata key
+     */
+    static void writeBatch(List<GeminiRequest> requests, String displayName, OutputStream out) throws IOException {
+        GeminiRequestWriter writer = new GeminiRequestWriter(out);
+        writer.raw("{\"batch\":{\"display_name\":");
+        writer.string(displayName);
+        writer.raw(",\"input_config\":{\"requests\":{\"requests\":[");
+        for (int i = 0; i < requests.size(); i++) {
+            if (i > 0) {
+                writer.raw(',');
+            }
+            writer.raw("{\"request\":");
+            writer.writeRequest(requests.get(i));
+            writer.raw(",\"metadata\":{\"key\":\"" + i + "\"}}");
+        }
+        writer.raw("]}}}}");
+        writer.flush();
+    }
+
+    /**
+     * JSON array of strings, e.g. batch results for an output variable
+     */
+    static String toJsonArray(List<String> values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            GeminiRequestWriter writer = new GeminiRequestWriter(out);
+            writer.raw('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writer.raw(',');
+                }
+                writer.string(values.get(i));
+            }
+            writer.raw(']');
+            writer.flush();
+        } catch (IOException e) {
+            // in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void writeCachedContent(GeminiRequest request, int turns, int ttlSeconds) throws IOException {
+        raw("{\"model\":");
+        string("models/" + request.getModel());
+        if (turns > 0) {
+            raw(",\"contents\":");
+            writeContents(request.getContents(), 0, turns);
+        }
+        writeSystemInstruction(request.getSystemInstruction());
+        raw(",\"ttl\":\"" + ttlSeconds + "s\"}");
+    }
+
+    private void writeRequest(GeminiRequest request) throws IOException {
+        List<GeminiRequest.Content> contents = request.getContents();
+        raw("{\"contents\":");
+        if (request.getCachedContent() != null) {
+            // The system instruction and the first turns are already on the server
+            writeContents(contents, request.getCachedTurns(), contents.size());
+            raw(",\"cachedContent\":");
+            string(request.getCachedContent());
+        } else {
+            writeContents(contents, 0, contents.size());
+            writeSystemInstruction(request.getSystemInstruction());
+        }
+
+        if (request.hasGenerationConfig()) {
+            raw(",\"generationConfig\":{");
+            boolean first = true;
+            first = numberField(first, "temperature", request.getTemperature());
+            first = numberField(first, "topP", request.getTopP());
+            first = numberField(first, "topK", request.getTopK());
+            first = numberField(first, "maxOutputTokens", request.getMaxOutputTokens());
+            List<String> stopSequences = request.getStopSequences();
+            if (!stopSequences.isEmpty()) {
+                if (!first) {
+                    raw(',');
+                }
+                raw("\"stopSequences\":[");
+                for (int i = 0; i < stopSequences.size(); i++) {
+                    if (i > 0) {
+                        raw(',');
+                    }
+                    string(stopSequences.get(i));
+                }
+                raw(']');
+                first = false;
+            }
+            if (request.getResponseSchema() != null) {
+                if (!first) {
+                    raw(',');
+                }
+                raw("\"responseMimeType\":\"application/json\",\"responseSchema\":");
+                // Compiled to ASCII, see GeminiResponseSchema
+                raw(request.getResponseSchema());
+            }
+            raw('}');
+        }
+
+        List<GeminiRequest.SafetySetting> safetySettings = request.getSafetySettings();
+        if (!safetySettings.isEmpty()) {
+            raw(",\"safetySettings\":[");
+            for (int i = 0; i < safetySettings.size(); i++) {
+                if (i > 0) {
+                    raw(',');
+                }
+                raw("{\"category\":");
+                string(safetySettings.get(i).category);
+                raw(",\"threshold\":");
+                string(safetySettings.get(i).threshold);
+                raw('}');
+            }
+            raw(']');
+        }
+        raw('}');
+    }
+
+    private void writeContents(List<GeminiRequest.Content> contents, int from, int to) throws IOException {
+        raw('[');
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                raw(',');
+            }
+            GeminiRequest.Content content = contents.get(i);
+            raw("{\"role\":");
+            string(content.role);
+            raw(",\"parts\":[");
+            // Files first: the model answers better with the question after the media
+            for (GeminiRequest.Attachment attachment : content.attachments) {
+                writeAttachment(attachment);
+                raw(',');
+            }
+            raw("{\"text\":");
+            string(content.text);
+            raw("}]}");
+        }
+        raw(']');
+    }
+
+    private void writeAttachment(GeminiRequest.Attachment attachment) throws IOException {
+        if (attachment.isInline()) {
+            raw("{\"inlineData\":{\"mimeType\":");
+            string(attachment.mimeType);
+            raw(",\"data\":\"");
+            base64(attachment);
+            raw("\"}}");
+        } else {
+            raw("{\"fileData\":{\"mimeType\":");
+            string(attachment.mimeType);
+            raw(",\"fileUri\":");
+            string(attachment.fileUri);
+            raw("}}");
+        }
+    }
+
+    /**
+     * Base64 of the attached file, read through a read-only mapping
+     */
+    private void base64(GeminiRequest.Attachment attachment) throws IOException {
+        if (buffer == null) {
+            written += (attachment.size + 2) / 3 * 4;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(attachment.file, StandardOpenOption.READ)) {
+            if (channel.size() != attachment.size) {
+                // The body length was measured with the old size
+                throw new IOException("Attachment " + attachment.fileName + " changed while the request was sent");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, attachment.size);
+            while (data.remaining() >= 3) {
+                int bits = (data.get() & 0xFF) << 16 | (data.get() & 0xFF) << 8 | (data.get() & 0xFF);
+                put(BASE64[bits >>> 18]);
+                put(BASE64[(bits >>> 12) & 0x3F]);
+                put(BASE64[(bits >>> 6) & 0x3F]);
+                put(BASE64[bits & 0x3F]);
+            }
+            if (data.hasRemaining()) {
+                int bits = (data.get() & 0xFF) << 16;
+                boolean two = data.hasRemaining();
+                if (two) {
+                    bits |= (data.get() & 0xFF) << 8;
+                }
+                put(BASE64[bits >>> 18]);
+                put(BASE64[(bits >>> 12) & 0x3F]);
+                put(two ? BASE64[(bits >>> 6) & 0x3F] : '=');
+                put('=');
+            }
+        }
+    }
+
+    private void writeSystemInstruction(String systemInstruction) throws IOException {
+        if (systemInstruction != null && !systemInstruction.trim().isEmpty()) {
+            raw(",\"systemInstruction\":{\"parts\":[{\"text\":");
+            string(systemInstruction);
+            raw("}]}");
+        }
+    }
+
+    private boolean numberField(boolean first, String name, Number value) throws IOException {
+        if (value == null) {
+            return first;
+        }
+        if (!first) {
+            raw(',');
+        }
+        raw('"');
+        raw(name);
+        raw("\":");
+        raw(value.toString());
+        return false;
+    }
+
+    /**
+     * Quoted, escaped, UTF-8 encoded JSON string
+     */
+    private void string(String value) throws IOException {
+        raw('"');
+        if (value != null) {
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        put(c);
+                    } else {
+                        escape(c);
+                    }
+                } else if (c < 0x800) {
+                    put(0xC0 | (c >> 6));
+                    put(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    put(0xF0 | (codePoint >> 18));
+                    put(0x80 | ((codePoint >> 12) & 0x3F));
+                    put(0x80 | ((codePoint >> 6) & 0x3F));
+                    put(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate: not valid UTF-8, send U+FFFD instead
+                    put(0xEF);
+                    put(0xBF);
+                    put(0xBD);
+                } else if (c == 0x2028 || c == 0x2029) {
+                    // Line/paragraph separators are valid JSON but break some parsers
+                    unicodeEscape(c);
+                } else {
+                    put(0xE0 | (c >> 12));
+                    put(0x80 | ((c >> 6) & 0x3F));
+                    put(0x80 | (c & 0x3F));
+                }
+            }
+        }
+        raw('"');
+    }
+
+    private void escape(char c) throws IOException {
+        switch (c) {
+            case '"':
+                put('\\');
+                put('"');
+                break;
+            case '\\':
+                put('\\');
+                put('\\');
+                break;
+            case '\n':
+                put('\\');
+                put('n');
+                break;
+            case '\r':
+                put('\\');
+                put('r');
+                break;
+            case '\t':
+                put('\\');
+                put('t');
+                break;
+            case '\b':
+                put('\\');
+                put('b');
+                break;
+            case '\f':
+                put('\\');
+                put('f');
+                break;
+            default:
+                unicodeEscape(c);
+        }
+    }
+
+    private void unicodeEscape(char c) throws IOException {
+        put('\\');
+        put('u');
+        put(HEX[(c >> 12) & 0xF]);
+        put(HEX[(c >> 8) & 0xF]);
+        put(HEX[(c >> 4) & 0xF]);
+        put(HEX[c & 0xF]);
+    }
+
+    /**
+     * ASCII text that needs no escaping
+     */
+    private void raw(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            put(ascii.charAt(i));
+        }
+    }
+
+    private void raw(char c) throws IOException {
+        put(c);
+    }
+
+    private void put(int b) throws IOException {
+        written++;
+        if (buffer == null) {
+            return;
+        }
+        if (position == buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,414 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Parsed Gemini generateContent response
+ * Text of all parts across candidates is streamed into a {@link TextSink} in a single pass;
+ * everything else the plugin needs (finish reason, token usage, errors) is kept here.
+ */
+final class GeminiResponse implements Cloneable {
+
+    private String text;
+    private long textLength;
+    private boolean stored;
+    private String model;
+    private String finishReason;
+    private String blockReason;
+    private String modelVersion;
+    private long promptTokenCount = -1;
+    private long candidatesTokenCount = -1;
+    private long totalTokenCount = -1;
+    private long cachedContentTokenCount = -1;
+    private int candidateCount;
+    private int textPartCount;
+    private int errorCode;
+    private String errorStatus;
+    private String errorMessage;
+    private long retryDelayMillis = -1;
+    private String resourceName;
+    private String expireTime;
+    private Map<String, String> fields = Collections.emptyMap();
+
+    /**
+     * Parse a response body; candidate texts are appended to the sink.
+     * Candidates after the first are separated by a blank line.
+     */
+    static GeminiResponse parse(InputStream in, TextSink sink) throws IOException {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8), sink);
+    }
+
+    static GeminiResponse parse(Reader in, TextSink sink) throws IOException {
+        GeminiResponse response = new GeminiResponse();
+        response.merge(in, sink);
+        return response;
+    }
+
+    /**
+     * Parse one more response chunk (e.g. a streamed event) into this response.
+     * Text continues in the same sink; finish reason and usage take the latest values.
+     */
+    void merge(Reader in, TextSink sink) throws IOException {
+        readObject(new JsonReader(in), sink);
+    }
+
+    /**
+     * Response object at the reader's current position, e.g. one result of a batch job
+     */
+    static GeminiResponse read(JsonReader reader, TextSink sink) throws IOException {
+        GeminiResponse response = new GeminiResponse();
+        response.readObject(reader, sink);
+        return response;
+    }
+
+    /**
+     * Bare error object ({code, status, message}) at the reader's current position
+     */
+    static GeminiResponse readErrorObject(JsonReader reader) throws IOException {
+        GeminiResponse response = new GeminiResponse();
+        response.readError(reader);
+        return response;
+    }
+
+    private void readObject(JsonReader reader, TextSink sink) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "candidates":
+                    readCandidates(reader, sink);
+                    break;
+                case "usageMetadata":
+                    readUsage(reader);
+                    break;
+                case "promptFeedback":
+                    readPromptFeedback(reader);
+                    break;
+                case "modelVersion":
+                    modelVersion = reader.nextString();
+                    break;
+                case "error":
+                    readError(reader);
+                    break;
+                case "name":
+                    resourceName = reader.nextString();
+                    break;
+                case "expireTime":
+                    expireTime = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readCandidates(JsonReader reader, TextSink sink) throws IOException {
+        reader.beginArray();
+        int index = 0;
+        while (reader.hasNext()) {
+            boolean separate = index > 0 && textPartCount > 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("content".equals(name) && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    separate = readContent(reader, sink, separate);
+                } else if ("finishReason".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                    finishReason = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            index++;
+        }
+        reader.endArray();
+        candidateCount = Math.max(candidateCount, index);
+    }
+
+    private boolean readContent(JsonReader reader, TextSink sink, boolean separate) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("parts".equals(reader.nextName()) && reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("text".equals(reader.nextName()) && reader.peek() == JsonReader.Token.STRING) {
+                            if (separate) {
+                                sink.append('\n');
+                                sink.append('\n');
+                                separate = false;
+                            }
+                            reader.nextString(sink);
+                            textPartCount++;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return separate;
+    }
+
+    private void readUsage(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "promptTokenCount":
+                    promptTokenCount = reader.nextLong();
+                    break;
+                case "candidatesTokenCount":
+                    candidatesTokenCount = reader.nextLong();
+                    break;
+                case "totalTokenCount":
+                    totalTokenCount = reader.nextLong();
+                    break;
+                case "cachedContentTokenCount":
+                    cachedContentTokenCount = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readPromptFeedback(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("blockReason".equals(reader.nextName())) {
+                blockReason = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readError(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "code":
+                    errorCode = (int) reader.nextLong();
+                    break;
+                case "status":
+                    errorStatus = reader.nextString();
+                    break;
+                case "message":
+                    errorMessage = reader.nextString();
+                    break;
+                case "details":
+                    readErrorDetails(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Picks up google.rpc.RetryInfo's retryDelay (e.g. "34s" or "1.5s") from a 429 error
+     */
+    private void readErrorDetails(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("retryDelay".equals(reader.nextName()) && reader.peek() == JsonReader.Token.STRING) {
+                    retryDelayMillis = parseDuration(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    private static long parseDuration(String value) {
+        if (value == null || !value.endsWith("s")) {
+            return -1;
+        }
+        try {
+            return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 1000);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copy that can be changed without affecting this response, e.g. for each caller
+     * sharing one coalesced call
+     */
+    GeminiResponse copy() {
+        try {
+            return (GeminiResponse) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Joined text of all parts, set by the caller from the sink it passed in
+     */
+    String getText() {
+        return text;
+    }
+
+    void setText(String text) {
+        this.text = text;
+        this.textLength = text != null ? text.length() : 0;
+        this.stored = false;
+    }
+
+    /**
+     * Set the text to a {@link GeminiResponseStore} reference for a response kept in a file
+     *
+     * @param chars length of the stored text
+     */
+    void setStoredText(String reference, long chars) {
+        this.text = reference;
+        this.textLength = chars;
+        this.stored = true;
+    }
+
+    /**
+     * Whether the text is a reference to a stored response rather than the response itself
+     */
+    boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * Length of the response text, also when it is stored
+     */
+    long getTextLength() {
+        return textLength;
+    }
+
+    /**
+     * Top-level fields of a structured response, see {@link GeminiResponseSchema#read(String)};
+     * empty for plain text
+     */
+    Map<String, String> getFields() {
+        return fields;
+    }
+
+    void setFields(Map<String, String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Model the request was sent to; differs from the requested model after a fallback
+     */
+    String getModel() {
+        return model;
+    }
+
+    void setModel(String model) {
+        this.model = model;
+    }
+
+    boolean hasText() {
+        return textPartCount > 0;
+    }
+
+    String getFinishReason() {
+        return finishReason;
+    }
+
+    String getBlockReason() {
+        return blockReason;
+    }
+
+    String getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * Token counts from usageMetadata, -1 when not reported
+     */
+    long getPromptTokenCount() {
+        return promptTokenCount;
+    }
+
+    long getCandidatesTokenCount() {
+        return candidatesTokenCount;
+    }
+
+    long getTotalTokenCount() {
+        return totalTokenCount;
+    }
+
+    long getCachedContentTokenCount() {
+        return cachedContentTokenCount;
+    }
+
+    int getCandidateCount() {
+        return candidateCount;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    String getErrorStatus() {
+        return errorStatus;
+    }
+
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Server-suggested retry delay from the error details, -1 when not given
+     */
+    long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    /**
+     * Resource name from a cachedContents response, e.g. "cachedContents/abc"
+     */
+    String getResourceName() {
+        return resourceName;
+    }
+
+    /**
+     * Expiry time (RFC 3339) from a cachedContents response
+     */
+    String getExpireTime() {
+        return expireTime;
+    }
+
+    String describeUsage() {
+        return "finishReason=" + finishReason + ", promptTokens=" + promptTokenCount
+                + ", candidatesTokens=" + candidatesTokenCount + ", totalTokens=" + totalTokenCount
+                + (cachedContentTokenCount >= 0 ? ", cachedTokens=" + cachedContentTokenCount : "");
+    }
+}
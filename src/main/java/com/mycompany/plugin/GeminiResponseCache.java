@@ -0,0 +1,455 @@
+package com.mycompany.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SetupManager;
+
+/**
+ * Response cache for identical Gemini requests
+ * Keyed by a SHA-256 of (model, system instruction, final prompt).
+ * The memory tier is an LRU bounded by entry count and by the estimated heap size of the
+ * cached texts, so a few very long responses cannot fill the heap; the optional disk tier
+ * keeps entries under app_data so hits survive a bundle restart.
+ */
+final class GeminiResponseCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+    static final int DEFAULT_MAX_MEMORY_MB = 64;
+    static final int DEFAULT_TTL_SECONDS = 3600;
+
+    private static final String CLASS_NAME = GeminiResponseCache.class.getName();
+    private static final String CACHE_DIRECTORY = "app_data/gemini-ai-process-tool/response-cache";
+    private static final String FILE_SUFFIX = ".cache";
+
+    // Disk tier keeps this many times the memory entries before the oldest files are removed
+    private static final int DISK_ENTRY_FACTOR = 10;
+    private static final int DISK_SWEEP_INTERVAL = 100;
+    // Heap of an entry apart from its characters: map node, key string, CachedResponse
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private static final GeminiResponseCache SHARED = new GeminiResponseCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_MEMORY_MB * 1024L * 1024L);
+
+    private final LruMap entries;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong diskWrites = new AtomicLong();
+
+    private volatile Path directory;
+    // Guarded by entries; whether a tool has sized the cache yet
+    private boolean sized;
+
+    GeminiResponseCache(int maxEntries, long maxBytes) {
+        this.entries = new LruMap(maxEntries, maxBytes);
+    }
+
+    /**
+     * Cache shared by every plugin instance in this bundle
+     */
+    static GeminiResponseCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Cache key for a request; fields are length-prefixed so they cannot run into each other
+     */
+    static String key(String model, String systemInstruction, String prompt) {
+        return key(new String[] {model, systemInstruction, prompt});
+    }
+
+    /**
+     * Cache key over any number of request fields
+     */
+    static String key(String... fields) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String field : fields) {
+                update(digest, field);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        digest.update(new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        final char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Apply a tool's configured limits. The cache is shared, so the largest entry count and
+     * memory size any tool asked for apply; one tool with small limits cannot evict the
+     * others' entries.
+     *
+     * @param maxMemoryMb estimated heap the cached texts may take, in megabytes
+     */
+    void requireLimits(int maxEntries, int maxMemoryMb) {
+        synchronized (entries) {
+            int limit = Math.max(1, maxEntries);
+            long bytes = Math.max(1, maxMemoryMb) * 1024L * 1024L;
+            if (sized && limit <= entries.maxEntries && bytes <= entries.maxBytes) {
+                return;
+            }
+            // The first configured limits may be below the defaults
+            entries.maxEntries = sized ? Math.max(limit, entries.maxEntries) : limit;
+            entries.maxBytes = sized ? Math.max(bytes, entries.maxBytes) : bytes;
+            sized = true;
+            entries.trim();
+        }
+    }
+
+    /**
+     * Look up a cached response
+     *
+     * @param useDisk also check the disk tier on a memory miss
+     * @return the cached response, or null on a miss
+     */
+    String get(String key, boolean useDisk) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CachedResponse entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    memoryHits.incrementAndGet();
+                    return entry.value;
+                }
+                entries.delete(key);
+                expirations.incrementAndGet();
+            }
+        }
+
+        if (useDisk) {
+            CachedResponse entry = readFromDisk(key, now);
+            if (entry != null) {
+                synchronized (entries) {
+                    entries.add(key, entry);
+                }
+                diskHits.incrementAndGet();
+                return entry.value;
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a response for ttlSeconds
+     *
+     * @param useDisk also write the entry to the disk tier
+     */
+    void put(String key, String value, int ttlSeconds, boolean useDisk) {
+        if (value == null || ttlSeconds <= 0) {
+            return;
+        }
+        CachedResponse entry = new CachedResponse(value, System.currentTimeMillis() + ttlSeconds * 1000L);
+        synchronized (entries) {
+            entries.add(key, entry);
+        }
+        if (useDisk) {
+            writeToDisk(key, entry);
+        }
+    }
+
+    /**
+     * Drop all memory entries; disk entries are kept
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            entries.bytes = 0;
+        }
+    }
+
+    CacheStats getStats() {
+        int size;
+        int maxEntries;
+        long bytes;
+        long maxBytes;
+        synchronized (entries) {
+            size = entries.size();
+            maxEntries = entries.maxEntries;
+            bytes = entries.bytes;
+            maxBytes = entries.maxBytes;
+        }
+        return new CacheStats(size, maxEntries, bytes, maxBytes, memoryHits.get(), diskHits.get(), misses.get(),
+                entries.evictions.get(), expirations.get(), diskWrites.get());
+    }
+
+    /**
+     * Disk entry layout: expiresAt (8 bytes), value length (4 bytes), UTF-8 value
+     */
+    private CachedResponse readFromDisk(String key, long now) {
+        Path dir = getDirectory();
+        if (dir == null) {
+            return null;
+        }
+        Path file = dir.resolve(key + FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // keep reading
+            }
+            if (header.hasRemaining()) {
+                return null;
+            }
+            header.flip();
+            long expiresAt = header.getLong();
+            int length = header.getInt();
+            if (expiresAt > now && length >= 0 && length == channel.size() - 12) {
+                ByteBuffer data = ByteBuffer.allocate(length);
+                while (data.hasRemaining() && channel.read(data) != -1) {
+                    // keep reading
+                }
+                return new CachedResponse(new String(data.array(), 0, data.position(), StandardCharsets.UTF_8), expiresAt);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not read response cache file " + file);
+            return null;
+        }
+        // Expired or damaged; deleted once the channel is closed
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not delete response cache file " + file);
+        }
+        expirations.incrementAndGet();
+        return null;
+    }
+
+    private void writeToDisk(String key, CachedResponse entry) {
+        Path dir = getDirectory();
+        if (dir == null) {
+            return;
+        }
+        byte[] value = entry.value.getBytes(StandardCharsets.UTF_8);
+        Path file = dir.resolve(key + FILE_SUFFIX);
+        Path temp = dir.resolve(key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(12);
+                header.putLong(entry.expiresAt).putInt(value.length).flip();
+                ByteBuffer[] buffers = {header, ByteBuffer.wrap(value)};
+                while (buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            // Readers only ever see complete files
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskWrites.incrementAndGet() % DISK_SWEEP_INTERVAL == 0) {
+                sweepDisk(dir);
+            }
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not write response cache file " + file);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Remove expired files and keep the disk tier bounded, oldest files first
+     */
+    private void sweepDisk(Path dir) {
+        long now = System.currentTimeMillis();
+        int maxFiles;
+        synchronized (entries) {
+            maxFiles = entries.maxEntries * DISK_ENTRY_FACTOR;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                if (readExpiresAt(file) <= now) {
+                    Files.deleteIfExists(file);
+                } else {
+                    files.add(file);
+                }
+            }
+            if (files.size() > maxFiles) {
+                files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+                for (int i = 0; i < files.size() - maxFiles; i++) {
+                    Files.deleteIfExists(files.get(i));
+                }
+            }
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not clean up response cache directory " + dir);
+        }
+    }
+
+    private long readExpiresAt(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // keep reading
+            }
+            return header.hasRemaining() ? 0L : header.getLong(0);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private Path getDirectory() {
+        Path dir = directory;
+        if (dir == null) {
+            synchronized (this) {
+                dir = directory;
+                if (dir == null) {
+                    try {
+                        dir = Paths.get(SetupManager.getBaseDirectory() + File.separator + CACHE_DIRECTORY);
+                        Files.createDirectories(dir);
+                        directory = dir;
+                    } catch (IOException | RuntimeException e) {
+                        LogUtil.error(CLASS_NAME, e, "Response cache disk tier is not available");
+                        return null;
+                    }
+                }
+            }
+        }
+        return dir;
+    }
+
+    private static final class CachedResponse {
+        final String value;
+        final long expiresAt;
+        // Estimated heap size: two bytes per char plus the fixed overhead
+        final long weight;
+
+        CachedResponse(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = 2L * value.length() + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    /**
+     * Access-ordered map that drops the least recently used entries past maxEntries or maxBytes
+     * Callers hold the map's monitor and change it only through add, delete and clear.
+     */
+    private static final class LruMap extends LinkedHashMap<String, CachedResponse> {
+        private static final long serialVersionUID = 1L;
+
+        int maxEntries;
+        long maxBytes;
+        long bytes;
+        final AtomicLong evictions = new AtomicLong();
+
+        LruMap(int maxEntries, long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxEntries = Math.max(1, maxEntries);
+            this.maxBytes = Math.max(1L, maxBytes);
+        }
+
+        void add(String key, CachedResponse entry) {
+            if (entry.weight > maxBytes) {
+                // Would push out everything else; such a response is only kept on disk
+                delete(key);
+                return;
+            }
+            CachedResponse previous = put(key, entry);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += entry.weight;
+            trim();
+        }
+
+        void delete(String key) {
+            CachedResponse previous = remove(key);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+        }
+
+        /**
+         * Evict least recently used entries until both limits hold
+         */
+        void trim() {
+            Iterator<CachedResponse> it = values().iterator();
+            while ((size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                bytes -= it.next().weight;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Cache counters
+     */
+    static final class CacheStats {
+        final int size;
+        final int maxEntries;
+        final long bytes;
+        final long maxBytes;
+        final long memoryHits;
+        final long diskHits;
+        final long misses;
+        final long evictions;
+        final long expirations;
+        final long diskWrites;
+
+        CacheStats(int size, int maxEntries, long bytes, long maxBytes, long memoryHits, long diskHits, long misses,
+                long evictions, long expirations, long diskWrites) {
+            this.size = size;
+            this.maxEntries = maxEntries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.diskWrites = diskWrites;
+        }
+
+        long getHits() {
+            return memoryHits + diskHits;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + "/" + maxEntries + ", memory=" + (bytes >> 10) + "/" + (maxBytes >> 10) + " KB, hits=" + getHits() + " (memory=" + memoryHits
+                    + ", disk=" + diskHits + "), misses=" + misses + ", evictions=" + evictions
+                    + ", expirations=" + expirations + ", diskWrites=" + diskWrites;
+        }
+    }
+}
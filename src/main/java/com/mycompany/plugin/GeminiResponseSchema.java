@@ -0,0 +1,362 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Response schema for structured output, compiled from the schema JSON of the tool
+ * properties
+ * The schema uses the OpenAPI subset Gemini accepts as responseSchema: type (STRING,
+ * NUMBER, INTEGER, BOOLEAN, ARRAY, OBJECT), properties, items, required, enum and
+ * nullable. Other keywords such as description or format are sent along but not checked.
+ * Compiled schemas are cached by their text. A response is validated and split into its
+ * top-level fields in one pass of the {@link JsonReader}.
+ */
+final class GeminiResponseSchema {
+
+    private static final int CACHE_SIZE = 64;
+    private static final Map<String, GeminiResponseSchema> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, GeminiResponseSchema>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GeminiResponseSchema> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private static final Set<String> TYPES = new HashSet<>(
+            Arrays.asList("STRING", "NUMBER", "INTEGER", "BOOLEAN", "ARRAY", "OBJECT"));
+
+    private static final class Node {
+        String type;
+        boolean nullable;
+        List<String> enumValues;
+        List<String> required = Collections.emptyList();
+        Map<String, Node> properties = Collections.emptyMap();
+        Node items;
+    }
+
+    private final Node root;
+    private final String json;
+
+    private GeminiResponseSchema(Node root, String json) {
+        this.root = root;
+        this.json = json;
+    }
+
+    /**
+     * Compiled schema for the text, from the cache when it was compiled before
+     *
+     * @throws IllegalArgumentException if the text is not a schema for a JSON object
+     */
+    static GeminiResponseSchema compile(String text) {
+        GeminiResponseSchema schema = CACHE.get(text);
+        if (schema == null) {
+            StringBuilder json = new StringBuilder(text.length());
+            Node root;
+            try (JsonReader reader = new JsonReader(new StringReader(text))) {
+                root = node(reader, "schema", json);
+                if (reader.peek() != JsonReader.Token.END_DOCUMENT) {
+                    throw new IllegalArgumentException("Response schema has content after the schema object");
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Response schema is not valid JSON: " + e.getMessage(), e);
+            }
+            if (!"OBJECT".equals(root.type)) {
+                throw new IllegalArgumentException("Response schema must have type OBJECT, so its fields can be mapped to variables");
+            }
+            schema = new GeminiResponseSchema(root, json.toString());
+            CACHE.put(text, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * The schema as compact JSON with only ASCII characters, ready to go into a request body
+     */
+    String toJson() {
+        return json;
+    }
+
+    /**
+     * Names of the top-level properties, in schema order
+     */
+    Set<String> getFieldNames() {
+        return root.properties.keySet();
+    }
+
+    /**
+     * Check the response text against the schema and take its top-level fields: strings as
+     * they are, numbers and booleans as written, objects and arrays as compact JSON, null
+     * as an empty string
+     *
+     * @throws IOException naming the first place where the text is not JSON or does not match
+     */
+    Map<String, String> read(String text) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                throw new IOException("Response is not a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                Node node = root.properties.get(name);
+                JsonReader.Token token = reader.peek();
+                if (token == JsonReader.Token.STRING) {
+                    String value = reader.nextString();
+                    checkString(node, name, value);
+                    fields.put(name, value);
+                } else if (token == JsonReader.Token.NULL) {
+                    reader.nextNull();
+                    checkNull(node, name);
+                    fields.put(name, "");
+                } else {
+                    StringBuilder value = new StringBuilder();
+                    value(reader, node, name, value, false);
+                    fields.put(name, value.toString());
+                }
+            }
+            reader.endObject();
+            checkRequired(root, fields.keySet(), "response");
+            if (reader.peek() != JsonReader.Token.END_DOCUMENT) {
+                throw new IOException("Response has content after the JSON object");
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Validate one value against its schema node (null for undeclared) and copy it as JSON
+     */
+    private static void value(JsonReader reader, Node node, String path, StringBuilder out, boolean ascii) throws IOException {
+        JsonReader.Token token = reader.peek();
+        String type = node != null ? node.type : null;
+        switch (token) {
+            case BEGIN_OBJECT:
+                expectType(type, "OBJECT", path);
+                Set<String> present = new HashSet<>();
+                reader.beginObject();
+                out.append('{');
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (!present.isEmpty()) {
+                        out.append(',');
+                    }
+                    present.add(name);
+                    quote(name, out, ascii);
+                    out.append(':');
+                    value(reader, node != null ? node.properties.get(name) : null, path + "." + name, out, ascii);
+                }
+                reader.endObject();
+                out.append('}');
+                if (node != null) {
+                    checkRequired(node, present, path);
+                }
+                break;
+            case BEGIN_ARRAY:
+                expectType(type, "ARRAY", path);
+                reader.beginArray();
+                out.append('[');
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    value(reader, node != null ? node.items : null, path + "[" + i + "]", out, ascii);
+                }
+                reader.endArray();
+                out.append(']');
+                break;
+            case STRING:
+                String string = reader.nextString();
+                checkString(node, path, string);
+                quote(string, out, ascii);
+                break;
+            case NUMBER:
+                String number = reader.nextString();
+                if ("INTEGER".equals(type)) {
+                    if (!isInteger(number)) {
+                        throw new IOException("'" + path + "' must be an integer, got " + number);
+                    }
+                } else {
+                    expectType(type, "NUMBER", path);
+                }
+                out.append(number);
+                break;
+            case BOOLEAN:
+                expectType(type, "BOOLEAN", path);
+                out.append(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                checkNull(node, path);
+                out.append("null");
+                break;
+            default:
+                throw new IOException("Unexpected " + token + " at '" + path + "'");
+        }
+    }
+
+    private static void expectType(String type, String actual, String path) throws IOException {
+        if (type != null && !type.equals(actual)) {
+            throw new IOException("'" + path + "' must be " + type + ", got " + actual);
+        }
+    }
+
+    private static void checkString(Node node, String path, String value) throws IOException {
+        expectType(node != null ? node.type : null, "STRING", path);
+        if (node != null && node.enumValues != null && !node.enumValues.contains(value)) {
+            throw new IOException("'" + path + "' must be one of " + node.enumValues + ", got \"" + value + "\"");
+        }
+    }
+
+    private static void checkNull(Node node, String path) throws IOException {
+        if (node != null && node.type != null && !node.nullable) {
+            throw new IOException("'" + path + "' must not be null");
+        }
+    }
+
+    private static void checkRequired(Node node, Set<String> present, String path) throws IOException {
+        for (String name : node.required) {
+            if (!present.contains(name)) {
+                throw new IOException("'" + path + "' is missing required field '" + name + "'");
+            }
+        }
+    }
+
+    private static boolean isInteger(String number) {
+        try {
+            BigDecimal value = new BigDecimal(number);
+            return value.signum() == 0 || value.stripTrailingZeros().scale() <= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read one schema object, copying it to compact ASCII JSON on the way
+     */
+    private static Node node(JsonReader reader, String path, StringBuilder json) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            throw new IllegalArgumentException("Response schema: '" + path + "' must be an object");
+        }
+        Node node = new Node();
+        reader.beginObject();
+        json.append('{');
+        boolean first = true;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            quote(name, json, true);
+            json.append(':');
+            switch (name) {
+                case "type":
+                    node.type = reader.nextString().toUpperCase(Locale.ROOT);
+                    if (!TYPES.contains(node.type)) {
+                        throw new IllegalArgumentException("Response schema: unknown type '" + node.type + "' at '" + path + "'");
+                    }
+                    quote(node.type, json, true);
+                    break;
+                case "nullable":
+                    node.nullable = reader.nextBoolean();
+                    json.append(node.nullable);
+                    break;
+                case "enum":
+                    node.enumValues = strings(reader, json);
+                    break;
+                case "required":
+                    node.required = strings(reader, json);
+                    break;
+                case "items":
+                    node.items = node(reader, path + "[]", json);
+                    break;
+                case "properties":
+                    node.properties = new LinkedHashMap<>();
+                    reader.beginObject();
+                    json.append('{');
+                    while (reader.hasNext()) {
+                        String property = reader.nextName();
+                        if (!node.properties.isEmpty()) {
+                            json.append(',');
+                        }
+                        quote(property, json, true);
+                        json.append(':');
+                        node.properties.put(property, node(reader, path + "." + property, json));
+                    }
+                    reader.endObject();
+                    json.append('}');
+                    break;
+                default:
+                    value(reader, null, path + "." + name, json, true);
+            }
+        }
+        reader.endObject();
+        json.append('}');
+        return node;
+    }
+
+    private static List<String> strings(JsonReader reader, StringBuilder json) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        json.append('[');
+        while (reader.hasNext()) {
+            String value = reader.nextString();
+            if (!values.isEmpty()) {
+                json.append(',');
+            }
+            values.add(value);
+            quote(value, json, true);
+        }
+        reader.endArray();
+        json.append(']');
+        return values;
+    }
+
+    /**
+     * JSON string literal; with ascii, characters above 0x7E are written as \\u escapes
+     */
+    private static void quote(String value, StringBuilder out, boolean ascii) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || (ascii && c > 0x7E)) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
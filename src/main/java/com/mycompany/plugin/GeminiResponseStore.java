@@ -0,0 +1,226 @@
+package com.mycompany.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SetupManager;
+
+/**
+ * Files for responses too large to keep in a workflow variable
+ * A spilled response is written to app_data, one file per response in a directory per
+ * day, and the variable holds a reference line followed by a short preview:
+ * <pre>
+ * [[gemini-response:2024-05-01/3f2a...e9.txt:152340]]
+ * First characters of the response...
+ * </pre>
+ * The reference is read back only when a prompt actually uses the variable. Day
+ * directories older than the retention period are deleted.
+ */
+final class GeminiResponseStore {
+
+    static final int DEFAULT_PREVIEW_CHARS = 500;
+    static final int DEFAULT_RETENTION_DAYS = 30;
+
+    private static final String CLASS_NAME = GeminiResponseStore.class.getName();
+    private static final String STORE_DIRECTORY = "app_data/gemini-ai-process-tool/responses";
+    private static final String REFERENCE_PREFIX = "[[gemini-response:";
+    // Only names the store itself creates, so a reference can never point outside it
+    private static final Pattern REFERENCE = Pattern.compile(
+            "^\\[\\[gemini-response:([0-9]{4}-[0-9]{2}-[0-9]{2}/[0-9a-f]{32}\\.txt):([0-9]+)]]");
+    private static final long SWEEP_INTERVAL_MILLIS = 60L * 60L * 1000L;
+
+    private static final GeminiResponseStore SHARED = new GeminiResponseStore();
+
+    private volatile Path directory;
+    private volatile long nextSweep;
+
+    static GeminiResponseStore shared() {
+        return SHARED;
+    }
+
+    /**
+     * A new, empty response file
+     */
+    static final class StoredFile {
+        final String name;
+        final Path path;
+
+        StoredFile(String name, Path path) {
+            this.name = name;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Allocate a file for a response; the caller writes it and builds the reference
+     *
+     * @throws IOException if app_data is not writable
+     */
+    StoredFile newFile() throws IOException {
+        Path dir = getDirectory();
+        if (dir == null) {
+            throw new IOException("Response store directory is not available");
+        }
+        String day = LocalDate.now().toString();
+        Path dayDir = dir.resolve(day);
+        Files.createDirectories(dayDir);
+        String file = UUID.randomUUID().toString().replace("-", "") + ".txt";
+        return new StoredFile(day + "/" + file, dayDir.resolve(file));
+    }
+
+    /**
+     * Variable value for a stored response: the reference line and the preview
+     */
+    static String reference(StoredFile file, long chars, String preview) {
+        return REFERENCE_PREFIX + file.name + ":" + chars + "]]\n" + preview;
+    }
+
+    static boolean isReference(String value) {
+        return value != null && value.startsWith(REFERENCE_PREFIX) && REFERENCE.matcher(value).find();
+    }
+
+    /**
+     * The preview part of a reference value
+     */
+    static String preview(String value) {
+        int newline = value.indexOf('\n');
+        return newline >= 0 ? value.substring(newline + 1) : "";
+    }
+
+    /**
+     * Response text a reference points to
+     *
+     * @param maxChars read at most this many characters; 0 for all
+     * @return the text, or null if the value is not a reference or its file is gone
+     */
+    String read(String value, int maxChars) {
+        Matcher matcher = value != null ? REFERENCE.matcher(value) : null;
+        Path dir = getDirectory();
+        if (matcher == null || !matcher.find() || dir == null) {
+            return null;
+        }
+        Path file = dir.resolve(matcher.group(1));
+        long chars = Long.parseLong(matcher.group(2));
+        int limit = (int) Math.min(Integer.MAX_VALUE - 8, maxChars > 0 ? Math.min(maxChars, chars) : chars);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate(32768);
+            CharBuffer decoded = CharBuffer.allocate(32768);
+            StringBuilder text = new StringBuilder(Math.min(limit, 1 << 20));
+            boolean eof = false;
+            while (text.length() < limit && !eof) {
+                eof = channel.read(bytes) < 0;
+                bytes.flip();
+                decoder.decode(bytes, decoded, eof);
+                if (eof) {
+                    decoder.flush(decoded);
+                }
+                bytes.compact();
+                decoded.flip();
+                int take = Math.min(decoded.remaining(), limit - text.length());
+                text.append(decoded, 0, take);
+                decoded.clear();
+            }
+            int end = text.length();
+            if (end > 0 && end == limit && end < chars && Character.isHighSurrogate(text.charAt(end - 1))) {
+                text.setLength(end - 1);
+            }
+            return text.toString();
+        } catch (NoSuchFileException e) {
+            LogUtil.info(CLASS_NAME, "Stored response " + matcher.group(1) + " no longer exists");
+            return null;
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not read stored response " + matcher.group(1));
+            return null;
+        }
+    }
+
+    /**
+     * Delete the file a reference points to, for a stored response that is not used
+     */
+    void delete(String value) {
+        Matcher matcher = value != null ? REFERENCE.matcher(value) : null;
+        Path dir = getDirectory();
+        if (matcher == null || !matcher.find() || dir == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(matcher.group(1)));
+        } catch (IOException e) {
+            // The retention sweep removes it later
+            LogUtil.info(CLASS_NAME, "Could not delete stored response " + matcher.group(1) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete day directories older than the retention period, at most once an hour
+     */
+    void sweep(int retentionDays) {
+        long now = System.currentTimeMillis();
+        Path dir = directory;
+        if (retentionDays <= 0 || dir == null || now < nextSweep) {
+            return;
+        }
+        nextSweep = now + SWEEP_INTERVAL_MILLIS;
+        String oldest = LocalDate.now().minusDays(retentionDays).toString();
+        try (DirectoryStream<Path> days = Files.newDirectoryStream(dir)) {
+            for (Path day : days) {
+                // Day names sort like dates
+                if (day.getFileName().toString().compareTo(oldest) < 0 && Files.isDirectory(day)) {
+                    deleteDirectory(day);
+                }
+            }
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not clean up response store directory " + dir);
+        }
+    }
+
+    private static void deleteDirectory(Path day) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(day)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(day);
+        LogUtil.info(CLASS_NAME, "Deleted stored responses of " + day.getFileName());
+    }
+
+    private Path getDirectory() {
+        Path dir = directory;
+        if (dir == null) {
+            synchronized (this) {
+                dir = directory;
+                if (dir == null) {
+                    try {
+                        dir = Paths.get(SetupManager.getBaseDirectory() + File.separator + STORE_DIRECTORY);
+                        Files.createDirectories(dir);
+                        directory = dir;
+                    } catch (IOException | RuntimeException e) {
+                        LogUtil.error(CLASS_NAME, e, "Response store is not available");
+                        return null;
+                    }
+                }
+            }
+        }
+        return dir;
+    }
+}
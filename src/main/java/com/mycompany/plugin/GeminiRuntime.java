@@ -0,0 +1,139 @@
+package com.mycompany.plugin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Bundle-wide runtime, started and stopped by the {@link Activator}
+ * The long-lived parts of the plugin (HTTP transport, caches, executors, rate limits) are
+ * shared by every tool instance and stay warm between calls; the runtime owns their
+ * lifecycle. Stopping it turns new calls away, lets the calls in flight and the queued
+ * asynchronous calls finish within a deadline, flushes the persistent caches and releases
+ * the plugin's threads, so a redeploy leaves nothing running in the old bundle.
+ */
+final class GeminiRuntime {
+
+    private static final String CLASS_NAME = GeminiRuntime.class.getName();
+    private static final long LOG_FLUSH_TIMEOUT = 5000L;
+
+    private static final GeminiRuntime SHARED = new GeminiRuntime();
+
+    private final GeminiKeyBalancer keyBalancer = new GeminiKeyBalancer();
+
+    // Guarded by this
+    private boolean stopping;
+    private int inFlight;
+
+    static GeminiRuntime shared() {
+        return SHARED;
+    }
+
+    GeminiKeyBalancer getKeyBalancer() {
+        return keyBalancer;
+    }
+
+    /**
+     * Accept calls and publish the metrics
+     */
+    void start() {
+        synchronized (this) {
+            stopping = false;
+        }
+        DiagnosticLogger.start();
+        GeminiAsyncExecutor.shared().open();
+        GeminiHttpTransport.shared().open();
+        GeminiMetrics.shared().register();
+    }
+
+    /**
+     * Register a tool execution
+     *
+     * @return false while the runtime is stopping; the caller must not go on
+     */
+    synchronized boolean enter() {
+        if (stopping) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * End a tool execution registered with {@link #enter()}
+     */
+    synchronized void exit() {
+        inFlight--;
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Turn new calls away, wait up to timeoutMillis for the running and queued ones, then
+     * flush the caches and release threads and container handles
+     *
+     * @return true if every call finished in time
+     */
+    boolean stop(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            stopping = true;
+        }
+
+        // Running executions first: they may still queue an asynchronous call
+        boolean drained = awaitCalls(deadline);
+        if (!drained) {
+            LogUtil.info(CLASS_NAME, getInFlight() + " Gemini call(s) still running at shutdown");
+        }
+        // Queued asynchronous calls run to completion, or are interrupted at the deadline
+        GeminiAsyncExecutor.shared().shutdown(remainingMillis(deadline));
+        // Whatever still holds a connection now is past the deadline
+        int disconnected = GeminiHttpTransport.shared().close();
+        if (disconnected > 0) {
+            LogUtil.info(CLASS_NAME, "Disconnected " + disconnected + " Gemini connection(s) still in use at shutdown");
+        }
+
+        GeminiBatchRunner.shared().shutdown();
+        GeminiHedging.shared().shutdown();
+        GeminiSemanticCache.shared().flush();
+        GeminiMetrics.shared().unregister();
+        // Drop the cached WorkflowManager and FormDataDao handles; they are resolved again on the next start
+        WorkflowVariableAccess.reset();
+        FormRowAccess.reset();
+        // Write out buffered diagnostic log lines
+        DiagnosticLogger.shutdown(LOG_FLUSH_TIMEOUT);
+        return drained;
+    }
+
+    private synchronized boolean awaitCalls(long deadline) {
+        try {
+            while (inFlight > 0) {
+                long remaining = remainingMillis(deadline);
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    String describe() {
+        synchronized (this) {
+            return "inFlight=" + inFlight + ", outstandingKeyLeases=" + keyBalancer.getOutstanding()
+                    + (stopping ? ", stopping" : "");
+        }
+    }
+}
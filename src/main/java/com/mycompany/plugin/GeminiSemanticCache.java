@@ -0,0 +1,506 @@
+package com.mycompany.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.commons.util.SetupManager;
+
+/**
+ * Index of prompt embeddings for answering paraphrased prompts from the response cache
+ * Each entry holds the unit-length embedding of a final prompt, the scope it was asked in
+ * (see {@link GeminiRequest#semanticScope(String)}, which includes the embedding model) and
+ * the response cache key of its answer; the answer itself stays in the
+ * {@link GeminiResponseCache}. Vectors sit back to back in one float array and a lookup is
+ * a flat scan of dot products over the entries of the scope, which at a few ten thousand
+ * entries takes well under a millisecond. When the index is full the least recently used
+ * entry is replaced.
+ *
+ * Vectors of each size have their own index, so tools with different embedding models do
+ * not disturb each other. The indexes are shared by all tools and hold as many entries as
+ * the largest capacity any tool asked for; they grow when a tool asks for more and do not
+ * shrink while the plugin runs. Each is written through to a memory-mapped file under
+ * app_data, named after the vector size, and loaded from it on first use after a restart.
+ */
+final class GeminiSemanticCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+    static final double DEFAULT_THRESHOLD = 0.95;
+    static final String DEFAULT_EMBEDDING_MODEL = "text-embedding-004";
+    // Keeps the vectors of the largest embedding models within one array and one mapping
+    static final int MAX_ENTRIES = 100000;
+
+    private static final String CLASS_NAME = GeminiSemanticCache.class.getName();
+    private static final String INDEX_DIRECTORY = "app_data/gemini-ai-process-tool/semantic-cache";
+    private static final int MAGIC = 0x47534331; // "GSC1"
+    private static final int HEADER_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    // scope, expiresAt, lastUsed, response key
+    private static final int SLOT_HEADER_BYTES = 8 + 8 + 8 + KEY_BYTES;
+
+    private static final GeminiSemanticCache SHARED = new GeminiSemanticCache();
+
+    // One index per vector size
+    private final ConcurrentHashMap<Integer, Index> indexes = new ConcurrentHashMap<>();
+
+    // Guarded by this; whether a tool has sized the indexes yet, and the largest capacity asked for
+    private boolean sized;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    // Use times: wall clock, but strictly increasing so entries used in one millisecond keep their order
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    static GeminiSemanticCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Closest stored prompt
+     */
+    static final class Match {
+        private final Index index;
+        private final int slot;
+        private final String responseKey;
+        private final float similarity;
+
+        private Match(Index index, int slot, String responseKey, float similarity) {
+            this.index = index;
+            this.slot = slot;
+            this.responseKey = responseKey;
+            this.similarity = similarity;
+        }
+
+        String getResponseKey() {
+            return responseKey;
+        }
+
+        float getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /**
+     * The stored prompt of the scope most similar to the vector, if its cosine similarity
+     * is at least the threshold
+     *
+     * @param vector unit-length embedding, see {@link #normalize(float[])}
+     * @param maxEntries capacity the tool asks for; the largest asked for applies
+     */
+    Match find(String scope, float[] vector, double threshold, int maxEntries) {
+        Index index = index(vector.length, maxEntries);
+        long scopeId = scopeId(scope);
+        long now = System.currentTimeMillis();
+        index.lock.readLock().lock();
+        try {
+            int dimensions = index.dimensions;
+            int best = -1;
+            float bestSimilarity = (float) threshold;
+            for (int i = 0; i < index.count; i++) {
+                if (index.scopes[i] != scopeId || index.expiresAt[i] <= now) {
+                    continue;
+                }
+                float similarity = dot(index.vectors, i * dimensions, vector, dimensions);
+                if (similarity >= bestSimilarity) {
+                    best = i;
+                    bestSimilarity = similarity;
+                }
+            }
+            if (best < 0) {
+                misses.incrementAndGet();
+                return null;
+            }
+            // A racy write of a use time only affects which entry is evicted next
+            index.lastUsed[best] = tick();
+            hits.incrementAndGet();
+            return new Match(index, best, index.keys[best], bestSimilarity);
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store a prompt's embedding with the response cache key of its answer
+     *
+     * @param expires when the answer expires from the response cache
+     */
+    void add(String scope, float[] vector, String responseKey, long expires, int maxEntries) {
+        Index index = index(vector.length, maxEntries);
+        long now = System.currentTimeMillis();
+        index.lock.writeLock().lock();
+        try {
+            int slot;
+            if (index.count < index.capacity) {
+                slot = index.count++;
+            } else {
+                slot = index.victim(now);
+                evictions.incrementAndGet();
+            }
+            index.scopes[slot] = scopeId(scope);
+            index.expiresAt[slot] = expires;
+            index.lastUsed[slot] = tick();
+            index.keys[slot] = responseKey;
+            System.arraycopy(vector, 0, index.vectors, slot * index.dimensions, index.dimensions);
+            index.writeSlot(slot);
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop an entry whose answer is no longer in the response cache
+     */
+    void remove(Match match) {
+        Index index = match.index;
+        index.lock.writeLock().lock();
+        try {
+            if (match.slot < index.count && match.responseKey.equals(index.keys[match.slot])) {
+                index.expiresAt[match.slot] = 0;
+                index.writeSlot(match.slot);
+            }
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The index for the vector size, opened or grown to the largest capacity asked for
+     */
+    private Index index(int dimensions, int requested) {
+        int entries = Math.min(MAX_ENTRIES, Math.max(1, requested));
+        int capacity;
+        synchronized (this) {
+            maxEntries = sized ? Math.max(maxEntries, entries) : entries;
+            sized = true;
+            capacity = maxEntries;
+        }
+        Index index = indexes.computeIfAbsent(dimensions, Index::new);
+        index.open(capacity);
+        return index;
+    }
+
+    /**
+     * Dot product with four independent sums, which the JIT can keep in vector registers
+     */
+    private static float dot(float[] vectors, int offset, float[] vector, int length) {
+        float sum0 = 0f;
+        float sum1 = 0f;
+        float sum2 = 0f;
+        float sum3 = 0f;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            sum0 += vectors[offset + i] * vector[i];
+            sum1 += vectors[offset + i + 1] * vector[i + 1];
+            sum2 += vectors[offset + i + 2] * vector[i + 2];
+            sum3 += vectors[offset + i + 3] * vector[i + 3];
+        }
+        for (; i < length; i++) {
+            sum0 += vectors[offset + i] * vector[i];
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    /**
+     * The vector scaled to unit length, so cosine similarity is a plain dot product
+     */
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += (double) value * value;
+        }
+        if (norm == 0) {
+            return vector;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        float[] unit = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = vector[i] * scale;
+        }
+        return unit;
+    }
+
+    private long tick() {
+        return clock.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    private static long scopeId(String scope) {
+        return Long.parseUnsignedLong(scope.substring(0, 16), 16);
+    }
+
+    /**
+     * Entries of one vector size and their index file
+     */
+    private final class Index {
+        final int dimensions;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // Guarded by lock; the arrays are replaced when the index grows
+        int capacity;
+        int count;
+        float[] vectors;
+        long[] scopes;
+        long[] expiresAt;
+        long[] lastUsed;
+        String[] keys;
+        MappedByteBuffer file;
+        Path path;
+
+        Index(int dimensions) {
+            this.dimensions = dimensions;
+        }
+
+        /**
+         * Load the index on first use, or grow it to the capacity
+         */
+        void open(int entries) {
+            lock.readLock().lock();
+            try {
+                if (vectors != null && capacity >= entries) {
+                    return;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                if (vectors == null) {
+                    load(entries);
+                } else if (capacity < entries) {
+                    grow(entries);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Expired entries first, then the least recently used
+         */
+        int victim(long now) {
+            int victim = 0;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                long used = expiresAt[i] <= now ? Long.MIN_VALUE : lastUsed[i];
+                if (used < oldest) {
+                    oldest = used;
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+
+        private int slotBytes() {
+            return SLOT_HEADER_BYTES + dimensions * 4;
+        }
+
+        /**
+         * Read the entries from the index file; a file written with a larger capacity keeps it
+         */
+        private void load(int entries) {
+            capacity = entries;
+            int stored = 0;
+            try {
+                Path dir = Paths.get(SetupManager.getBaseDirectory() + File.separator + INDEX_DIRECTORY);
+                Files.createDirectories(dir);
+                path = dir.resolve("index-" + dimensions + ".bin");
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                        // read the whole header
+                    }
+                    if (!header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == dimensions) {
+                        capacity = Math.min(MAX_ENTRIES, Math.max(entries, header.getInt(8)));
+                        stored = Math.min(Math.max(0, header.getInt(12)), capacity);
+                    }
+                    file = map(channel);
+                }
+            } catch (IOException | RuntimeException e) {
+                LogUtil.error(CLASS_NAME, e, "Semantic cache index file is not available, keeping the index in memory only");
+                file = null;
+                capacity = entries;
+                stored = 0;
+            }
+            vectors = new float[capacity * dimensions];
+            scopes = new long[capacity];
+            expiresAt = new long[capacity];
+            lastUsed = new long[capacity];
+            keys = new String[capacity];
+            if (file == null) {
+                return;
+            }
+            file.putInt(0, MAGIC);
+            file.putInt(4, dimensions);
+            file.putInt(8, capacity);
+            byte[] key = new byte[KEY_BYTES];
+            for (int slot = 0; slot < stored; slot++) {
+                int offset = HEADER_BYTES + slot * slotBytes();
+                scopes[slot] = file.getLong(offset);
+                expiresAt[slot] = file.getLong(offset + 8);
+                lastUsed[slot] = file.getLong(offset + 16);
+                clock.accumulateAndGet(lastUsed[slot], Math::max);
+                for (int i = 0; i < KEY_BYTES; i++) {
+                    key[i] = file.get(offset + 24 + i);
+                }
+                keys[slot] = GeminiResponseCache.toHex(key);
+                int vectorOffset = offset + SLOT_HEADER_BYTES;
+                for (int i = 0; i < dimensions; i++) {
+                    vectors[slot * dimensions + i] = file.getFloat(vectorOffset + i * 4);
+                }
+            }
+            count = stored;
+            file.putInt(12, count);
+            if (count > 0) {
+                LogUtil.info(CLASS_NAME, "Loaded " + count + " semantic cache entries of " + dimensions + " dimensions");
+            }
+        }
+
+        /**
+         * Make room for more entries; slots keep their place in the arrays and the file
+         */
+        private void grow(int entries) {
+            vectors = Arrays.copyOf(vectors, entries * dimensions);
+            scopes = Arrays.copyOf(scopes, entries);
+            expiresAt = Arrays.copyOf(expiresAt, entries);
+            lastUsed = Arrays.copyOf(lastUsed, entries);
+            keys = Arrays.copyOf(keys, entries);
+            capacity = entries;
+            if (file != null) {
+                file.force();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    file = map(channel);
+                    file.putInt(8, capacity);
+                } catch (IOException | RuntimeException e) {
+                    LogUtil.error(CLASS_NAME, e, "Semantic cache index file could not grow, keeping the index in memory only");
+                    file = null;
+                }
+            }
+            LogUtil.info(CLASS_NAME, "Semantic cache index of " + dimensions + " dimensions now holds up to " + capacity + " entries");
+        }
+
+        private MappedByteBuffer map(FileChannel channel) throws IOException {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * slotBytes());
+        }
+
+        void writeSlot(int slot) {
+            if (file == null) {
+                return;
+            }
+            int offset = HEADER_BYTES + slot * slotBytes();
+            file.putLong(offset, scopes[slot]);
+            file.putLong(offset + 8, expiresAt[slot]);
+            file.putLong(offset + 16, lastUsed[slot]);
+            String key = keys[slot];
+            for (int i = 0; i < KEY_BYTES; i++) {
+                file.put(offset + 24 + i, (byte) Integer.parseInt(key.substring(i * 2, i * 2 + 2), 16));
+            }
+            int vectorOffset = offset + SLOT_HEADER_BYTES;
+            for (int i = 0; i < dimensions; i++) {
+                file.putFloat(vectorOffset + i * 4, vectors[slot * dimensions + i]);
+            }
+            file.putInt(12, count);
+        }
+
+        /**
+         * Write the use times of the entries and force the index file to disk
+         */
+        void flush() {
+            lock.writeLock().lock();
+            try {
+                if (file == null) {
+                    return;
+                }
+                for (int slot = 0; slot < count; slot++) {
+                    file.putLong(HEADER_BYTES + slot * slotBytes() + 16, lastUsed[slot]);
+                }
+                file.force();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        String describe() {
+            lock.readLock().lock();
+            try {
+                return dimensions + " dimensions: entries=" + count + "/" + capacity + (file == null ? ", memory only" : "");
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Write the use times of the entries and force the index files to disk
+     */
+    void flush() {
+        for (Index index : indexes.values()) {
+            index.flush();
+        }
+    }
+
+    /**
+     * {"embedding": {"values": [...]}} of an embedContent response
+     */
+    static float[] parseEmbedding(InputStream in) throws IOException {
+        float[] values = new float[0];
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"embedding".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"values".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                int size = 0;
+                values = new float[768];
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+                    values[size++] = (float) reader.nextDouble();
+                }
+                reader.endArray();
+                values = Arrays.copyOf(values, size);
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return values;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    String describe() {
+        StringBuilder text = new StringBuilder("hits=").append(hits.get()).append(", misses=").append(misses.get())
+                .append(", evictions=").append(evictions.get());
+        for (Index index : indexes.values()) {
+            text.append("; ").append(index.describe());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical Gemini requests into one HTTP call
+ * The first caller for a key makes the call; callers arriving while it is in flight
+ * wait for its result. Each caller gets its own copy of the response, since callers go on
+ * to change it (schema fields, error text). Failures are handed to every waiter, and the
+ * key is removed as soon as the call ends, so nothing (success or failure) is remembered here.
+ */
+final class GeminiSingleFlight {
+
+    private static final GeminiSingleFlight SHARED = new GeminiSingleFlight();
+
+    private final ConcurrentHashMap<String, CompletableFuture<GeminiResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong sharedFailures = new AtomicLong();
+
+    static GeminiSingleFlight shared() {
+        return SHARED;
+    }
+
+    /**
+     * The actual API call
+     */
+    interface Call {
+        GeminiResponse call() throws IOException;
+    }
+
+    /**
+     * Run the call, or join an identical call already in flight
+     */
+    GeminiResponse execute(String key, Call call) throws IOException {
+        CompletableFuture<GeminiResponse> mine = new CompletableFuture<>();
+        CompletableFuture<GeminiResponse> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            joined.incrementAndGet();
+            return await(existing).copy();
+        }
+
+        calls.incrementAndGet();
+        try {
+            GeminiResponse response = call.call();
+            mine.complete(response);
+            return response.copy();
+        } catch (IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private GeminiResponse await(CompletableFuture<GeminiResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical Gemini request");
+        } catch (ExecutionException e) {
+            sharedFailures.incrementAndGet();
+            Throwable cause = e.getCause();
+            if (cause instanceof GeminiApiException) {
+                GeminiApiException apiError = (GeminiApiException) cause;
+                GeminiApiException copy = new GeminiApiException(apiError.getStatusCode(), apiError.getStatus(),
+                        apiError.getMessage(), apiError.getRetryAfterMillis());
+                copy.initCause(apiError);
+                throw copy;
+            }
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    int getInFlight() {
+        return inFlight.size();
+    }
+
+    long getJoined() {
+        return joined.get();
+    }
+
+    String describe() {
+        return "inFlight=" + inFlight.size() + ", calls=" + calls.get() + ", joined=" + joined.get()
+                + ", sharedFailures=" + sharedFailures.get();
+    }
+}
@@ -0,0 +1,463 @@
+package com.mycompany.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Small pull-style JSON tokenizer
+ * Reads straight from a Reader through one reusable char buffer; string values can be
+ * streamed into a {@link TextSink} so large texts never exist as an intermediate String.
+ * Only the features needed for Gemini payloads are supported (strict JSON, no comments).
+ */
+final class JsonReader implements Closeable {
+
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    private long consumed;
+
+    private int[] stack = new int[32];
+    private int stackSize;
+
+    private Token peeked;
+    private final StringBuilder scratch = new StringBuilder(64);
+
+    JsonReader(Reader in) {
+        this.in = in;
+        stack[stackSize++] = EMPTY_DOCUMENT;
+    }
+
+    Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    /**
+     * True while the current object or array has more elements
+     */
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        scratch.setLength(0);
+        readString(null, scratch);
+        return scratch.toString();
+    }
+
+    /**
+     * Read a string value; numbers, booleans and null are returned as their literal text
+     */
+    String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            peeked = null;
+            StringBuilder value = new StringBuilder();
+            readString(null, value);
+            return value.toString();
+        }
+        if (token == Token.NUMBER || token == Token.BOOLEAN || token == Token.NULL) {
+            peeked = null;
+            return readLiteral();
+        }
+        throw syntaxError("Expected a string but was " + token);
+    }
+
+    /**
+     * Stream a string value into the sink without building a String
+     */
+    void nextString(TextSink sink) throws IOException {
+        expect(Token.STRING);
+        readString(sink, null);
+    }
+
+    long nextLong() throws IOException {
+        String literal = nextString();
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(literal);
+            } catch (NumberFormatException e2) {
+                throw syntaxError("Expected a number but was '" + literal + "'");
+            }
+        }
+    }
+
+    double nextDouble() throws IOException {
+        String literal = nextString();
+        try {
+            return Double.parseDouble(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was '" + literal + "'");
+        }
+    }
+
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        String literal = readLiteral();
+        if ("true".equals(literal)) {
+            return true;
+        }
+        if ("false".equals(literal)) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean but was '" + literal + "'");
+    }
+
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        String literal = readLiteral();
+        if (!"null".equals(literal)) {
+            throw syntaxError("Expected null but was '" + literal + "'");
+        }
+    }
+
+    /**
+     * Skip the next value (or name), including everything nested inside it
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token token = peek();
+            switch (token) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case NAME:
+                case STRING:
+                    peeked = null;
+                    readString(null, null);
+                    break;
+                case NUMBER:
+                case BOOLEAN:
+                case NULL:
+                    peeked = null;
+                    skipLiteral();
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = null;
+        stackSize = 0;
+        in.close();
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private Token doPeek() throws IOException {
+        if (stackSize == 0) {
+            throw new IllegalStateException("JsonReader is closed");
+        }
+        int scope = stack[stackSize - 1];
+        int c;
+        switch (scope) {
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace(true);
+                if (c == ']') {
+                    return Token.END_ARRAY;
+                }
+                pos--;
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace(true);
+                if (c == ']') {
+                    return Token.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']' in array");
+                }
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                stack[stackSize - 1] = DANGLING_NAME;
+                c = nextNonWhitespace(true);
+                if (c == '}') {
+                    return Token.END_OBJECT;
+                }
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}' in object");
+                    }
+                    c = nextNonWhitespace(true);
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a property name");
+                }
+                return Token.NAME;
+            case DANGLING_NAME:
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace(true) != ':') {
+                    throw syntaxError("Expected ':' after property name");
+                }
+                break;
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                // NONEMPTY_DOCUMENT
+                if (nextNonWhitespace(false) == -1) {
+                    return Token.END_DOCUMENT;
+                }
+                throw syntaxError("Unexpected data after the top-level value");
+        }
+
+        c = nextNonWhitespace(true);
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                pos--;
+                return Token.BOOLEAN;
+            case 'n':
+                pos--;
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) == 0) {
+            // blocking reader returned nothing, try again
+        }
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private int nextNonWhitespace(boolean required) throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (required) {
+                    throw syntaxError("Unexpected end of input");
+                }
+                return -1;
+            }
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Read string content after the opening quote, decoding escapes.
+     * Output goes to the sink, the builder, or nowhere when both are null.
+     */
+    private void readString(TextSink sink, StringBuilder builder) throws IOException {
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos > start) {
+                if (sink != null) {
+                    sink.append(buffer, start, pos - start);
+                } else if (builder != null) {
+                    builder.append(buffer, start, pos - start);
+                }
+            }
+            if (pos == limit) {
+                if (!fill()) {
+                    throw syntaxError("Unterminated string");
+                }
+                continue;
+            }
+            char c = buffer[pos++];
+            if (c == '"') {
+                return;
+            }
+            char decoded = readEscape();
+            if (sink != null) {
+                sink.append(decoded);
+            } else if (builder != null) {
+                builder.append(decoded);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        char c = buffer[pos++];
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (pos == limit && !fill()) {
+                        throw syntaxError("Unterminated \\u escape");
+                    }
+                    int digit = Character.digit(buffer[pos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid \\u escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                // Surrogate pairs arrive as two escapes and are passed through one char at a time
+                return (char) value;
+            default:
+                throw syntaxError("Invalid escape '\\" + c + "'");
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if (isLiteralEnd(c)) {
+                break;
+            }
+            scratch.append(c);
+            pos++;
+        }
+        if (scratch.length() == 0) {
+            throw syntaxError("Expected a literal value");
+        }
+        return scratch.toString();
+    }
+
+    private void skipLiteral() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return;
+            }
+            if (isLiteralEnd(buffer[pos])) {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private static boolean isLiteralEnd(char c) {
+        switch (c) {
+            case ',':
+            case ':':
+            case ']':
+            case '}':
+            case '[':
+            case '{':
+            case '"':
+            case ' ':
+            case '\n':
+            case '\r':
+            case '\t':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON at offset " + (consumed + pos) + ": " + message);
+    }
+}
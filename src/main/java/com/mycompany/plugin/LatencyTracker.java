@@ -0,0 +1,44 @@
+package com.mycompany.plugin;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the most recent successful calls, for percentile estimates
+ */
+final class LatencyTracker {
+
+    private final long[] samples;
+    private int position;
+    private int count;
+
+    LatencyTracker(int size) {
+        this.samples = new long[Math.max(1, size)];
+    }
+
+    synchronized void record(long latencyMillis) {
+        samples[position] = latencyMillis;
+        position = (position + 1) % samples.length;
+        count = Math.min(samples.length, count + 1);
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return the latency at that percentile, or -1 if there are fewer than minSamples
+     */
+    long percentile(double percentile, int minSamples) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < Math.max(1, minSamples)) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
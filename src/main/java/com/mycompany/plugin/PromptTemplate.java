@@ -0,0 +1,320 @@
+package com.mycompany.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prompt template compiled into literal segments and variable slots
+ * Compiled templates are cached by their text, so a template is parsed once and then
+ * only rendered. Syntax:
+ * <ul>
+ * <li>{@code #variable.name#} - value of a hash variable; any Joget hash variable works</li>
+ * <li>{@code #variable.name|2000#} - the same, cut to at most 2000 characters</li>
+ * <li>{@code #{variable.name}} and {@code #{variable.name|2000}} - same as above</li>
+ * <li>{@code {{#variable.name}}...{{/variable.name}}} - section kept only if the value is not blank</li>
+ * <li>{@code {{^variable.name}}...{{/variable.name}}} - section kept only if the value is blank</li>
+ * </ul>
+ */
+final class PromptTemplate {
+
+    /**
+     * Looks up the value of one hash variable
+     */
+    interface Resolver {
+        /**
+         * @param key hash variable without the # marks, e.g. "variable.name"
+         * @param hashVariable the same with # marks, e.g. "#variable.name#"
+         * @return the value, or null if it has none
+         */
+        String resolve(String key, String hashVariable);
+    }
+
+    private static final int CACHE_SIZE = 256;
+    private static final Map<String, PromptTemplate> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, PromptTemplate>(64, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PromptTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private abstract static class Node {
+    }
+
+    private static final class Literal extends Node {
+        final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Slot extends Node {
+        final String key;
+        final String hashVariable;
+        final int maxChars;
+
+        Slot(String key, int maxChars) {
+            this.key = key;
+            this.hashVariable = "#" + key + "#";
+            this.maxChars = maxChars;
+        }
+    }
+
+    private static final class Section extends Node {
+        final String key;
+        final String hashVariable;
+        final boolean inverted;
+        final List<Node> children = new ArrayList<>();
+
+        Section(String key, boolean inverted) {
+            this.key = key;
+            this.hashVariable = "#" + key + "#";
+            this.inverted = inverted;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final int slotCount;
+
+    private PromptTemplate(List<Node> nodes) {
+        this.nodes = nodes;
+        this.slotCount = countSlots(nodes);
+    }
+
+    /**
+     * Compiled template for the text, from the cache when it was compiled before
+     *
+     * @throws IllegalArgumentException if a section is not closed properly
+     */
+    static PromptTemplate compile(String text) {
+        PromptTemplate template = CACHE.get(text);
+        if (template == null) {
+            template = new PromptTemplate(new Parser(text).parse());
+            CACHE.put(text, template);
+        }
+        return template;
+    }
+
+    /**
+     * Fill in all slots. Each distinct variable is resolved once.
+     *
+     * @param defaultMaxChars limit for slots without their own limit, 0 for none
+     */
+    String render(Resolver resolver, int defaultMaxChars) {
+        Map<String, String> values = new HashMap<>(slotCount * 2);
+        // First pass resolves values and measures, so the buffer is allocated once at its final size
+        int length = measure(nodes, resolver, values, defaultMaxChars);
+        StringBuilder out = new StringBuilder(length);
+        write(nodes, resolver, values, defaultMaxChars, out);
+        return out.toString();
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    private static int countSlots(List<Node> nodes) {
+        int count = 0;
+        for (Node node : nodes) {
+            if (node instanceof Slot) {
+                count++;
+            } else if (node instanceof Section) {
+                count += 1 + countSlots(((Section) node).children);
+            }
+        }
+        return count;
+    }
+
+    private static int measure(List<Node> nodes, Resolver resolver, Map<String, String> values, int defaultMaxChars) {
+        long length = 0;
+        for (Node node : nodes) {
+            if (node instanceof Literal) {
+                length += ((Literal) node).text.length();
+            } else if (node instanceof Slot) {
+                Slot slot = (Slot) node;
+                length += limit(value(slot.key, slot.hashVariable, resolver, values), slot.maxChars, defaultMaxChars).length();
+            } else {
+                Section section = (Section) node;
+                if (isShown(section, resolver, values)) {
+                    length += measure(section.children, resolver, values, defaultMaxChars);
+                }
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE - 8, length);
+    }
+
+    private static void write(List<Node> nodes, Resolver resolver, Map<String, String> values, int defaultMaxChars, StringBuilder out) {
+        for (Node node : nodes) {
+            if (node instanceof Literal) {
+                out.append(((Literal) node).text);
+            } else if (node instanceof Slot) {
+                Slot slot = (Slot) node;
+                out.append(limit(values.get(slot.key), slot.maxChars, defaultMaxChars));
+            } else {
+                Section section = (Section) node;
+                if (isShown(section, resolver, values)) {
+                    write(section.children, resolver, values, defaultMaxChars, out);
+                }
+            }
+        }
+    }
+
+    private static boolean isShown(Section section, Resolver resolver, Map<String, String> values) {
+        String value = value(section.key, section.hashVariable, resolver, values);
+        boolean blank = value.trim().isEmpty();
+        return section.inverted == blank;
+    }
+
+    private static String value(String key, String hashVariable, Resolver resolver, Map<String, String> values) {
+        String value = values.get(key);
+        if (value == null) {
+            value = resolver.resolve(key, hashVariable);
+            if (value == null) {
+                value = "";
+            }
+            values.put(key, value);
+        }
+        return value;
+    }
+
+    private static String limit(String value, int maxChars, int defaultMaxChars) {
+        int max = maxChars > 0 ? maxChars : defaultMaxChars;
+        if (max <= 0 || value.length() <= max) {
+            return value;
+        }
+        int end = Character.isHighSurrogate(value.charAt(max - 1)) ? max - 1 : max;
+        return value.substring(0, end);
+    }
+
+    /**
+     * Single pass over the template text
+     */
+    private static final class Parser {
+        private final String text;
+        private int position;
+        private final StringBuilder literal = new StringBuilder();
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        List<Node> parse() {
+            List<Node> root = new ArrayList<>();
+            List<List<Node>> stack = new ArrayList<>();
+            List<Section> open = new ArrayList<>();
+            List<Node> current = root;
+
+            while (position < text.length()) {
+                char c = text.charAt(position);
+                if (c == '{' && text.startsWith("{{", position) && position + 2 < text.length()) {
+                    char kind = text.charAt(position + 2);
+                    int close = text.indexOf("}}", position + 3);
+                    if ((kind == '#' || kind == '^' || kind == '/') && close > 0) {
+                        String key = text.substring(position + 3, close).trim();
+                        if (isKey(key)) {
+                            flush(current);
+                            position = close + 2;
+                            if (kind == '/') {
+                                if (open.isEmpty() || !open.get(open.size() - 1).key.equals(key)) {
+                                    throw new IllegalArgumentException("Prompt template: {{/" + key + "}} does not close an open section");
+                                }
+                                open.remove(open.size() - 1);
+                                current = stack.remove(stack.size() - 1);
+                            } else {
+                                Section section = new Section(key, kind == '^');
+                                current.add(section);
+                                open.add(section);
+                                stack.add(current);
+                                current = section.children;
+                            }
+                            continue;
+                        }
+                    }
+                }
+                if (c == '#' && parseSlot(current)) {
+                    continue;
+                }
+                literal.append(c);
+                position++;
+            }
+            if (!open.isEmpty()) {
+                throw new IllegalArgumentException("Prompt template: section {{#" + open.get(open.size() - 1).key + "}} is not closed");
+            }
+            flush(current);
+            return root;
+        }
+
+        /**
+         * Hash variable at the current position, same shape Joget accepts: #prefix.rest#
+         */
+        private boolean parseSlot(List<Node> current) {
+            // #{variable.name} is accepted as well, as documented for the custom template
+            boolean braced = position + 1 < text.length() && text.charAt(position + 1) == '{';
+            int end = braced ? text.indexOf('}', position + 2) : text.indexOf('#', position + 1);
+            if (end < 0) {
+                return false;
+            }
+            String token = text.substring(position + (braced ? 2 : 1), end);
+            if (braced && token.indexOf('\n') >= 0) {
+                return false;
+            }
+            int maxChars = 0;
+            int bar = token.lastIndexOf('|');
+            if (bar > 0 && bar < token.length() - 1 && isDigits(token, bar + 1)) {
+                maxChars = parseLimit(token.substring(bar + 1));
+                token = token.substring(0, bar);
+            }
+            if (!isKey(token)) {
+                return false;
+            }
+            flush(current);
+            current.add(new Slot(token, maxChars));
+            position = end + 1;
+            return true;
+        }
+
+        private void flush(List<Node> current) {
+            if (literal.length() > 0) {
+                current.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+        }
+
+        private static boolean isKey(String token) {
+            int dot = token.indexOf('.');
+            if (dot <= 0 || token.indexOf('"') >= 0) {
+                return false;
+            }
+            for (int i = 0; i < dot; i++) {
+                if (Character.isWhitespace(token.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isDigits(String value, int from) {
+            for (int i = from; i < value.length(); i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int parseLimit(String digits) {
+            try {
+                return Integer.parseInt(digits);
+            } catch (NumberFormatException e) {
+                return Integer.MAX_VALUE;
+            }
+        }
+    }
+}
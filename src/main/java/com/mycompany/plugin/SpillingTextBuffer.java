@@ -0,0 +1,286 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Response text buffer that moves to a file once the text passes a threshold
+ * Below the threshold it behaves like {@link BoundedTextBuffer}. Past it, the text so far
+ * and everything after it is encoded straight into a file of the {@link GeminiResponseStore}
+ * as it is parsed, and only a preview stays in memory, so a long generation never sits
+ * on the heap as a whole. The result is then a reference value instead of the text.
+ */
+final class SpillingTextBuffer implements TextSink {
+
+    private static final String CLASS_NAME = SpillingTextBuffer.class.getName();
+    private static final int CHUNK_CHARS = 8192;
+
+    private final int maxChars;
+    private int thresholdChars;
+    private final int previewChars;
+    private final GeminiResponseStore store;
+
+    private StringBuilder buffer = new StringBuilder(256);
+    private int length;
+    private boolean truncated;
+    private long droppedChars;
+
+    private GeminiResponseStore.StoredFile file;
+    private FileChannel channel;
+    private CharsetEncoder encoder;
+    private CharBuffer pending;
+    private ByteBuffer encoded;
+    private String preview;
+
+    /**
+     * @param maxChars total characters kept, as for BoundedTextBuffer
+     * @param thresholdChars text longer than this goes to a file
+     */
+    SpillingTextBuffer(int maxChars, int thresholdChars, int previewChars, GeminiResponseStore store) {
+        this.maxChars = Math.max(1, maxChars);
+        this.thresholdChars = Math.max(0, thresholdChars);
+        this.previewChars = Math.max(0, previewChars);
+        this.store = store;
+    }
+
+    @Override
+    public void append(char c) {
+        // After a drop nothing more is kept, so a low surrogate cannot follow a dropped high one
+        int room = truncated ? 0 : maxChars - length;
+        if (room > 1 || (room == 1 && !Character.isHighSurrogate(c))) {
+            if (channel == null && length + 1 > thresholdChars) {
+                spill();
+            }
+            if (channel != null) {
+                pending.put(c);
+                if (!pending.hasRemaining()) {
+                    write(false);
+                }
+            } else {
+                buffer.append(c);
+            }
+            length++;
+        } else {
+            droppedChars++;
+            truncate();
+        }
+    }
+
+    @Override
+    public void append(char[] chars, int offset, int count) {
+        int room = truncated ? 0 : maxChars - length;
+        int end = count;
+        if (count > room) {
+            end = Math.max(0, room);
+            if (end > 0 && Character.isHighSurrogate(chars[offset + end - 1])) {
+                end--;
+            }
+            droppedChars += count - end;
+        }
+        if (end == 0) {
+            if (count > 0) {
+                truncate();
+            }
+            return;
+        }
+        if (channel == null && length + end > thresholdChars) {
+            spill();
+        }
+        if (channel == null) {
+            buffer.append(chars, offset, end);
+        } else {
+            for (int i = 0; i < end; ) {
+                int take = Math.min(end - i, pending.remaining());
+                pending.put(chars, offset + i, take);
+                i += take;
+                if (!pending.hasRemaining()) {
+                    write(false);
+                }
+            }
+        }
+        length += end;
+        if (end < count) {
+            truncate();
+        }
+    }
+
+    /**
+     * Stop keeping text. A high surrogate at the end lost its pair with the dropped text
+     * (it arrived in an earlier append), so it goes too; it is still in memory, since the
+     * encoder holds a trailing high surrogate back until its pair arrives.
+     */
+    private void truncate() {
+        if (truncated) {
+            return;
+        }
+        truncated = true;
+        if (channel == null) {
+            int last = buffer.length() - 1;
+            if (last >= 0 && Character.isHighSurrogate(buffer.charAt(last))) {
+                buffer.setLength(last);
+                length--;
+                droppedChars++;
+            }
+        } else if (pending.position() > 0 && Character.isHighSurrogate(pending.get(pending.position() - 1))) {
+            pending.position(pending.position() - 1);
+            length--;
+            droppedChars++;
+        }
+    }
+
+    /**
+     * Open the file and move the text so far into it. When no file can be created the
+     * text stays in memory, as it would without a threshold.
+     */
+    private void spill() {
+        GeminiResponseStore.StoredFile newFile;
+        try {
+            newFile = store.newFile();
+            channel = FileChannel.open(newFile.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            LogUtil.error(CLASS_NAME, e, "Could not store the response in a file, keeping it in memory");
+            thresholdChars = Integer.MAX_VALUE;
+            return;
+        }
+        file = newFile;
+        encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        pending = CharBuffer.allocate(CHUNK_CHARS);
+        encoded = ByteBuffer.allocate(CHUNK_CHARS * 3);
+        int cut = Math.min(previewChars, buffer.length());
+        if (cut > 0 && cut < buffer.length() && Character.isHighSurrogate(buffer.charAt(cut - 1))) {
+            cut--;
+        }
+        preview = buffer.substring(0, cut);
+        for (int i = 0; i < buffer.length(); ) {
+            int take = Math.min(buffer.length() - i, pending.remaining());
+            buffer.getChars(i, i + take, pending.array(), pending.position());
+            pending.position(pending.position() + take);
+            i += take;
+            if (!pending.hasRemaining()) {
+                write(false);
+            }
+        }
+        buffer = null;
+    }
+
+    /**
+     * Encode the pending characters into the file; a trailing high surrogate waits for its pair
+     */
+    private void write(boolean endOfInput) {
+        pending.flip();
+        try {
+            CoderResult result;
+            do {
+                result = encoder.encode(pending, encoded, endOfInput);
+                drain();
+            } while (result.isOverflow());
+            if (endOfInput) {
+                while (encoder.flush(encoded).isOverflow()) {
+                    drain();
+                }
+                drain();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the response file: " + e.getMessage(), e);
+        }
+        pending.compact();
+    }
+
+    private void drain() throws IOException {
+        encoded.flip();
+        while (encoded.hasRemaining()) {
+            channel.write(encoded);
+        }
+        encoded.clear();
+    }
+
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Mark the text as incomplete when part of it was lost before reaching the buffer,
+     * e.g. a streamed event too large to read
+     */
+    void markTruncated() {
+        truncated = true;
+    }
+
+    long getDroppedChars() {
+        return droppedChars;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Value for a partial result while text is still arriving: the text, or the reference
+     * to what has been written so far
+     */
+    String snapshot() {
+        if (channel == null) {
+            return buffer.toString();
+        }
+        // Complete characters only; the encoder keeps a dangling high surrogate
+        write(false);
+        return GeminiResponseStore.reference(file, length, preview);
+    }
+
+    /**
+     * Close the file
+     *
+     * @return the text, or the reference value when the text is in a file
+     */
+    String finish() {
+        if (channel == null) {
+            return file == null ? buffer.toString() : GeminiResponseStore.reference(file, length, preview);
+        }
+        try {
+            write(true);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close the response file: " + e.getMessage(), e);
+        } finally {
+            channel = null;
+        }
+        return GeminiResponseStore.reference(file, length, preview);
+    }
+
+    /**
+     * Close and delete the file of a response that is not used, e.g. after a failed attempt
+     */
+    void discard() {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            // The retention sweep removes it later
+        } finally {
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.mycompany.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental reader for server-sent events (text/event-stream)
+ * Returns the data of each event as soon as its terminating blank line arrives.
+ * Lines are read from a reusable byte buffer; an event larger than maxEventBytes is skipped
+ * and the stream is marked truncated.
+ */
+final class SseEventReader {
+
+    private final InputStream in;
+    private final int maxEventBytes;
+
+    private final byte[] readBuffer = new byte[8192];
+    private int readPos;
+    private int readLimit;
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+
+    private byte[] data = new byte[4096];
+    private int dataLength;
+    private boolean hasData;
+    private boolean oversized;
+    private int skippedEvents;
+
+    SseEventReader(InputStream in, int maxEventBytes) {
+        this.in = in;
+        this.maxEventBytes = Math.max(1024, maxEventBytes);
+    }
+
+    /**
+     * Block until the next complete event and return its data field,
+     * or null at the end of the stream
+     */
+    String nextEventData() throws IOException {
+        while (readLine()) {
+            if (lineLength == 0) {
+                // Blank line dispatches the event
+                if (hasData) {
+                    String event = oversized ? null : new String(data, 0, dataLength, StandardCharsets.UTF_8);
+                    if (oversized) {
+                        skippedEvents++;
+                    }
+                    resetEvent();
+                    if (event != null) {
+                        return event;
+                    }
+                }
+                continue;
+            }
+            if (startsWith("data:")) {
+                int start = 5;
+                if (start < lineLength && line[start] == ' ') {
+                    start++;
+                }
+                appendData(start);
+            }
+            // Comments (":"), "event:", "id:" and "retry:" lines are not needed for Gemini
+        }
+        // Stream ended; dispatch whatever is pending
+        if (hasData && !oversized) {
+            String event = new String(data, 0, dataLength, StandardCharsets.UTF_8);
+            resetEvent();
+            return event;
+        }
+        if (hasData) {
+            skippedEvents++;
+            resetEvent();
+        }
+        return null;
+    }
+
+    /**
+     * Whether an event was skipped for being larger than maxEventBytes
+     */
+    boolean isTruncated() {
+        return skippedEvents > 0;
+    }
+
+    int getSkippedEvents() {
+        return skippedEvents;
+    }
+
+    private void appendData(int start) {
+        int length = lineLength - start;
+        int needed = dataLength + (hasData ? 1 : 0) + length;
+        if (needed > maxEventBytes) {
+            oversized = true;
+        }
+        if (!oversized) {
+            if (needed > data.length) {
+                byte[] grown = new byte[Math.min(maxEventBytes, Math.max(needed, data.length * 2))];
+                System.arraycopy(data, 0, grown, 0, dataLength);
+                data = grown;
+            }
+            if (hasData) {
+                data[dataLength++] = '\n';
+            }
+            System.arraycopy(line, start, data, dataLength, length);
+            dataLength += length;
+        }
+        hasData = true;
+    }
+
+    private void resetEvent() {
+        dataLength = 0;
+        hasData = false;
+        oversized = false;
+        // Let one unusually large event's buffer go
+        if (data.length > 64 * 1024) {
+            data = new byte[4096];
+        }
+    }
+
+    private boolean startsWith(String prefix) {
+        if (lineLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read one line (without its CR/LF terminator) into the line buffer
+     *
+     * @return false at the end of the stream with no pending line
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean sawAny = false;
+        while (true) {
+            if (readPos >= readLimit) {
+                readLimit = in.read(readBuffer, 0, readBuffer.length);
+                readPos = 0;
+                if (readLimit <= 0) {
+                    readLimit = 0;
+                    return sawAny;
+                }
+            }
+            byte b = readBuffer[readPos++];
+            sawAny = true;
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            if (lineLength == line.length) {
+                if (line.length >= maxEventBytes) {
+                    // Keep consuming the line but stop storing it
+                    oversized = true;
+                    continue;
+                }
+                byte[] grown = new byte[Math.min(maxEventBytes, line.length * 2)];
+                System.arraycopy(line, 0, grown, 0, lineLength);
+                line = grown;
+            }
+            line[lineLength++] = b;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mycompany.plugin;
+
+/**
+ * Destination for decoded text, so large strings can be consumed
+ * without first being materialized as a String
+ */
+interface TextSink {
+
+    void append(char c);
+
+    void append(char[] chars, int offset, int length);
+
+    /**
+     * Number of characters accepted so far
+     */
+    int length();
+}
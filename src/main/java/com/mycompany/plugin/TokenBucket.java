@@ -0,0 +1,93 @@
+package com.mycompany.plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled at a steady rate
+ * Callers reserve the next token and sleep until it is due, so bursts queue locally
+ * instead of hitting the API quota. A reservation that would end after the caller's
+ * deadline is not taken.
+ */
+final class TokenBucket {
+
+    private double permitsPerNano;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+    private long waits;
+
+    TokenBucket(int permitsPerMinute) {
+        this.lastRefill = System.nanoTime();
+        setRate(permitsPerMinute);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Change the rate; the bucket holds up to a quarter minute of tokens
+     */
+    synchronized void setRate(int permitsPerMinute) {
+        refill(System.nanoTime());
+        double rate = Math.max(1, permitsPerMinute) / (double) TimeUnit.MINUTES.toNanos(1);
+        if (rate != permitsPerNano) {
+            permitsPerNano = rate;
+            capacity = Math.max(1.0, permitsPerMinute / 4.0);
+            tokens = Math.min(tokens, capacity);
+        }
+    }
+
+    /**
+     * Take one token, waiting for it if necessary
+     *
+     * @param deadlineNanos System.nanoTime() by which the token must be available
+     * @return false if the token would not be available before the deadline
+     */
+    boolean acquire(long deadlineNanos) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return true;
+            }
+            waitNanos = (long) Math.ceil((1.0 - tokens) / permitsPerNano);
+            if (now + waitNanos - deadlineNanos > 0) {
+                return false;
+            }
+            // Reserve the token now; it is paid for by the refill while we sleep
+            tokens -= 1.0;
+            waits++;
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+    /**
+     * Take one token only if it is available now
+     */
+    synchronized boolean tryAcquire() {
+        refill(System.nanoTime());
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized long getWaits() {
+        return waits;
+    }
+
+    synchronized double getAvailable() {
+        refill(System.nanoTime());
+        return tokens;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * permitsPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.mycompany.plugin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joget.apps.app.service.AppUtil;
+import org.joget.commons.util.LogUtil;
+import org.joget.workflow.model.WorkflowAssignment;
+
+/**
+ * Workflow variable reads and writes through the WorkflowManager bean
+ * The bean and its methods are looked up once and kept as method handles until the
+ * bundle stops, instead of being resolved by reflection on every call. Reads fetch all
+ * variables of an activity in one engine call; writes of several variables go through
+ * WorkflowManager.activityVariables when the engine has it.
+ */
+final class WorkflowVariableAccess {
+
+    private static final String CLASS_NAME = WorkflowVariableAccess.class.getName();
+    private static final String WORKFLOW_MANAGER = "org.joget.workflow.model.service.WorkflowManager";
+    private static final String WORKFLOW_VARIABLE = "org.joget.workflow.model.WorkflowVariable";
+    private static final String WORKFLOW_ACTIVITY = "org.joget.workflow.model.WorkflowActivity";
+
+    private static final Object LOCK = new Object();
+    private static volatile WorkflowVariableAccess shared;
+
+    private final MethodHandle activityVariable;
+    private final MethodHandle activityVariables;
+    private final MethodHandle processVariable;
+    private final MethodHandle activityVariableList;
+    private final MethodHandle activityList;
+    private final MethodHandle assignmentForceComplete;
+    private final MethodHandle getVariableId;
+    private final MethodHandle getVariableValue;
+    private final MethodHandle getActivityId;
+    private final MethodHandle getActivityDefId;
+    private final MethodHandle getActivityState;
+    private final MethodHandle getProcessDefId;
+
+    /**
+     * Open activity found by {@link #findOpenActivity}
+     */
+    static final class OpenActivity {
+        final String id;
+        final String processDefId;
+
+        OpenActivity(String id, String processDefId) {
+            this.id = id;
+            this.processDefId = processDefId;
+        }
+    }
+
+    private WorkflowVariableAccess(Object workflowManager) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> managerType = publicType(workflowManager.getClass(), WORKFLOW_MANAGER);
+        ClassLoader loader = WorkflowAssignment.class.getClassLoader();
+        Class<?> variableType = Class.forName(WORKFLOW_VARIABLE, false, loader);
+        Class<?> activityType = Class.forName(WORKFLOW_ACTIVITY, false, loader);
+
+        MethodType setter = MethodType.methodType(void.class, String.class, String.class, Object.class);
+        activityVariable = lookup.findVirtual(managerType, "activityVariable", setter).bindTo(workflowManager);
+        processVariable = lookup.findVirtual(managerType, "processVariable", setter).bindTo(workflowManager);
+        activityVariables = findOptional(lookup, managerType, "activityVariables",
+                MethodType.methodType(void.class, String.class, Map.class), workflowManager);
+        activityVariableList = findOptional(lookup, managerType, "getActivityVariableList",
+                MethodType.methodType(Collection.class, String.class), workflowManager);
+        activityList = lookup.findVirtual(managerType, "getActivityList", MethodType.methodType(Collection.class,
+                String.class, Integer.class, Integer.class, String.class, Boolean.class)).bindTo(workflowManager);
+        assignmentForceComplete = lookup.findVirtual(managerType, "assignmentForceComplete", MethodType.methodType(void.class,
+                String.class, String.class, String.class, String.class)).bindTo(workflowManager);
+
+        getVariableId = getter(lookup, variableType, "getId", String.class);
+        getVariableValue = getter(lookup, variableType, "getVal", Object.class);
+        getActivityId = getter(lookup, activityType, "getId", String.class);
+        getActivityDefId = getter(lookup, activityType, "getActivityDefId", String.class);
+        getActivityState = getter(lookup, activityType, "getState", String.class);
+        getProcessDefId = getter(lookup, activityType, "getProcessDefId", String.class);
+    }
+
+    /**
+     * Access for the current bundle lifecycle, resolved on first use
+     *
+     * @throws IllegalStateException if the WorkflowManager bean or its methods are not available
+     */
+    static WorkflowVariableAccess shared() {
+        WorkflowVariableAccess access = shared;
+        if (access == null) {
+            synchronized (LOCK) {
+                access = shared;
+                if (access == null) {
+                    access = resolve();
+                    shared = access;
+                }
+            }
+        }
+        return access;
+    }
+
+    /**
+     * Forget the resolved handles, so a restarted bundle does not hold on to the old bean
+     */
+    static void reset() {
+        synchronized (LOCK) {
+            shared = null;
+        }
+    }
+
+    /**
+     * Use the given WorkflowManager instead of the application context's bean until the
+     * next reset, e.g. an in-memory stand-in when the tool is driven outside Joget
+     *
+     * @throws IllegalStateException if the object lacks the WorkflowManager methods
+     */
+    static void use(Object workflowManager) {
+        WorkflowVariableAccess access;
+        try {
+            access = new WorkflowVariableAccess(workflowManager);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Not a WorkflowManager: " + e, e);
+        }
+        synchronized (LOCK) {
+            shared = access;
+        }
+    }
+
+    private static WorkflowVariableAccess resolve() {
+        try {
+            Object appContext = AppUtil.getApplicationContext();
+            Object workflowManager = appContext.getClass()
+                    .getMethod("getBean", String.class)
+                    .invoke(appContext, "workflowManager");
+            WorkflowVariableAccess access = new WorkflowVariableAccess(workflowManager);
+            LogUtil.info(CLASS_NAME, "Resolved WorkflowManager methods, bulk write "
+                    + (access.activityVariables != null ? "available" : "not available")
+                    + ", bulk read " + (access.activityVariableList != null ? "available" : "not available"));
+            return access;
+        } catch (ReflectiveOperationException | NullPointerException e) {
+            throw new IllegalStateException("WorkflowManager is not available: " + e, e);
+        }
+    }
+
+    /**
+     * The bean is usually a proxy; look its methods up on the public interface when it has it
+     */
+    private static Class<?> publicType(Class<?> beanClass, String interfaceName) {
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()) {
+            for (Class<?> candidate : type.getInterfaces()) {
+                if (candidate.getName().equals(interfaceName)) {
+                    return candidate;
+                }
+            }
+        }
+        return beanClass;
+    }
+
+    private static MethodHandle findOptional(MethodHandles.Lookup lookup, Class<?> type, String name, MethodType methodType, Object target)
+            throws IllegalAccessException {
+        try {
+            return lookup.findVirtual(type, name, methodType).bindTo(target);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> type, String name, Class<?> returnType)
+            throws ReflectiveOperationException {
+        return lookup.findVirtual(type, name, MethodType.methodType(returnType))
+                .asType(MethodType.methodType(Object.class, Object.class));
+    }
+
+    /**
+     * All variables visible to the activity, by name, in one engine call
+     *
+     * @return the values as text, or null if the engine has no bulk read
+     */
+    Map<String, String> readActivityVariables(String activityId) {
+        if (activityVariableList == null || activityId == null) {
+            return null;
+        }
+        Collection<?> variables = (Collection<?>) invoke(() -> activityVariableList.invoke(activityId));
+        if (variables == null || variables.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> values = new HashMap<>(variables.size() * 2);
+        for (Object variable : variables) {
+            Object name = invoke(() -> getVariableId.invokeExact(variable));
+            Object value = invoke(() -> getVariableValue.invokeExact(variable));
+            if (name != null) {
+                values.put(name.toString(), value != null ? value.toString() : null);
+            }
+        }
+        return values;
+    }
+
+    void setActivityVariable(String activityId, String name, String value) {
+        invoke(() -> {
+            activityVariable.invoke(activityId, name, (Object) value);
+            return null;
+        });
+    }
+
+    void setProcessVariable(String processId, String name, String value) {
+        invoke(() -> {
+            processVariable.invoke(processId, name, (Object) value);
+            return null;
+        });
+    }
+
+    /**
+     * Write several activity variables, in one engine call when possible
+     */
+    void setActivityVariables(String activityId, Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (activityVariables != null) {
+            invoke(() -> {
+                activityVariables.invoke(activityId, values);
+                return null;
+            });
+        } else {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                setActivityVariable(activityId, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Write several process variables; the engine has no bulk call for these
+     */
+    void setProcessVariables(String processId, Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            setProcessVariable(processId, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Open activity of the process with the given definition ID, or null if there is none
+     */
+    OpenActivity findOpenActivity(String processId, String definitionId) {
+        Collection<?> activities = (Collection<?>) invoke(() -> activityList.invoke(processId, (Integer) null, (Integer) null, (String) null, (Boolean) null));
+        if (activities == null) {
+            return null;
+        }
+        for (Object activity : activities) {
+            Object defId = invoke(() -> getActivityDefId.invokeExact(activity));
+            Object state = invoke(() -> getActivityState.invokeExact(activity));
+            if (definitionId.equals(defId) && state != null && state.toString().startsWith("open")) {
+                return new OpenActivity((String) invoke(() -> getActivityId.invokeExact(activity)),
+                        (String) invoke(() -> getProcessDefId.invokeExact(activity)));
+            }
+        }
+        return null;
+    }
+
+    void forceComplete(String processDefId, String processId, String activityId, String username) {
+        invoke(() -> {
+            assignmentForceComplete.invoke(processDefId, processId, activityId, username);
+            return null;
+        });
+    }
+
+    private interface Invocation {
+        Object call() throws Throwable;
+    }
+
+    private static Object invoke(Invocation invocation) {
+        try {
+            return invocation.call();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("WorkflowManager call failed: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static long in(long millis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void startsAtHalfTheMaximum() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10);
+        assertEquals(5, limit.getLimit());
+        assertEquals(1, new AdaptiveConcurrencyLimit(1).getLimit());
+    }
+
+    @Test
+    public void tryAcquireStopsAtTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(2, limit.getInFlight());
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.FAILED);
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void fastSuccessesGrowTheLimitUpToTheMaximum() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.SUCCESS);
+        }
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void throttlingHalvesTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(16);
+        assertEquals(8, limit.getLimit());
+        assertTrue(limit.tryAcquire());
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.THROTTLED);
+        assertEquals(4, limit.getLimit());
+        assertTrue(limit.tryAcquire());
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.TIMEOUT);
+        assertEquals(2, limit.getLimit());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.THROTTLED);
+        }
+        assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void slowSuccessesShrinkTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20);
+        assertTrue(limit.tryAcquire());
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.SUCCESS);
+        int before = limit.getLimit();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(FAST * 10, AdaptiveConcurrencyLimit.Outcome.SUCCESS);
+        }
+        assertTrue(limit.getLimit() < before);
+    }
+
+    @Test
+    public void otherFailuresKeepTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10);
+        assertTrue(limit.tryAcquire());
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.FAILED);
+        assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    public void acquireGivesUpAtTheDeadline() throws InterruptedException {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1);
+        assertTrue(limit.acquire(in(100)));
+        long start = System.nanoTime();
+        assertFalse(limit.acquire(in(50)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, limit.getInFlight());
+    }
+
+    @Test
+    public void releaseWakesAWaitingCaller() throws InterruptedException {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1);
+        assertTrue(limit.acquire(in(100)));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                if (limit.acquire(in(5000))) {
+                    acquired.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        limit.release(FAST, AdaptiveConcurrencyLimit.Outcome.SUCCESS);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(1, limit.getInFlight());
+    }
+
+    @Test
+    public void lowerMaximumCapsTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20);
+        limit.setMaxLimit(3);
+        assertEquals(3, limit.getLimit());
+    }
+}
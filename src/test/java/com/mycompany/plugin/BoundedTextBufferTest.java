@@ -0,0 +1,102 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BoundedTextBufferTest {
+
+    // U+1F600 as a surrogate pair
+    private static final String EMOJI = "\ud83d\ude00";
+
+    @Test
+    public void keepsTextUnderTheLimit() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(10);
+        assertTrue(buffer.append("hello"));
+        assertTrue(buffer.append(""));
+        assertTrue(buffer.append(null));
+        assertTrue(buffer.append("world"));
+        assertEquals("helloworld", buffer.toString());
+        assertEquals(10, buffer.length());
+        assertFalse(buffer.isTruncated());
+        assertEquals(0L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void dropsTextPastTheLimit() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(8);
+        assertTrue(buffer.append("hello"));
+        assertFalse(buffer.append(" world"));
+        assertEquals("hello wo", buffer.toString());
+        assertTrue(buffer.isTruncated());
+        assertEquals(3L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void dropsEverythingAfterTheFirstCut() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(4);
+        assertFalse(buffer.append("abcdef"));
+        // Nothing is appended after a cut
+        assertFalse(buffer.append("g"));
+        buffer.append('h');
+        buffer.append(new char[] {'i', 'j'}, 0, 2);
+        assertEquals("abcd", buffer.toString());
+        assertEquals(6L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void doesNotSplitASurrogatePairAtTheCut() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(3);
+        assertFalse(buffer.append("ab" + EMOJI));
+        assertEquals("ab", buffer.toString());
+        assertEquals(2L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void dropsAHighSurrogateWhosePairWasCut() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(3);
+        buffer.append('a');
+        buffer.append('b');
+        buffer.append(EMOJI.charAt(0));
+        assertEquals("ab", buffer.toString());
+        buffer.append(EMOJI.charAt(1));
+        assertEquals("ab", buffer.toString());
+        assertTrue(buffer.isTruncated());
+        assertEquals(2L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void completesAPairSplitAcrossAppends() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(4);
+        char[] chars = ("ab" + EMOJI.charAt(0)).toCharArray();
+        buffer.append(chars, 0, chars.length);
+        assertEquals(3, buffer.length());
+        assertFalse(buffer.append(EMOJI.charAt(1) + "cd"));
+        assertEquals("ab" + EMOJI, buffer.toString());
+        assertEquals(2L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void removesAStoredHighSurrogateWhenItsPairIsDropped() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(3);
+        char[] chars = ("ab" + EMOJI.charAt(0)).toCharArray();
+        buffer.append(chars, 0, chars.length);
+        assertEquals(3, buffer.length());
+        assertFalse(buffer.append(String.valueOf(EMOJI.charAt(1))));
+        assertEquals("ab", buffer.toString());
+        assertEquals(2L, buffer.getDroppedChars());
+    }
+
+    @Test
+    public void appendsCharArrayRanges() {
+        BoundedTextBuffer buffer = new BoundedTextBuffer(5);
+        char[] chars = "xxhelloxx".toCharArray();
+        buffer.append(chars, 2, 5);
+        assertEquals("hello", buffer.toString());
+        buffer.append(chars, 0, 1);
+        assertTrue(buffer.isTruncated());
+        assertEquals(1L, buffer.getDroppedChars());
+    }
+}
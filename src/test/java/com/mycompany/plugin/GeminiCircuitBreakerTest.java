@@ -0,0 +1,138 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class GeminiCircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 1000L;
+
+    /**
+     * Breakers are shared by model name, so every test uses its own models
+     */
+    private static GeminiRequest request(String model) {
+        return new GeminiRequest(model, null);
+    }
+
+    private static GeminiResponse call(GeminiRequest request, String fallbackModel, GeminiCircuitBreaker.ModelCall call)
+            throws IOException {
+        return GeminiCircuitBreaker.call(request, fallbackModel, 50, OPEN_MILLIS, call);
+    }
+
+    private static void fail(String model, int times) {
+        for (int i = 0; i < times; i++) {
+            assertThrows(IOException.class, () -> call(request(model), null, r -> {
+                throw new GeminiApiException(503, "UNAVAILABLE", "overloaded");
+            }));
+        }
+    }
+
+    @Test
+    public void opensAfterFailuresAndFailsFast() throws IOException {
+        String model = "breaker-open";
+        call(request(model), null, r -> new GeminiResponse());
+        fail(model, 4);
+        assertEquals(GeminiCircuitBreaker.State.OPEN, GeminiCircuitBreaker.forModel(model).getState());
+
+        int[] calls = new int[1];
+        GeminiApiException e = assertThrows(GeminiApiException.class, () -> call(request(model), null, r -> {
+            calls[0]++;
+            return new GeminiResponse();
+        }));
+        assertEquals("CIRCUIT_OPEN", e.getStatus());
+        assertEquals(0, calls[0]);
+    }
+
+    @Test
+    public void clientErrorsDoNotOpen() {
+        String model = "breaker-client-errors";
+        for (int i = 0; i < 10; i++) {
+            assertThrows(IOException.class, () -> call(request(model), null, r -> {
+                throw new GeminiApiException(400, "INVALID_ARGUMENT", "bad request");
+            }));
+        }
+        assertEquals(GeminiCircuitBreaker.State.CLOSED, GeminiCircuitBreaker.forModel(model).getState());
+    }
+
+    @Test
+    public void classifiesModelFailures() {
+        assertTrue(GeminiCircuitBreaker.isModelFailure(new GeminiApiException(429, "RESOURCE_EXHAUSTED", "quota")));
+        assertTrue(GeminiCircuitBreaker.isModelFailure(new GeminiApiException(400, "DEADLINE_EXCEEDED", "deadline")));
+        assertTrue(GeminiCircuitBreaker.isModelFailure(new SocketTimeoutException("read timed out")));
+        assertFalse(GeminiCircuitBreaker.isModelFailure(new GeminiApiException(404, "NOT_FOUND", "no model")));
+    }
+
+    @Test
+    public void letsOneTrialThroughAfterOpenTime() throws Exception {
+        String model = "breaker-trial";
+        fail(model, 5);
+        GeminiCircuitBreaker breaker = GeminiCircuitBreaker.forModel(model);
+        assertEquals(GeminiCircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(GeminiCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // A second call waits for the trial's outcome
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void successfulTrialCloses() throws Exception {
+        String model = "breaker-close";
+        fail(model, 5);
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        call(request(model), null, r -> new GeminiResponse());
+        assertEquals(GeminiCircuitBreaker.State.CLOSED, GeminiCircuitBreaker.forModel(model).getState());
+    }
+
+    @Test
+    public void failedTrialReopens() throws Exception {
+        String model = "breaker-reopen";
+        fail(model, 5);
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        fail(model, 1);
+        assertEquals(GeminiCircuitBreaker.State.OPEN, GeminiCircuitBreaker.forModel(model).getState());
+    }
+
+    @Test
+    public void usesFallbackWhileOpen() throws IOException {
+        String model = "breaker-primary";
+        String fallback = "breaker-fallback";
+        fail(model, 5);
+
+        List<String> models = new ArrayList<>();
+        GeminiResponse response = call(request(model), fallback, r -> {
+            models.add(r.getModel());
+            return new GeminiResponse();
+        });
+        assertEquals(fallback, response.getModel());
+        assertEquals(1, models.size());
+        assertEquals(fallback, models.get(0));
+    }
+
+    @Test
+    public void retriesModelFailureOnFallback() throws IOException {
+        String model = "breaker-flaky";
+        String fallback = "breaker-flaky-fallback";
+        List<String> models = new ArrayList<>();
+        GeminiResponse response = call(request(model), fallback, r -> {
+            models.add(r.getModel());
+            if (r.getModel().equals(model)) {
+                throw new GeminiApiException(500, "INTERNAL", "server error");
+            }
+            return new GeminiResponse();
+        });
+        assertEquals(fallback, response.getModel());
+        assertEquals(2, models.size());
+    }
+}
@@ -0,0 +1,100 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class GeminiRequestWriterTest {
+
+    private static String body(GeminiRequest request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GeminiRequestWriter.write(request, out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(bytes.length, GeminiRequestWriter.measure(request));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Strings of a JSON array, as a JSON parser sees them
+     */
+    private static List<String> parse(String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextString());
+        }
+        reader.endArray();
+        return values;
+    }
+
+    private static String roundTrip(String value) throws IOException {
+        return parse(GeminiRequestWriter.toJsonArray(Collections.singletonList(value))).get(0);
+    }
+
+    @Test
+    public void escapesQuotesBackslashesAndControlCharacters() {
+        String json = GeminiRequestWriter.toJsonArray(Collections.singletonList("a\"b\\c\nd\re\tf\bg\fh\u0001i\u001f"));
+        assertEquals("[\"a\\\"b\\\\c\\nd\\re\\tf\\bg\\fh\\u0001i\\u001f\"]", json);
+    }
+
+    @Test
+    public void leavesSlashesAndPrintableAsciiAlone() {
+        assertEquals("[\"</script> {x: 1}\"]", GeminiRequestWriter.toJsonArray(Collections.singletonList("</script> {x: 1}")));
+    }
+
+    @Test
+    public void encodesUtf8() {
+        String json = GeminiRequestWriter.toJsonArray(Arrays.asList("caf\u00e9", "\u4e16\u754c", "\ud83d\ude00"));
+        assertEquals("[\"caf\u00e9\",\"\u4e16\u754c\",\"\ud83d\ude00\"]", json);
+    }
+
+    @Test
+    public void escapesLineAndParagraphSeparators() {
+        assertEquals("[\"a\\u2028b\\u2029c\"]", GeminiRequestWriter.toJsonArray(Collections.singletonList("a\u2028b\u2029c")));
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() throws IOException {
+        assertEquals("a\ufffdb", roundTrip("a\ud83db"));
+        assertEquals("a\ufffd", roundTrip("a\ude00"));
+        assertEquals("\ufffd", roundTrip("\ud83d"));
+    }
+
+    @Test
+    public void writesNullAsEmptyString() {
+        assertEquals("[\"\"]", GeminiRequestWriter.toJsonArray(Collections.singletonList(null)));
+    }
+
+    @Test
+    public void roundTripsTextLongerThanTheBuffer() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("\"\u00e9\u4e16\ud83d\ude00\n");
+        }
+        assertEquals(text.toString(), roundTrip(text.toString()));
+    }
+
+    @Test
+    public void measureMatchesTheWrittenBody() throws IOException {
+        GeminiRequest request = new GeminiRequest("gemini-test", "Be \"brief\"\n\u2028")
+                .addContent("user", "first \ud83d\ude00 \ud83d")
+                .addContent("model", "answer\t\u00e9")
+                .addContent("user", "second\\")
+                .addStopSequence("END\"")
+                .setTemperature(0.5);
+        String body = body(request);
+        assertTrue(body, body.contains("\"Be \\\"brief\\\"\\n\\u2028\""));
+        assertTrue(body, body.contains("\"first \ud83d\ude00 \ufffd\""));
+        assertTrue(body, body.contains("\"second\\\\\""));
+    }
+}
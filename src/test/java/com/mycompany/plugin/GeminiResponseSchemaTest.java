@@ -0,0 +1,114 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import org.junit.Test;
+
+public class GeminiResponseSchemaTest {
+
+    private static final String SCHEMA = "{\"type\": \"object\","
+            + " \"properties\": {"
+            + "  \"title\": {\"type\": \"STRING\", \"description\": \"Caf\u00e9 name\"},"
+            + "  \"score\": {\"type\": \"INTEGER\"},"
+            + "  \"ratio\": {\"type\": \"NUMBER\", \"nullable\": true},"
+            + "  \"status\": {\"type\": \"STRING\", \"enum\": [\"OPEN\", \"CLOSED\"]},"
+            + "  \"tags\": {\"type\": \"ARRAY\", \"items\": {\"type\": \"STRING\"}},"
+            + "  \"owner\": {\"type\": \"OBJECT\", \"properties\": {\"name\": {\"type\": \"STRING\"}}, \"required\": [\"name\"]}"
+            + " },"
+            + " \"required\": [\"title\", \"score\"]}";
+
+    private static Map<String, String> read(String response) throws IOException {
+        return GeminiResponseSchema.compile(SCHEMA).read(response);
+    }
+
+    private static void assertMismatch(String response, String message) {
+        IOException e = assertThrows(IOException.class, () -> read(response));
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    private static void assertInvalidSchema(String schema, String message) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> GeminiResponseSchema.compile(schema));
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    @Test
+    public void compilesToCompactAsciiJson() {
+        GeminiResponseSchema schema = GeminiResponseSchema.compile(SCHEMA);
+        String json = schema.toJson();
+        assertTrue(json, json.startsWith("{\"type\":\"OBJECT\",\"properties\":{\"title\":{\"type\":\"STRING\","));
+        assertTrue(json, json.contains("\"description\":\"Caf\\u00e9 name\""));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("title", "score", "ratio", "status", "tags", "owner")), schema.getFieldNames());
+        assertTrue(schema == GeminiResponseSchema.compile(SCHEMA));
+    }
+
+    @Test
+    public void readsTopLevelFields() throws IOException {
+        Map<String, String> fields = read("{\"title\": \"Caf\\u00e9 \\\"A\\\"\", \"score\": 3, \"ratio\": null,"
+                + " \"status\": \"OPEN\", \"tags\": [\"a\", \"b\"], \"owner\": {\"name\": \"Ann\", \"extra\": [1, true]},"
+                + " \"unknown\": 1.5}");
+        assertEquals("Caf\u00e9 \"A\"", fields.get("title"));
+        assertEquals("3", fields.get("score"));
+        assertEquals("", fields.get("ratio"));
+        assertEquals("OPEN", fields.get("status"));
+        assertEquals("[\"a\",\"b\"]", fields.get("tags"));
+        assertEquals("{\"name\":\"Ann\",\"extra\":[1,true]}", fields.get("owner"));
+        assertEquals("1.5", fields.get("unknown"));
+    }
+
+    @Test
+    public void acceptsIntegralNumbersForInteger() throws IOException {
+        assertEquals("2.0", read("{\"title\": \"t\", \"score\": 2.0}").get("score"));
+        assertEquals("-1e2", read("{\"title\": \"t\", \"score\": -1e2}").get("score"));
+        assertMismatch("{\"title\": \"t\", \"score\": 1.5}", "'score' must be an integer, got 1.5");
+    }
+
+    @Test
+    public void rejectsTypeMismatches() {
+        assertMismatch("{\"title\": 1, \"score\": 1}", "'title' must be STRING, got NUMBER");
+        assertMismatch("{\"title\": \"t\", \"score\": \"1\"}", "'score' must be INTEGER, got STRING");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"ratio\": true}", "'ratio' must be NUMBER, got BOOLEAN");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"tags\": {}}", "'tags' must be ARRAY, got OBJECT");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"tags\": [\"a\", 2]}", "'tags[1]' must be STRING, got NUMBER");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"owner\": {\"name\": false}}", "'owner.name' must be STRING, got BOOLEAN");
+    }
+
+    @Test
+    public void rejectsMissingAndNullFields() {
+        assertMismatch("{\"title\": \"t\"}", "'response' is missing required field 'score'");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"owner\": {}}", "'owner' is missing required field 'name'");
+        assertMismatch("{\"title\": null, \"score\": 1}", "'title' must not be null");
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"owner\": {\"name\": null}}", "'owner.name' must not be null");
+    }
+
+    @Test
+    public void rejectsValueOutsideEnum() {
+        assertMismatch("{\"title\": \"t\", \"score\": 1, \"status\": \"open\"}", "'status' must be one of [OPEN, CLOSED], got \"open\"");
+    }
+
+    @Test
+    public void rejectsResponseThatIsNotOneObject() {
+        assertMismatch("[{\"title\": \"t\", \"score\": 1}]", "Response is not a JSON object");
+        assertMismatch("\"text\"", "Response is not a JSON object");
+        assertMismatch("{\"title\": \"t\", \"score\": 1} {}", "Unexpected data after the top-level value");
+        assertMismatch("{\"title\": \"t\", \"score\": 1", "Malformed JSON");
+        assertMismatch("", "Malformed JSON");
+    }
+
+    @Test
+    public void rejectsInvalidSchema() {
+        assertInvalidSchema("", "Response schema is not valid JSON");
+        assertInvalidSchema("{\"type\": \"OBJECT\",}", "Response schema is not valid JSON");
+        assertInvalidSchema("{\"type\": \"STRING\"}", "Response schema must have type OBJECT");
+        assertInvalidSchema("{\"properties\": {}}", "Response schema must have type OBJECT");
+        assertInvalidSchema("{\"type\": \"OBJECT\", \"properties\": {\"a\": {\"type\": \"DATE\"}}}", "unknown type 'DATE' at 'schema.a'");
+        assertInvalidSchema("{\"type\": \"OBJECT\", \"properties\": {\"a\": \"STRING\"}}", "'schema.a' must be an object");
+        assertInvalidSchema("[]", "'schema' must be an object");
+        assertInvalidSchema("{\"type\": \"OBJECT\"} {}", "Unexpected data after the top-level value");
+    }
+}
@@ -0,0 +1,161 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class GeminiSingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private static GeminiResponse response(String text) {
+        GeminiResponse response = new GeminiResponse();
+        response.setText(text);
+        return response;
+    }
+
+    /**
+     * Start CALLERS threads on the same key; the first call blocks until all others have joined
+     */
+    private static List<Future<GeminiResponse>> callTogether(GeminiSingleFlight flight, String key,
+            AtomicInteger calls, GeminiSingleFlight.Call call) throws InterruptedException {
+        long joinedBefore = flight.getJoined();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        List<Future<GeminiResponse>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executor.submit(() -> flight.execute(key, () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return call.call();
+                })));
+            }
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (flight.getJoined() - joinedBefore < CALLERS - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(CALLERS - 1, flight.getJoined() - joinedBefore);
+            release.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    private static Throwable failure(Future<GeminiResponse> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("Call did not fail");
+    }
+
+    @Test
+    public void sharesOneCallAndCopiesTheResponse() throws Exception {
+        GeminiSingleFlight flight = new GeminiSingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<GeminiResponse>> results = callTogether(flight, "shared", calls, () -> response("answer"));
+
+        assertEquals(1, calls.get());
+        List<GeminiResponse> responses = new ArrayList<>();
+        for (Future<GeminiResponse> result : results) {
+            GeminiResponse response = result.get();
+            assertEquals("answer", response.getText());
+            for (GeminiResponse other : responses) {
+                assertTrue(response != other);
+            }
+            responses.add(response);
+        }
+        assertEquals(0, flight.getInFlight());
+    }
+
+    @Test
+    public void failureReachesEveryWaiter() throws Exception {
+        GeminiSingleFlight flight = new GeminiSingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<GeminiResponse>> results = callTogether(flight, "failing", calls, () -> {
+            throw new GeminiApiException(429, "RESOURCE_EXHAUSTED", "quota exceeded", 1500L);
+        });
+
+        assertEquals(1, calls.get());
+        for (Future<GeminiResponse> result : results) {
+            Throwable cause = failure(result);
+            assertTrue(cause.toString(), cause instanceof GeminiApiException);
+            GeminiApiException e = (GeminiApiException) cause;
+            assertEquals(429, e.getStatusCode());
+            assertEquals("RESOURCE_EXHAUSTED", e.getStatus());
+            assertEquals(1500L, e.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void networkFailureReachesEveryWaiter() throws Exception {
+        GeminiSingleFlight flight = new GeminiSingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<GeminiResponse>> results = callTogether(flight, "network", calls, () -> {
+            throw new IOException("connection reset");
+        });
+
+        assertEquals(1, calls.get());
+        for (Future<GeminiResponse> result : results) {
+            Throwable cause = failure(result);
+            assertTrue(cause.toString(), cause instanceof IOException);
+            assertEquals("connection reset", cause.getMessage());
+        }
+    }
+
+    @Test
+    public void remembersNothingAfterTheCall() throws IOException {
+        GeminiSingleFlight flight = new GeminiSingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThrows(IOException.class, () -> flight.execute("key", () -> {
+            calls.incrementAndGet();
+            throw new IOException("first call fails");
+        }));
+        assertEquals(0, flight.getInFlight());
+
+        GeminiResponse first = flight.execute("key", () -> {
+            calls.incrementAndGet();
+            return response("first");
+        });
+        GeminiResponse second = flight.execute("key", () -> {
+            calls.incrementAndGet();
+            return response("second");
+        });
+
+        assertEquals(3, calls.get());
+        assertEquals("first", first.getText());
+        assertEquals("second", second.getText());
+        assertEquals(0, flight.getJoined());
+        assertEquals(0, flight.getInFlight());
+    }
+
+    @Test
+    public void differentKeysDoNotShare() throws IOException {
+        GeminiSingleFlight flight = new GeminiSingleFlight();
+        GeminiResponse a = flight.execute("a", () -> flight.execute("b", () -> response("b")));
+        assertEquals("b", a.getText());
+        assertEquals(0, flight.getJoined());
+    }
+}
@@ -0,0 +1,161 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+public class JsonReaderTest {
+
+    private static JsonReader reader(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+
+    /**
+     * Read the document as one string value, or throw what the reader throws
+     */
+    private static String string(String json) throws IOException {
+        JsonReader reader = reader(json);
+        String value = reader.nextString();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+        return value;
+    }
+
+    private static void assertMalformed(String json, String message) {
+        IOException e = assertThrows(IOException.class, () -> {
+            JsonReader reader = reader(json);
+            reader.skipValue();
+            reader.peek();
+        });
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed JSON at offset "));
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    @Test
+    public void readsNestedDocument() throws IOException {
+        JsonReader reader = reader(" {\"a\": [1, -2.5e3, true, false, null], \"b\": {}, \"c\": []}\n");
+        reader.beginObject();
+        assertEquals("a", reader.nextName());
+        reader.beginArray();
+        assertEquals(1L, reader.nextLong());
+        assertEquals(-2500.0, reader.nextDouble(), 0.0);
+        assertTrue(reader.nextBoolean());
+        assertFalse(reader.nextBoolean());
+        reader.nextNull();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("b", reader.nextName());
+        reader.beginObject();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals("c", reader.nextName());
+        reader.skipValue();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void literalsReadAsStrings() throws IOException {
+        assertEquals("42", string("42"));
+        assertEquals("true", string("true"));
+        assertEquals("null", string("null"));
+        assertEquals(3L, reader("3.0").nextLong());
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        assertEquals("\" \\ / \b \f \n \r \t", string("\"\\\" \\\\ \\/ \\b \\f \\n \\r \\t\""));
+        assertEquals("\u00e9\u4e2d", string("\"\\u00e9\\u4E2D\""));
+        assertEquals("", string("\"\""));
+    }
+
+    @Test
+    public void keepsSurrogatePairs() throws IOException {
+        String emoji = "\ud83d\ude00";
+        assertEquals(emoji, string("\"\\ud83d\\ude00\""));
+        assertEquals("a" + emoji + "b", string("\"a" + emoji + "b\""));
+    }
+
+    @Test
+    public void keepsSurrogatePairAcrossBufferRefill() throws IOException {
+        // The reader fills 8192 chars at a time; put the pair and an escape on the boundary
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < 8190; i++) {
+            prefix.append('x');
+        }
+        String emoji = "\ud83d\ude00";
+        assertEquals(prefix + emoji, string("\"" + prefix + emoji + "\""));
+        String shorter = prefix.substring(1);
+        assertEquals(shorter + emoji, string("\"" + shorter + "\\ud83d\\ude00\""));
+    }
+
+    @Test
+    public void streamsStringIntoSink() throws IOException {
+        BoundedTextBuffer sink = new BoundedTextBuffer(100);
+        JsonReader reader = reader("[\"line\\none \\ud83d\\ude00\"]");
+        reader.beginArray();
+        reader.nextString(sink);
+        reader.endArray();
+        assertEquals("line\none \ud83d\ude00", sink.toString());
+    }
+
+    @Test
+    public void rejectsEmptyInput() {
+        assertMalformed("", "Unexpected end of input");
+        assertMalformed("   \n\t", "Unexpected end of input");
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        assertMalformed("{\"a\":1,}", "Expected a property name");
+        assertMalformed("{\"a\" 1}", "Expected ':' after property name");
+        assertMalformed("{\"a\":1 \"b\":2}", "Expected ',' or '}' in object");
+        assertMalformed("[1 2]", "Expected ',' or ']' in array");
+        assertMalformed("{a:1}", "Expected a property name");
+        assertMalformed("[1,", "Unexpected end of input");
+        assertMalformed("{\"a\":", "Unexpected end of input");
+        assertMalformed("'a'", "Unexpected character");
+        assertMalformed("{} {}", "Unexpected data after the top-level value");
+    }
+
+    @Test
+    public void rejectsBrokenStrings() {
+        assertMalformed("\"abc", "Unterminated string");
+        assertMalformed("\"abc\\", "Unterminated escape sequence");
+        assertMalformed("\"\\x\"", "Invalid escape '\\x'");
+        assertMalformed("\"\\u12G4\"", "Invalid \\u escape");
+        assertMalformed("\"\\u12", "Unterminated \\u escape");
+    }
+
+    @Test
+    public void rejectsBrokenLiterals() {
+        IOException e = assertThrows(IOException.class, () -> reader("tru").nextBoolean());
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected a boolean but was 'tru'"));
+        e = assertThrows(IOException.class, () -> reader("nul").nextNull());
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected null but was 'nul'"));
+        e = assertThrows(IOException.class, () -> reader("-x").nextLong());
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected a number but was '-x'"));
+    }
+
+    @Test
+    public void rejectsWrongToken() {
+        IOException e = assertThrows(IOException.class, () -> reader("[]").beginObject());
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected BEGIN_OBJECT but was BEGIN_ARRAY"));
+        e = assertThrows(IOException.class, () -> reader("{}").nextString());
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected a string but was BEGIN_OBJECT"));
+    }
+
+    @Test
+    public void reportsOffsetOfError() {
+        IOException e = assertThrows(IOException.class, () -> {
+            JsonReader reader = reader("[1, 2 3]");
+            reader.skipValue();
+        });
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed JSON at offset 7:"));
+    }
+}
@@ -0,0 +1,106 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class PromptTemplateTest {
+
+    private final Map<String, String> values = new HashMap<>();
+    private final List<String> resolved = new ArrayList<>();
+
+    private String render(String template, int defaultMaxChars) {
+        return PromptTemplate.compile(template).render((key, hashVariable) -> {
+            assertEquals("#" + key + "#", hashVariable);
+            resolved.add(key);
+            return values.get(key);
+        }, defaultMaxChars);
+    }
+
+    private String render(String template) {
+        return render(template, 0);
+    }
+
+    private static void assertInvalid(String template, String message) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> PromptTemplate.compile(template));
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    @Test
+    public void fillsSlots() {
+        values.put("variable.name", "Ann");
+        values.put("form.order.id", "42");
+        assertEquals("Hi Ann, order 42 / Ann.", render("Hi #variable.name#, order #{form.order.id} / #{variable.name}."));
+        assertEquals(3, PromptTemplate.compile("Hi #variable.name#, order #{form.order.id} / #{variable.name}.").getSlotCount());
+    }
+
+    @Test
+    public void resolvesEachVariableOnce() {
+        values.put("variable.name", "Ann");
+        render("#variable.name# #variable.name# {{#variable.name}}#variable.name#{{/variable.name}}");
+        assertEquals(1, resolved.size());
+    }
+
+    @Test
+    public void missingValueIsEmpty() {
+        assertEquals("[]", render("[#variable.missing#]"));
+    }
+
+    @Test
+    public void keepsTextThatIsNotAVariable() {
+        assertEquals("", render(""));
+        assertEquals("Issue #42 and #7", render("Issue #42 and #7"));
+        assertEquals("# #a b# #{x}", render("# #a b# #{x}"));
+        assertEquals("{{ not a tag }} {{#}} {x}", render("{{ not a tag }} {{#}} {x}"));
+        assertEquals("#{variable.\nname}", render("#{variable.\nname}"));
+        assertEquals("unclosed #variable.name", render("unclosed #variable.name"));
+    }
+
+    @Test
+    public void limitsLength() {
+        values.put("variable.text", "abcdef");
+        assertEquals("abc|abcd|abcdef", render("#variable.text|3#|#{variable.text|4}|#variable.text|99999999999#"));
+        assertEquals("ab ab", render("#variable.text# #variable.text#", 2));
+        assertEquals("abc", render("#variable.text|3#", 2));
+        values.put("variable.odd", "v|x");
+        assertEquals("v|x", render("#variable.odd#"));
+    }
+
+    @Test
+    public void limitDoesNotSplitSurrogatePair() {
+        values.put("variable.text", "ab\ud83d\ude00c");
+        assertEquals("ab", render("#variable.text|3#"));
+        assertEquals("ab\ud83d\ude00", render("#variable.text|4#"));
+    }
+
+    @Test
+    public void sections() {
+        values.put("variable.name", "Ann");
+        values.put("variable.blank", "  ");
+        assertEquals("Name: Ann.", render("{{#variable.name}}Name: #variable.name#.{{/variable.name}}"));
+        assertEquals("", render("{{^variable.name}}no name{{/variable.name}}"));
+        assertEquals("", render("{{#variable.blank}}shown{{/variable.blank}}"));
+        assertEquals("none", render("{{^variable.blank}}none{{/variable.blank}}"));
+        assertEquals("none", render("{{^ variable.missing }}none{{/variable.missing}}"));
+        assertEquals("a[Ann]b", render("a{{#variable.name}}[{{^variable.missing}}#variable.name#{{/variable.missing}}]{{/variable.name}}b"));
+        assertEquals("ab", render("a{{#variable.missing}}[{{#variable.name}}x{{/variable.name}}]{{/variable.missing}}b"));
+    }
+
+    @Test
+    public void rejectsUnbalancedSections() {
+        assertInvalid("{{#variable.a}}text", "section {{#variable.a}} is not closed");
+        assertInvalid("text{{/variable.a}}", "{{/variable.a}} does not close an open section");
+        assertInvalid("{{#variable.a}}{{#variable.b}}{{/variable.a}}{{/variable.b}}", "{{/variable.a}} does not close an open section");
+    }
+
+    @Test
+    public void compiledTemplateIsReused() {
+        assertTrue(PromptTemplate.compile("Hello #variable.name#") == PromptTemplate.compile("Hello #variable.name#"));
+    }
+}
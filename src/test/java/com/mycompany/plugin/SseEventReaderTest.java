@@ -0,0 +1,117 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class SseEventReaderTest {
+
+    private static List<String> events(SseEventReader reader) throws IOException {
+        List<String> events = new ArrayList<>();
+        String event;
+        while ((event = reader.nextEventData()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static SseEventReader reader(String stream, int maxEventBytes) {
+        return new SseEventReader(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)), maxEventBytes);
+    }
+
+    /**
+     * Hands out one byte per read, like a slow network
+     */
+    private static InputStream trickle(String stream) {
+        byte[] bytes = stream.getBytes(StandardCharsets.UTF_8);
+        return new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < bytes.length ? bytes[position++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= bytes.length) {
+                    return -1;
+                }
+                b[off] = bytes[position++];
+                return 1;
+            }
+        };
+    }
+
+    @Test
+    public void readsEventsInOrder() throws IOException {
+        SseEventReader reader = reader("data: {\"a\":1}\n\ndata: {\"a\":2}\n\n", 4096);
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}"), events(reader));
+        assertFalse(reader.isTruncated());
+    }
+
+    @Test
+    public void handlesCrLfAndMissingSpace() throws IOException {
+        assertEquals(Arrays.asList("one", "two"), events(reader("data:one\r\n\r\ndata: two\r\n\r\n", 4096)));
+    }
+
+    @Test
+    public void joinsDataLinesWithNewlines() throws IOException {
+        assertEquals(Arrays.asList("first\nsecond"), events(reader("data: first\ndata: second\n\n", 4096)));
+    }
+
+    @Test
+    public void ignoresCommentsAndOtherFields() throws IOException {
+        String stream = ": keep-alive\n\nevent: message\nid: 7\nretry: 100\ndata: text\n\n";
+        assertEquals(Arrays.asList("text"), events(reader(stream, 4096)));
+    }
+
+    @Test
+    public void dispatchesTheLastEventAtEndOfStream() throws IOException {
+        assertEquals(Arrays.asList("done", "tail"), events(reader("data: done\n\ndata: tail", 4096)));
+    }
+
+    @Test
+    public void readsAcrossSmallReads() throws IOException {
+        String stream = "data: {\"text\":\"h\u00e9llo \u4e16\u754c \ud83d\ude00\"}\n\ndata: second\n\n";
+        SseEventReader reader = new SseEventReader(trickle(stream), 4096);
+        assertEquals(Arrays.asList("{\"text\":\"h\u00e9llo \u4e16\u754c \ud83d\ude00\"}", "second"), events(reader));
+    }
+
+    @Test
+    public void skipsOversizedEvents() throws IOException {
+        char[] big = new char[3000];
+        Arrays.fill(big, 'x');
+        String stream = "data: small\n\ndata: " + new String(big) + "\n\ndata: after\n\n";
+        SseEventReader reader = reader(stream, 1024);
+        assertEquals(Arrays.asList("small", "after"), events(reader));
+        assertTrue(reader.isTruncated());
+        assertEquals(1, reader.getSkippedEvents());
+    }
+
+    @Test
+    public void skipsEventsThatGrowPastTheLimitOverSeveralLines() throws IOException {
+        char[] line = new char[600];
+        Arrays.fill(line, 'y');
+        String data = "data: " + new String(line) + "\n";
+        SseEventReader reader = reader(data + data + "\n" + data + data + data, 1024);
+        assertEquals(0, events(reader).size());
+        assertEquals(2, reader.getSkippedEvents());
+    }
+
+    @Test
+    public void emptyStreamHasNoEvents() throws IOException {
+        SseEventReader reader = reader("", 4096);
+        assertEquals(0, events(reader).size());
+        assertFalse(reader.isTruncated());
+    }
+}
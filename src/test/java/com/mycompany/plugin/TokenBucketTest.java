@@ -0,0 +1,79 @@
+package com.mycompany.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private static long in(long millis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void startsFullWithAQuarterMinuteOfTokens() {
+        TokenBucket bucket = new TokenBucket(60);
+        for (int i = 0; i < 15; i++) {
+            assertTrue("token " + i, bucket.tryAcquire());
+        }
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void holdsAtLeastOneToken() {
+        TokenBucket bucket = new TokenBucket(1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void refusesAReservationPastTheDeadline() throws InterruptedException {
+        // One token per second
+        TokenBucket bucket = new TokenBucket(60);
+        while (bucket.tryAcquire()) {
+            // Empty the bucket
+        }
+        long start = System.nanoTime();
+        assertFalse(bucket.acquire(in(100)));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0L, bucket.getWaits());
+    }
+
+    @Test
+    public void waitsForTheNextToken() throws InterruptedException {
+        // One token every 10 ms
+        TokenBucket bucket = new TokenBucket(6000);
+        while (bucket.tryAcquire()) {
+            // Empty the bucket
+        }
+        long start = System.nanoTime();
+        assertTrue(bucket.acquire(in(1000)));
+        assertTrue(bucket.acquire(in(1000)));
+        long waited = System.nanoTime() - start;
+        assertTrue("waited " + waited, waited >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(2L, bucket.getWaits());
+    }
+
+    @Test
+    public void refillsAtTheConfiguredRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(6000);
+        while (bucket.tryAcquire()) {
+            // Empty the bucket
+        }
+        Thread.sleep(100);
+        double available = bucket.getAvailable();
+        // About 10 tokens after 100 ms, less than the capacity of 1500
+        assertTrue("available " + available, available >= 9.0 && available < 100.0);
+    }
+
+    @Test
+    public void lowerRateShrinksTheBucket() {
+        TokenBucket bucket = new TokenBucket(600);
+        assertEquals(150.0, bucket.getAvailable(), 1.0);
+        bucket.setRate(40);
+        assertEquals(10.0, bucket.getAvailable(), 0.01);
+    }
+}